@@ -140,15 +140,52 @@ public class Constants {
 
     /**
      * Name of file containing the permissions that should be restored, but have not been restored
-     * yet.
+     * yet, as written by older versions. Migrated into {@link #DELAYED_RESTORE_PERMISSIONS_DIR}.
      */
     public static final String DELAYED_RESTORE_PERMISSIONS_FILE = "delayed_restore_permissions.xml";
 
+    /**
+     * Name of directory containing the permissions that should be restored, but have not been
+     * restored yet. Contains one file per package.
+     *
+     * @see com.android.permissioncontroller.permission.service.BackupHelper
+     */
+    public static final String DELAYED_RESTORE_PERMISSIONS_DIR = "delayed_restore_permissions";
+
     /**
      * Name of file containing the user denied status for requesting roles.
      */
     public static final String REQUEST_ROLE_USER_DENIED_FILE = "request_role_user_denied";
 
+    /**
+     * Prefix of the files containing the last known installed packages of a user.
+     *
+     * @see com.android.permissioncontroller.permission.data.UserPackageInfosSnapshot
+     */
+    public static final String PACKAGE_INFOS_SNAPSHOT_FILE_PREFIX = "package_infos_snapshot_";
+
+    /**
+     * Prefix of the files containing the index of when each package of a user was last visible.
+     *
+     * @see com.android.permissioncontroller.permission.data.LastVisibleTimesLiveData
+     */
+    public static final String LAST_VISIBLE_TIMES_FILE_PREFIX = "last_visible_times_";
+
+    /**
+     * Prefix of the files containing the earliest time each package of a user could be auto
+     * revoked.
+     *
+     * @see com.android.permissioncontroller.permission.service.AutoRevokeCheckpoints
+     */
+    public static final String AUTO_REVOKE_CHECKPOINTS_FILE_PREFIX = "auto_revoke_checkpoints_";
+
+    /**
+     * Name of file containing the instrumentation of the most recent auto revoke runs.
+     *
+     * @see com.android.permissioncontroller.permission.service.AutoRevokeRunHistory
+     */
+    public static final String AUTO_REVOKE_RUN_HISTORY_FILE = "auto_revoke_run_history";
+
     /**
      * Logs to dump
      */
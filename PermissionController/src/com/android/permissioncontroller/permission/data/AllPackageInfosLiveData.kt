@@ -17,14 +17,21 @@
 package com.android.permissioncontroller.permission.data
 
 import android.os.UserHandle
-import com.android.permissioncontroller.permission.data.AllPackageInfosLiveData.addSource
 import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
 
 /**
  * A LiveData which tracks the PackageInfos of all of the packages in the system, for all users.
+ * The packages of all users are loaded concurrently by their [UserPackageInfosLiveData]s, which
+ * bound how many users are queried at the same time.
+ *
+ * @param postPartialResults If true, a value is posted as soon as the packages of any user are
+ * loaded, and users which are not loaded yet are missing from it. Such partial values are
+ * [out of date][isOutOfDate] until every user is loaded. If false, a value is only posted once
+ * the packages of every user are loaded.
  */
-object AllPackageInfosLiveData :
-    SmartUpdateMediatorLiveData<Map<UserHandle, List<LightPackageInfo>>>() {
+open class MultiUserPackageInfosLiveData(
+    private val postPartialResults: Boolean
+) : SmartUpdateMediatorLiveData<Map<UserHandle, List<LightPackageInfo>>>() {
 
     private val userPackageInfosLiveDatas = mutableMapOf<UserHandle, UserPackageInfosLiveData>()
     private val userPackageInfos = mutableMapOf<UserHandle, List<LightPackageInfo>>()
@@ -50,8 +57,25 @@ object AllPackageInfosLiveData :
         } else {
             userPackageInfos[user] = packageInfos
         }
-        if (userPackageInfosLiveDatas.all { it.value.isInitialized }) {
-            value = userPackageInfos.toMap()
+        val isComplete = userPackageInfosLiveDatas.all { it.value.isInitialized }
+        if (isComplete || postPartialResults) {
+            // The packages of a user might be restored from the last process, which must not be
+            // passed on as if they were loaded
+            setDerivedValue(userPackageInfos.toMap(),
+                !isComplete || userPackageInfosLiveDatas.any { it.value.isOutOfDate })
         }
     }
 }
+
+/**
+ * A LiveData which tracks the PackageInfos of all of the packages in the system, for all users.
+ * Only posts a value once the packages of every user are loaded.
+ */
+object AllPackageInfosLiveData : MultiUserPackageInfosLiveData(postPartialResults = false)
+
+/**
+ * A LiveData which tracks the PackageInfos of all of the packages in the system, for all users.
+ * Posts a value whenever the packages of any user are loaded, so consumers which can work with
+ * partial data, e.g. lists which fill in user by user, do not have to wait for the slowest user.
+ */
+object PartialAllPackageInfosLiveData : MultiUserPackageInfosLiveData(postPartialResults = true)
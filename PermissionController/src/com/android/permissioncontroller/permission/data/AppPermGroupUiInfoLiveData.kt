@@ -20,6 +20,7 @@ import android.Manifest
 import android.Manifest.permission_group.STORAGE
 import android.app.AppOpsManager
 import android.app.Application
+import android.content.pm.PackageInfo
 import android.content.pm.PackageManager
 import android.content.pm.PermissionInfo
 import android.os.Build
@@ -60,7 +61,6 @@ class AppPermGroupUiInfoLiveData private constructor(
     private val packageInfoLiveData = LightPackageInfoLiveData[packageName, user]
     private val permGroupLiveData = PermGroupLiveData[permGroupName]
     private val permissionStateLiveData = PermStateLiveData[packageName, permGroupName, user]
-    private val isStorage = permGroupName == STORAGE
 
     init {
         isSpecialLocation = LocationUtils.isLocationGroupAndProvider(app,
@@ -85,194 +85,25 @@ class AppPermGroupUiInfoLiveData private constructor(
             return
         }
         val packageInfo = packageInfoLiveData.value
+        val isSourceOutOfDate = packageInfoLiveData.isOutOfDate
         val permissionGroup = permGroupLiveData.value
         val permissionState = permissionStateLiveData.value
 
         if (packageInfo == null || permissionGroup == null || permissionState == null) {
-            if (packageInfoLiveData.isInitialized && permGroupLiveData.isInitialized &&
-                permissionStateLiveData.isInitialized) {
+            // A package missing from the packages of the last process might be installed by now
+            if (packageInfoLiveData.isInitialized && !isSourceOutOfDate &&
+                permGroupLiveData.isInitialized && permissionStateLiveData.isInitialized) {
                 invalidateSingle(Triple(packageName, permGroupName, user))
                 postValue(null)
             }
             return
         }
 
-        postValue(getAppPermGroupUiInfo(packageInfo, permissionGroup.groupInfo,
-            permissionGroup.permissionInfos, permissionState))
-    }
-
-    /**
-     * Determines if the UI should show a given package, if that package is a system app, and
-     * if it has granted permissions in this LiveData's permission group.
-     *
-     * @param packageInfo The PackageInfo of the package we wish to examine
-     * @param groupInfo The groupInfo of the permission group we wish to examine
-     * @param allPermInfos All of the PermissionInfos in the permission group
-     * @param permissionState The flags and grant state for all permissions in the permission
-     * group that this package requests
-     */
-    private fun getAppPermGroupUiInfo(
-        packageInfo: LightPackageInfo,
-        groupInfo: LightPermGroupInfo,
-        allPermInfos: Map<String, LightPermInfo>,
-        permissionState: Map<String, PermState>
-    ): AppPermGroupUiInfo {
-        /*
-         * Filter out any permission infos in the permission group that this package
-         * does not request.
-         */
-        val requestedPermissionInfos =
-            allPermInfos.filter { permissionState.containsKey(it.key) }.values
-
-        val shouldShow = packageInfo.enabled && isGrantableAndNotLegacyPlatform(packageInfo,
-            groupInfo, requestedPermissionInfos)
-
-        val isSystemApp = !isUserSensitive(permissionState)
-
-        val isGranted = getGrantedIncludingBackground(permissionState, allPermInfos, packageInfo)
-
-        return AppPermGroupUiInfo(shouldShow, isGranted, isSystemApp)
-    }
-
-    /**
-     * Determines if a package permission group is able to be granted, and whether or not it is a
-     * legacy system permission group.
-     *
-     * @param packageInfo The PackageInfo of the package we are examining
-     * @param groupInfo The Permission Group Info of the permission group we are examining
-     * @param permissionInfos The LightPermInfos corresponding to the permissions in the
-     * permission group that this package requests
-     *
-     * @return True if the app permission group is grantable, and is not a legacy system permission,
-     * false otherwise.
-     */
-    private fun isGrantableAndNotLegacyPlatform(
-        packageInfo: LightPackageInfo,
-        groupInfo: LightPermGroupInfo,
-        permissionInfos: Collection<LightPermInfo>
-    ): Boolean {
-        var hasPreRuntime = false
-
-        for (permissionInfo in permissionInfos) {
-            if (permissionInfo.protectionFlags and
-                PermissionInfo.PROTECTION_FLAG_RUNTIME_ONLY == 0) {
-                hasPreRuntime = true
-                break
-            }
-        }
-
-        val isGrantingAllowed = !packageInfo.isInstantApp &&
-            (packageInfo.targetSdkVersion >= Build.VERSION_CODES.M || hasPreRuntime)
-        if (!isGrantingAllowed) {
-            return false
-        }
-
-        if (groupInfo.packageName == Utils.OS_PKG &&
-            !isModernPermissionGroup(groupInfo.name)) {
-            return false
-        }
-        return true
-    }
-
-    /**
-     * Determines if an app's permission group is user-sensitive. If an app is not user sensitive,
-     * then it is considered a system app, and hidden in the UI by default.
-     *
-     * @param permissionState The permission flags and grant state corresponding to the permissions
-     * in this group requested by a given app
-     *
-     * @return Whether or not this package requests a user sensitive permission in the given
-     * permission group
-     */
-    private fun isUserSensitive(permissionState: Map<String, PermState>): Boolean {
-        if (!isModernPermissionGroup(permGroupName)) {
-            return true
-        }
-
-        for (permissionName in permissionState.keys) {
-            val flags = permissionState[permissionName]?.permFlags ?: return true
-            val granted = permissionState[permissionName]?.granted ?: return true
-            if ((granted &&
-                    flags and PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED != 0) ||
-                (!granted &&
-                    flags and PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_DENIED != 0)) {
-                return true
-            }
-        }
-        return false
-    }
-
-    /**
-     * Determines if this app permission group is granted, granted in foreground only, or denied.
-     * It is granted if it either requests no background permissions, and has at least one requested
-     * permission that is granted, or has granted at least one requested background permission.
-     * It is granted in foreground only if it has at least one non-background permission granted,
-     * and has denied all requested background permissions. It is denied if all requested
-     * permissions are denied.
-     *
-     * @param permissionState The permission flags and grant state corresponding to the permissions
-     * in this group requested by a given app
-     * @param allPermInfos All of the permissionInfos in the permission group of this app
-     * permission group
-     *
-     * @return The int code corresponding to the app permission group state, either allowed, allowed
-     * in foreground only, or denied.
-     */
-    private fun getGrantedIncludingBackground(
-        permissionState: Map<String, PermState>,
-        allPermInfos: Map<String, LightPermInfo>,
-        pkg: LightPackageInfo
-    ): PermGrantState {
-        val specialLocationState = getIsSpecialLocationState()
-        if (isStorage && isFullFilesAccessGranted(pkg)) {
-            return PermGrantState.PERMS_ALLOWED
-        }
-
-        var hasPermWithBackground = false
-        var isUserFixed = false
-        var isOneTime = false
-        for ((permName, permState) in permissionState) {
-            val permInfo = allPermInfos[permName] ?: continue
-            permInfo.backgroundPermission?.let { backgroundPerm ->
-                hasPermWithBackground = true
-                if (permissionState[backgroundPerm]?.granted == true &&
-                    specialLocationState != false) {
-                    return PermGrantState.PERMS_ALLOWED_ALWAYS
-                }
-            }
-            isUserFixed = isUserFixed ||
-                    permState.permFlags and PackageManager.FLAG_PERMISSION_USER_FIXED != 0
-            isOneTime = isOneTime ||
-                    permState.permFlags and PackageManager.FLAG_PERMISSION_ONE_TIME != 0
-        }
-
-        val anyAllowed = specialLocationState ?: permissionState.any { it.value.granted }
-        if (anyAllowed && (hasPermWithBackground || shouldShowAsForegroundGroup())) {
-            if (isOneTime) {
-                return PermGrantState.PERMS_ASK
-            } else {
-                if (Utils.couldHaveForegroundCapabilities(
-                                Utils.getUserContext(app, user), packageName) ||
-                        Utils.isEmergencyApp(Utils.getUserContext(app, user), packageName)) {
-                    return PermGrantState.PERMS_ALLOWED_ALWAYS
-                } else {
-                    return PermGrantState.PERMS_ALLOWED_FOREGROUND_ONLY
-                }
-            }
-        } else if (anyAllowed) {
-            if (isOneTime) {
-                return PermGrantState.PERMS_ASK
-            } else {
-                return PermGrantState.PERMS_ALLOWED
-            }
-        }
-        if (isUserFixed) {
-            return PermGrantState.PERMS_DENIED
-        }
-        if (isOneTime) {
-            return PermGrantState.PERMS_ASK
-        }
-        return PermGrantState.PERMS_DENIED
+        postDerivedValue(getAppPermGroupUiInfo(packageInfo, permGroupName,
+            isLegacyPlatformGroup(permissionGroup.groupInfo), permissionGroup.permissionInfos,
+            permissionState, getIsSpecialLocationState(),
+            { isFullFilesAccessGranted(packageInfo) }, { hasForegroundCapabilities() }),
+            isSourceOutOfDate)
     }
 
     private fun getIsSpecialLocationState(): Boolean? {
@@ -308,10 +139,10 @@ class AppPermGroupUiInfoLiveData private constructor(
         return !packageState.isLegacy && packageState.isGranted
     }
 
-    // TODO moltmann-team: Actually change mic/camera to be a foreground only permission
-    private fun shouldShowAsForegroundGroup(): Boolean {
-        return permGroupName.equals(Manifest.permission_group.CAMERA) ||
-                permGroupName.equals(Manifest.permission_group.MICROPHONE)
+    private fun hasForegroundCapabilities(): Boolean {
+        val userContext = Utils.getUserContext(app, user)
+        return Utils.couldHaveForegroundCapabilities(userContext, packageName) ||
+            Utils.isEmergencyApp(userContext, packageName)
     }
 
     override fun onLocationStateChange(enabled: Boolean) {
@@ -346,5 +177,291 @@ class AppPermGroupUiInfoLiveData private constructor(
             return AppPermGroupUiInfoLiveData(PermissionControllerApplication.get(),
                     key.first, key.second, key.third)
         }
+
+        /**
+         * Whether a permission group is a platform group which is not shown in the UI
+         *
+         * @param groupInfo The group
+         */
+        fun isLegacyPlatformGroup(groupInfo: LightPermGroupInfo): Boolean {
+            return groupInfo.packageName == Utils.OS_PKG && !isModernPermissionGroup(groupInfo.name)
+        }
+
+        /**
+         * Determines if the UI should show a given package, if that package is a system app, and
+         * if it has granted permissions in a permission group.
+         *
+         * These are the rules for the UI, and for counting the apps which have a permission, see
+         * [isCounted]. They are pure, everything which needs the system is passed in.
+         *
+         * @param packageInfo The PackageInfo of the package we wish to examine
+         * @param permGroupName The name of the permission group we wish to examine
+         * @param isLegacyPlatformGroup Whether the group is a [legacy platform group]
+         * [isLegacyPlatformGroup]
+         * @param allPermInfos All of the PermissionInfos in the permission group
+         * @param permissionState The flags and grant state for all permissions in the permission
+         * group that this package requests
+         * @param specialLocationState Whether location is enabled for the location provider or
+         * extra location controller package, or null if the package is neither
+         * @param isFullFilesAccessGranted Whether the package has been granted full file access
+         * @param hasForegroundCapabilities Whether the package could use its foreground
+         * permissions at any time
+         */
+        fun getAppPermGroupUiInfo(
+            packageInfo: LightPackageInfo,
+            permGroupName: String,
+            isLegacyPlatformGroup: Boolean,
+            allPermInfos: Map<String, LightPermInfo>,
+            permissionState: Map<String, PermState>,
+            specialLocationState: Boolean?,
+            isFullFilesAccessGranted: () -> Boolean,
+            hasForegroundCapabilities: () -> Boolean
+        ): AppPermGroupUiInfo {
+            /*
+             * Filter out any permission infos in the permission group that this package
+             * does not request.
+             */
+            val requestedPermissionInfos =
+                allPermInfos.filter { permissionState.containsKey(it.key) }.values
+
+            val shouldShow = packageInfo.enabled && isGrantableAndNotLegacyPlatform(packageInfo,
+                isLegacyPlatformGroup, requestedPermissionInfos)
+
+            val isSystemApp = !isUserSensitive(permGroupName, permissionState)
+
+            val isGranted = getGrantedIncludingBackground(permGroupName, permissionState,
+                allPermInfos, specialLocationState, isFullFilesAccessGranted,
+                hasForegroundCapabilities)
+
+            return AppPermGroupUiInfo(shouldShow, isGranted, isSystemApp)
+        }
+
+        /**
+         * Whether an app is counted as having a permission of a permission group, i.e. whether it
+         * is shown, is not a system app unless system apps are counted, and is granted unless
+         * also apps which are not granted are counted.
+         *
+         * Applies the rules of [getAppPermGroupUiInfo], but only asks for the permission state
+         * and the special cases when they can change the result.
+         *
+         * @param packageInfo The PackageInfo of the package we wish to examine
+         * @param permGroupName The name of the permission group we wish to examine
+         * @param isLegacyPlatformGroup Whether the group is a [legacy platform group]
+         * [isLegacyPlatformGroup]
+         * @param allPermInfos All of the PermissionInfos in the permission group
+         * @param countSystem Whether system apps are counted
+         * @param countOnlyGranted Whether only apps which are granted are counted
+         * @param getSpecialLocationState Gets whether location is enabled for the location
+         * provider or extra location controller package, or null if the package is neither
+         * @param getPermissionState Gets the flags and grant state for all permissions in the
+         * permission group that this package requests
+         * @param isFullFilesAccessGranted Whether the package has been granted full file access
+         */
+        fun isCounted(
+            packageInfo: LightPackageInfo,
+            permGroupName: String,
+            isLegacyPlatformGroup: Boolean,
+            allPermInfos: Map<String, LightPermInfo>,
+            countSystem: Boolean,
+            countOnlyGranted: Boolean,
+            getSpecialLocationState: () -> Boolean?,
+            getPermissionState: () -> Map<String, PermState>,
+            isFullFilesAccessGranted: () -> Boolean
+        ): Boolean {
+            val requestedPermissionInfos = packageInfo.requestedPermissions.mapNotNull {
+                allPermInfos[it]
+            }
+            if (requestedPermissionInfos.isEmpty() || !packageInfo.enabled ||
+                !isGrantableAndNotLegacyPlatform(packageInfo, isLegacyPlatformGroup,
+                    requestedPermissionInfos)) {
+                return false
+            }
+            if (countSystem && !countOnlyGranted) {
+                return true
+            }
+
+            val specialLocationState = getSpecialLocationState()
+            // Nothing is granted if the package was not granted any permission, unless special
+            // rules apply
+            if (countOnlyGranted && specialLocationState == null && permGroupName != STORAGE &&
+                packageInfo.requestedPermissions.withIndex().none { (index, permName) ->
+                    permName in allPermInfos && packageInfo.requestedPermissionsFlags[index] and
+                        PackageInfo.REQUESTED_PERMISSION_GRANTED != 0
+                }) {
+                return false
+            }
+
+            val permissionState = getPermissionState()
+            if (!countSystem && !isUserSensitive(permGroupName, permissionState)) {
+                return false
+            }
+            if (!countOnlyGranted) {
+                return true
+            }
+
+            // Foreground capabilities only tell apart ways of being granted
+            return when (getGrantedIncludingBackground(permGroupName, permissionState,
+                allPermInfos, specialLocationState, isFullFilesAccessGranted, { false })) {
+                PermGrantState.PERMS_DENIED, PermGrantState.PERMS_ASK -> false
+                else -> true
+            }
+        }
+
+        /**
+         * Determines if a package permission group is able to be granted, and whether or not it
+         * is a legacy system permission group.
+         *
+         * @param packageInfo The PackageInfo of the package we are examining
+         * @param isLegacyPlatformGroup Whether the group is a [legacy platform group]
+         * [isLegacyPlatformGroup]
+         * @param permissionInfos The LightPermInfos corresponding to the permissions in the
+         * permission group that this package requests
+         *
+         * @return True if the app permission group is grantable, and is not a legacy system
+         * permission, false otherwise.
+         */
+        private fun isGrantableAndNotLegacyPlatform(
+            packageInfo: LightPackageInfo,
+            isLegacyPlatformGroup: Boolean,
+            permissionInfos: Collection<LightPermInfo>
+        ): Boolean {
+            var hasPreRuntime = false
+
+            for (permissionInfo in permissionInfos) {
+                if (permissionInfo.protectionFlags and
+                    PermissionInfo.PROTECTION_FLAG_RUNTIME_ONLY == 0) {
+                    hasPreRuntime = true
+                    break
+                }
+            }
+
+            val isGrantingAllowed = !packageInfo.isInstantApp &&
+                (packageInfo.targetSdkVersion >= Build.VERSION_CODES.M || hasPreRuntime)
+            if (!isGrantingAllowed) {
+                return false
+            }
+
+            return !isLegacyPlatformGroup
+        }
+
+        /**
+         * Determines if an app's permission group is user-sensitive. If an app is not user
+         * sensitive, then it is considered a system app, and hidden in the UI by default.
+         *
+         * @param permGroupName The name of the permission group
+         * @param permissionState The permission flags and grant state corresponding to the
+         * permissions in this group requested by a given app
+         *
+         * @return Whether or not this package requests a user sensitive permission in the given
+         * permission group
+         */
+        private fun isUserSensitive(
+            permGroupName: String,
+            permissionState: Map<String, PermState>
+        ): Boolean {
+            if (!isModernPermissionGroup(permGroupName)) {
+                return true
+            }
+
+            for (permissionName in permissionState.keys) {
+                val flags = permissionState[permissionName]?.permFlags ?: return true
+                val granted = permissionState[permissionName]?.granted ?: return true
+                if ((granted &&
+                        flags and PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED
+                        != 0) ||
+                    (!granted &&
+                        flags and PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_DENIED
+                        != 0)) {
+                    return true
+                }
+            }
+            return false
+        }
+
+        /**
+         * Determines if this app permission group is granted, granted in foreground only, or
+         * denied. It is granted if it either requests no background permissions, and has at least
+         * one requested permission that is granted, or has granted at least one requested
+         * background permission. It is granted in foreground only if it has at least one
+         * non-background permission granted, and has denied all requested background
+         * permissions. It is denied if all requested permissions are denied.
+         *
+         * @param permGroupName The name of the permission group
+         * @param permissionState The permission flags and grant state corresponding to the
+         * permissions in this group requested by a given app
+         * @param allPermInfos All of the permissionInfos in the permission group of this app
+         * permission group
+         * @param specialLocationState Whether location is enabled for the location provider or
+         * extra location controller package, or null if the package is neither
+         * @param isFullFilesAccessGranted Whether the package has been granted full file access
+         * @param hasForegroundCapabilities Whether the package could use its foreground
+         * permissions at any time
+         *
+         * @return The int code corresponding to the app permission group state, either allowed,
+         * allowed in foreground only, or denied.
+         */
+        private fun getGrantedIncludingBackground(
+            permGroupName: String,
+            permissionState: Map<String, PermState>,
+            allPermInfos: Map<String, LightPermInfo>,
+            specialLocationState: Boolean?,
+            isFullFilesAccessGranted: () -> Boolean,
+            hasForegroundCapabilities: () -> Boolean
+        ): PermGrantState {
+            if (permGroupName == STORAGE && isFullFilesAccessGranted()) {
+                return PermGrantState.PERMS_ALLOWED
+            }
+
+            var hasPermWithBackground = false
+            var isUserFixed = false
+            var isOneTime = false
+            for ((permName, permState) in permissionState) {
+                val permInfo = allPermInfos[permName] ?: continue
+                permInfo.backgroundPermission?.let { backgroundPerm ->
+                    hasPermWithBackground = true
+                    if (permissionState[backgroundPerm]?.granted == true &&
+                        specialLocationState != false) {
+                        return PermGrantState.PERMS_ALLOWED_ALWAYS
+                    }
+                }
+                isUserFixed = isUserFixed ||
+                        permState.permFlags and PackageManager.FLAG_PERMISSION_USER_FIXED != 0
+                isOneTime = isOneTime ||
+                        permState.permFlags and PackageManager.FLAG_PERMISSION_ONE_TIME != 0
+            }
+
+            val anyAllowed = specialLocationState ?: permissionState.any { it.value.granted }
+            if (anyAllowed && (hasPermWithBackground ||
+                    shouldShowAsForegroundGroup(permGroupName))) {
+                if (isOneTime) {
+                    return PermGrantState.PERMS_ASK
+                } else {
+                    if (hasForegroundCapabilities()) {
+                        return PermGrantState.PERMS_ALLOWED_ALWAYS
+                    } else {
+                        return PermGrantState.PERMS_ALLOWED_FOREGROUND_ONLY
+                    }
+                }
+            } else if (anyAllowed) {
+                if (isOneTime) {
+                    return PermGrantState.PERMS_ASK
+                } else {
+                    return PermGrantState.PERMS_ALLOWED
+                }
+            }
+            if (isUserFixed) {
+                return PermGrantState.PERMS_DENIED
+            }
+            if (isOneTime) {
+                return PermGrantState.PERMS_ASK
+            }
+            return PermGrantState.PERMS_DENIED
+        }
+
+        // TODO moltmann-team: Actually change mic/camera to be a foreground only permission
+        private fun shouldShowAsForegroundGroup(permGroupName: String): Boolean {
+            return permGroupName.equals(Manifest.permission_group.CAMERA) ||
+                    permGroupName.equals(Manifest.permission_group.MICROPHONE)
+        }
     }
 }
\ No newline at end of file
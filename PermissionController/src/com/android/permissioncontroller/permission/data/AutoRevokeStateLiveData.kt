@@ -70,9 +70,10 @@ class AutoRevokeStateLiveData private constructor(
         }
 
         val groups = packagePermsLiveData.value?.keys?.filter { it != NON_RUNTIME_NORMAL_PERMS }
+        val isSourceOutOfDate = packageLiveData.isOutOfDate
 
         if (packageLiveData.value?.uid == null || groups == null) {
-            postValue(null)
+            postDerivedValue(null, isSourceOutOfDate)
             return
         }
 
@@ -97,7 +98,8 @@ class AutoRevokeStateLiveData private constructor(
             }
         }
 
-        postValue(AutoRevokeState(isAutoRevokeEnabled(app), revocable, revocableGroups))
+        postDerivedValue(AutoRevokeState(isAutoRevokeEnabled(app), revocable, revocableGroups),
+            isSourceOutOfDate)
     }
 
     override fun onOpChanged(op: String?, packageName: String?) {
@@ -163,7 +163,7 @@ object AutoRevokedPackagesLiveData
         for ((userPackage, permGroups) in packageAutoRevokedPermsList) {
             autoRevokedCopy[userPackage] = permGroups.toSet()
         }
-        postValue(autoRevokedCopy)
+        postDerivedValue(autoRevokedCopy, AllPackageInfosLiveData.isOutOfDate)
     }
 }
 
@@ -208,6 +208,6 @@ object UnusedAutoRevokedPackagesLiveData
             }
         }
 
-        value = unusedPackages
+        setDerivedValue(unusedPackages, AutoRevokedPackagesLiveData.isOutOfDate)
     }
 }
\ No newline at end of file
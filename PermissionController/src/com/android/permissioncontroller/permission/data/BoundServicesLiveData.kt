@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.Manifest
+import android.accessibilityservice.AccessibilityService
+import android.app.Application
+import android.app.admin.DeviceAdminReceiver
+import android.app.admin.DevicePolicyManager
+import android.content.Intent
+import android.content.pm.PackageManager
+import android.content.pm.ResolveInfo
+import android.os.UserHandle
+import android.printservice.PrintService
+import android.service.autofill.AutofillService
+import android.service.dreams.DreamService
+import android.service.notification.NotificationListenerService
+import android.service.voice.VoiceInteractionService
+import android.service.wallpaper.WallpaperService
+import android.view.inputmethod.InputMethod
+import com.android.permissioncontroller.DumpableLog
+import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.service.DEBUG_AUTO_REVOKE
+import com.android.permissioncontroller.permission.utils.Utils.getUserContext
+import kotlinx.coroutines.Job
+
+/**
+ * A LiveData which tracks the packages of one user which implement a service (or device admin
+ * receiver) that is currently bound by the system, e.g. the enabled input methods, accessibility
+ * services or the selected autofill service.
+ *
+ * All service types are resolved by a single loader. After the first load, a package change only
+ * re-resolves the changed package, and a change of the enabled services only re-filters the
+ * already resolved packages.
+ *
+ * The value is a map of package name to the intent actions of the bound services of the package.
+ *
+ * @param app The current application
+ * @param user The user the services should be determined for
+ */
+class BoundServicesLiveData private constructor(
+    private val app: Application,
+    private val user: UserHandle
+) : SmartAsyncMediatorLiveData<Map<String, List<String>>>(),
+    PackageBroadcastReceiver.PackageBroadcastListener {
+
+    /**
+     * A type of service which is tracked
+     *
+     * @param intentAction The intent action the service (or receiver) handles
+     * @param permission The permission the service (or receiver) has to be protected by
+     * @param isReceiver Whether this is a broadcast receiver instead of a service
+     * @param enabledLiveData The LiveData tracking which of the services are enabled
+     * @param enabledCheck Whether the service of a package is enabled, given the value of
+     * [enabledLiveData]
+     */
+    private class ServiceType<E>(
+        val intentAction: String,
+        val permission: String,
+        val isReceiver: Boolean,
+        val enabledLiveData: SmartUpdateMediatorLiveData<E>,
+        private val enabledCheck: (String, E?) -> Boolean
+    ) {
+        fun isEnabled(packageName: String): Boolean {
+            return enabledCheck(packageName, enabledLiveData.value)
+        }
+    }
+
+    private val serviceTypes = listOf(
+        ServiceType(InputMethod.SERVICE_INTERFACE, Manifest.permission.BIND_INPUT_METHOD, false,
+            EnabledInputMethodsLiveData[user]) { pkg, enabled -> pkg in enabled!! },
+        ServiceType(NotificationListenerService.SERVICE_INTERFACE,
+            Manifest.permission.BIND_NOTIFICATION_LISTENER_SERVICE, false,
+            EnabledNotificationListenersLiveData[user]) { pkg, enabled -> pkg in enabled!! },
+        ServiceType(AccessibilityService.SERVICE_INTERFACE,
+            Manifest.permission.BIND_ACCESSIBILITY_SERVICE, false,
+            EnabledAccessibilityServicesLiveData[user]) { pkg, enabled -> pkg in enabled!! },
+        ServiceType(WallpaperService.SERVICE_INTERFACE, Manifest.permission.BIND_WALLPAPER, false,
+            SelectedWallpaperServiceLiveData[user]) { pkg, selected -> pkg == selected },
+        ServiceType(VoiceInteractionService.SERVICE_INTERFACE,
+            Manifest.permission.BIND_VOICE_INTERACTION, false,
+            SelectedVoiceInteractionServiceLiveData[user]) { pkg, selected -> pkg == selected },
+        ServiceType(PrintService.SERVICE_INTERFACE, Manifest.permission.BIND_PRINT_SERVICE, false,
+            DisabledPrintServicesLiveData[user]) { pkg, disabled -> pkg !in disabled!! },
+        ServiceType(DreamService.SERVICE_INTERFACE, Manifest.permission.BIND_DREAM_SERVICE, false,
+            EnabledDreamServicesLiveData[user]) { pkg, enabled -> pkg in enabled!! },
+        ServiceType(AutofillService.SERVICE_INTERFACE, Manifest.permission.BIND_AUTOFILL_SERVICE,
+            false, SelectedAutofillServiceLiveData[user]) { pkg, selected -> pkg == selected },
+        ServiceType(DevicePolicyManager.ACTION_DEVICE_ADMIN_SERVICE,
+            Manifest.permission.BIND_DEVICE_ADMIN, false,
+            EnabledDeviceAdminsLiveData[user]) { pkg, enabled -> pkg in enabled!! },
+        ServiceType(DeviceAdminReceiver.ACTION_DEVICE_ADMIN_ENABLED,
+            Manifest.permission.BIND_DEVICE_ADMIN, true,
+            EnabledDeviceAdminsLiveData[user]) { pkg, enabled -> pkg in enabled!! }
+    )
+
+    /**
+     * The packages which declare each service type, whether enabled or not, by intent action.
+     * Only accessed by the loader, null if a full scan is needed.
+     */
+    @Volatile
+    private var declaringPackages: MutableMap<String, MutableSet<String>>? = null
+
+    /**
+     * Packages which changed since the last load, and need to be re-resolved
+     */
+    private val changedPackages = mutableSetOf<String>()
+
+    /**
+     * Set when package changes might have been missed, e.g. while inactive
+     */
+    @Volatile
+    private var needsFullScan = true
+
+    init {
+        for (enabledLiveData in serviceTypes.map { it.enabledLiveData }.distinct()) {
+            addSource(enabledLiveData) {
+                updateAsync()
+            }
+        }
+    }
+
+    override fun onPackageUpdate(packageName: String) {
+        synchronized(changedPackages) {
+            changedPackages.add(packageName)
+        }
+        updateAsync()
+    }
+
+    override suspend fun loadDataAndPostValue(job: Job) {
+        if (job.isCancelled) {
+            return
+        }
+        if (!serviceTypes.all { it.enabledLiveData.isInitialized }) {
+            return
+        }
+
+        val packagesToResolve = synchronized(changedPackages) {
+            changedPackages.toSet().also { changedPackages.clear() }
+        }
+
+        var declaringPackages = declaringPackages
+        if (declaringPackages == null || needsFullScan) {
+            needsFullScan = false
+            declaringPackages = mutableMapOf()
+            for (serviceType in serviceTypes) {
+                declaringPackages[serviceType.intentAction] =
+                    resolve(serviceType, null).toMutableSet()
+            }
+            this.declaringPackages = declaringPackages
+        } else {
+            for (packageName in packagesToResolve) {
+                for (serviceType in serviceTypes) {
+                    val packages = declaringPackages.getOrPut(serviceType.intentAction) {
+                        mutableSetOf()
+                    }
+                    if (resolve(serviceType, packageName).isEmpty()) {
+                        packages.remove(packageName)
+                    } else {
+                        packages.add(packageName)
+                    }
+                }
+            }
+        }
+
+        val pkgsToServices = mutableMapOf<String, MutableList<String>>()
+        for (serviceType in serviceTypes) {
+            val name = serviceType.intentAction.substringAfterLast(".")
+            val packages = declaringPackages[serviceType.intentAction] ?: continue
+            for (packageName in packages) {
+                if (!serviceType.isEnabled(packageName)) {
+                    if (DEBUG_AUTO_REVOKE) {
+                        DumpableLog.i(LOG_TAG, "Not exempting $packageName - not an active " +
+                            "$name for u${user.identifier}")
+                    }
+                    continue
+                }
+                pkgsToServices.getOrPut(packageName) { mutableListOf() }
+                    .add(serviceType.intentAction)
+            }
+        }
+        if (DEBUG_AUTO_REVOKE) {
+            DumpableLog.i(LOG_TAG, "Detected bound services: $pkgsToServices")
+        }
+
+        postValue(pkgsToServices)
+    }
+
+    /**
+     * Find the packages which declare a service type.
+     *
+     * @param serviceType The type of service to look for
+     * @param packageName If not null, only look at this package
+     *
+     * @return The names of the packages declaring the service, protected by the right permission
+     */
+    private fun resolve(serviceType: ServiceType<*>, packageName: String?): Set<String> {
+        val intent = Intent(serviceType.intentAction)
+        if (packageName != null) {
+            intent.setPackage(packageName)
+        }
+        val packageManager = getUserContext(app, user).packageManager
+
+        val resolveInfos: List<ResolveInfo> = if (serviceType.isReceiver) {
+            packageManager.queryBroadcastReceivers(intent,
+                PackageManager.GET_RECEIVERS or PackageManager.GET_META_DATA)
+        } else {
+            packageManager.queryIntentServices(intent,
+                PackageManager.GET_SERVICES or PackageManager.GET_META_DATA)
+        }
+
+        return resolveInfos.mapNotNull { resolveInfo ->
+            val componentInfo = if (serviceType.isReceiver) {
+                resolveInfo?.activityInfo
+            } else {
+                resolveInfo?.serviceInfo
+            }
+            if (componentInfo?.permission != serviceType.permission) {
+                return@mapNotNull null
+            }
+            componentInfo?.packageName
+        }.toSet()
+    }
+
+    override fun onActive() {
+        super.onActive()
+
+        PackageBroadcastReceiver.addAllCallback(this)
+
+        updateAsync()
+    }
+
+    override fun onInactive() {
+        super.onInactive()
+
+        PackageBroadcastReceiver.removeAllCallback(this)
+        // Package broadcasts are not received while inactive
+        needsFullScan = true
+    }
+
+    /**
+     * Repository for [BoundServicesLiveData]
+     *
+     * <p> Key value is a user, value is its corresponding LiveData.
+     */
+    companion object : DataRepositoryForPackage<UserHandle, BoundServicesLiveData>() {
+        private const val LOG_TAG = "BoundServicesLiveData"
+
+        override fun newValue(key: UserHandle): BoundServicesLiveData {
+            return BoundServicesLiveData(PermissionControllerApplication.get(), key)
+        }
+    }
+}
@@ -74,6 +74,6 @@ object CustomPermGroupNamesLiveData : SmartUpdateMediatorLiveData<List<String>>(
                 }
             }
         }
-        value = groupNames
+        setDerivedValue(groupNames, packagesLiveData.isOutOfDate)
     }
 }
@@ -35,6 +35,8 @@ import kotlinx.coroutines.Job
  * A liveData which tracks all packages in the system which have full file permissions, as
  * represented by the OPSTR_LEGACY_STORAGE app op, not just media-only storage permissions.
  *
+ * Fills in user by user, the value is [out of date][isOutOfDate] until the packages of all users
+ * are loaded.
  */
 object FullStoragePermissionAppsLiveData :
     SmartAsyncMediatorLiveData<List<FullStoragePermissionAppsLiveData.FullStoragePackageState>>() {
@@ -54,7 +56,7 @@ object FullStoragePermissionAppsLiveData :
         addSource(standardPermGroupsPackagesLiveData) {
             updateAsync()
         }
-        addSource(AllPackageInfosLiveData) {
+        addSource(PartialAllPackageInfosLiveData) {
             updateAsync()
         }
     }
@@ -63,8 +65,12 @@ object FullStoragePermissionAppsLiveData :
         val storagePackages = standardPermGroupsPackagesLiveData.value?.get(STORAGE) ?: return
         val appOpsManager = app.getSystemService(AppOpsManager::class.java) ?: return
 
+        val allPackageInfos = PartialAllPackageInfosLiveData.value ?: emptyMap()
+        val isSourceOutOfDate = PartialAllPackageInfosLiveData.isOutOfDate ||
+            standardPermGroupsPackagesLiveData.isOutOfDate
+
         val fullStoragePackages = mutableListOf<FullStoragePackageState>()
-        for ((user, packageInfoList) in AllPackageInfosLiveData.value ?: emptyMap()) {
+        for ((user, packageInfoList) in allPackageInfos) {
             val userPackages = packageInfoList.filter {
                 storagePackages.contains(it.packageName to user) ||
                     it.requestedPermissions.contains(MANAGE_EXTERNAL_STORAGE)
@@ -76,7 +82,7 @@ object FullStoragePermissionAppsLiveData :
             }
         }
 
-        postValue(fullStoragePackages)
+        postDerivedValue(fullStoragePackages, isSourceOutOfDate)
     }
 
     override fun onActive() {
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.app.Application
+import android.app.usage.UsageStatsManager
+import android.os.UserHandle
+import android.util.AtomicFile
+import android.util.Log
+import com.android.permissioncontroller.Constants.LAST_VISIBLE_TIMES_FILE_PREFIX
+import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.utils.Utils
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+import kotlinx.coroutines.Job
+
+/**
+ * A LiveData which tracks when each package was last visible, for all users, within a given
+ * length of time.
+ *
+ * Unlike [UsageStatsLiveData], this does not query the full length of time on every update. The
+ * last visible times of each user are kept in an index which is seeded once, then only updated
+ * with the usage since the previous update, and persisted between runs.
+ *
+ * The value is a map of user to a map of package name to last visible time. Users whose usage is
+ * not tracked, i.e. disabled users and work profiles, are missing.
+ *
+ * @param app The current application
+ * @param searchTimeMs The length of time, in milliseconds, that this LiveData will track. Packages
+ * which were last visible before this are left out.
+ */
+class LastVisibleTimesLiveData private constructor(
+    private val app: Application,
+    private val searchTimeMs: Long
+) : SmartAsyncMediatorLiveData<Map<UserHandle, Map<String, Long>>>() {
+
+    init {
+        addSource(UsersLiveData) {
+            update()
+        }
+    }
+
+    override suspend fun loadDataAndPostValue(job: Job) {
+        if (!UsersLiveData.isInitialized) {
+            return
+        }
+
+        val now = System.currentTimeMillis()
+        val since = now - searchTimeMs
+        val users = UsersLiveData.value!!
+        UserLastVisibleTimes.deleteRemovedUsers(app, users)
+
+        val userMap = mutableMapOf<UserHandle, Map<String, Long>>()
+        for (user in users) {
+            // If the user is not enabled, or if the user is a managed profile, and this is not an
+            // android TV (where parental control accounts are managed profiles), do not get stats.
+            if (Utils.isUserDisabledOrWorkProfile(user)) {
+                continue
+            }
+            if (job.isCancelled) {
+                return
+            }
+
+            userMap[user] = UserLastVisibleTimes.get(user).update(app, since, now)
+        }
+
+        postValue(userMap)
+    }
+
+    override fun onActive() {
+        super.onActive()
+        update()
+    }
+
+    /**
+     * Repository for LastVisibleTimesLiveDatas.
+     * <p> Key value is the length of time tracked in milliseconds, value is its corresponding
+     * LiveData.
+     */
+    companion object : DataRepository<Long, LastVisibleTimesLiveData>() {
+        override fun newValue(key: Long): LastVisibleTimesLiveData {
+            return LastVisibleTimesLiveData(PermissionControllerApplication.get(), key)
+        }
+    }
+}
+
+/**
+ * The persisted index of the last visible time of every package of one user.
+ *
+ * @param user The user whose packages are indexed
+ */
+private class UserLastVisibleTimes(private val user: UserHandle) {
+    private val lastVisibleTimes = mutableMapOf<String, Long>()
+
+    /**
+     * Start of the time range the index covers, or null if the index was not seeded yet
+     */
+    private var seededSince: Long? = null
+
+    /**
+     * End of the time range the index covers
+     */
+    private var checkpoint = 0L
+
+    private var isRead = false
+
+    /**
+     * Bring the index up to date. Only queries the usage since the last update, unless the index
+     * does not cover the requested time range yet. Packages last visible before the time range
+     * are dropped from the index. Performs IPCs and disk I/O.
+     *
+     * @param app The current application
+     * @param since The start of the time range which has to be covered
+     * @param now The current time
+     *
+     * @return A copy of the index
+     */
+    @Synchronized
+    fun update(app: Application, since: Long, now: Long): Map<String, Long> {
+        if (!isRead) {
+            read(app)
+            isRead = true
+        }
+
+        val seededSince = seededSince
+        val queryStart = if (seededSince == null || seededSince > since || checkpoint > now) {
+            // Not seeded, seeded for a shorter time range, or the clock went backwards
+            lastVisibleTimes.clear()
+            this.seededSince = since
+            since
+        } else {
+            checkpoint - CHECKPOINT_OVERLAP_MS
+        }
+
+        val statsManager = Utils.getUserContext(app, user)
+            .getSystemService(UsageStatsManager::class.java)!!
+        var changed = queryStart == since
+        for ((packageName, stats) in statsManager.queryAndAggregateUsageStats(queryStart, now)) {
+            val lastTimeVisible = stats.lastTimeVisible
+            if (lastTimeVisible > lastVisibleTimes[packageName] ?: 0L) {
+                lastVisibleTimes[packageName] = lastTimeVisible
+                changed = true
+            }
+        }
+        checkpoint = now
+
+        // The index now only covers the requested time range. The persisted range only has to
+        // be updated if an entry was dropped, as otherwise there is no entry it could miss.
+        this.seededSince = since
+        if (lastVisibleTimes.values.removeIf { it < since }) {
+            changed = true
+        }
+
+        if (changed) {
+            write(app)
+        }
+        return lastVisibleTimes.toMap()
+    }
+
+    private fun getFile(app: Application): AtomicFile {
+        return AtomicFile(File(app.filesDir, LAST_VISIBLE_TIMES_FILE_PREFIX + user.identifier))
+    }
+
+    private fun read(app: Application) {
+        try {
+            DataInputStream(BufferedInputStream(getFile(app).openRead())).use { input ->
+                if (input.readInt() != VERSION) {
+                    return
+                }
+                val seededSince = input.readLong()
+                val checkpoint = input.readLong()
+                val times = mutableMapOf<String, Long>()
+                for (i in 0 until input.readInt()) {
+                    times[input.readUTF()] = input.readLong()
+                }
+
+                lastVisibleTimes.putAll(times)
+                this.seededSince = seededSince
+                this.checkpoint = checkpoint
+            }
+        } catch (e: FileNotFoundException) {
+            // Not seeded yet
+        } catch (e: IOException) {
+            Log.w(LOG_TAG, "Cannot read last visible times of user ${user.identifier}", e)
+            getFile(app).delete()
+        }
+    }
+
+    private fun write(app: Application) {
+        val file = getFile(app)
+        val stream = try {
+            file.startWrite()
+        } catch (e: IOException) {
+            Log.w(LOG_TAG, "Cannot write last visible times of user ${user.identifier}", e)
+            return
+        }
+
+        try {
+            val output = DataOutputStream(BufferedOutputStream(stream))
+            output.writeInt(VERSION)
+            output.writeLong(seededSince!!)
+            output.writeLong(checkpoint)
+            output.writeInt(lastVisibleTimes.size)
+            for ((packageName, lastTimeVisible) in lastVisibleTimes) {
+                output.writeUTF(packageName)
+                output.writeLong(lastTimeVisible)
+            }
+            output.flush()
+            file.finishWrite(stream)
+        } catch (e: IOException) {
+            Log.w(LOG_TAG, "Cannot write last visible times of user ${user.identifier}", e)
+            file.failWrite(stream)
+        }
+    }
+
+    companion object {
+        private val LOG_TAG = UserLastVisibleTimes::class.java.simpleName
+
+        /**
+         * Version of the file format. Increase when changing the format.
+         */
+        private const val VERSION = 1
+
+        /**
+         * How far before the last checkpoint to query again, so usage which was still being
+         * aggregated at the checkpoint is not missed
+         */
+        private const val CHECKPOINT_OVERLAP_MS = 60 * 60 * 1000L
+
+        private val instances = mutableMapOf<UserHandle, UserLastVisibleTimes>()
+
+        /**
+         * Get the index of a user.
+         *
+         * @param user The user whose index to get
+         *
+         * @return The index of the user
+         */
+        fun get(user: UserHandle): UserLastVisibleTimes {
+            synchronized(instances) {
+                return instances.getOrPut(user) { UserLastVisibleTimes(user) }
+            }
+        }
+
+        /**
+         * Delete the indexes of users which do not exist anymore. Performs disk I/O.
+         *
+         * @param app The current application
+         * @param users All existing users
+         */
+        fun deleteRemovedUsers(app: Application, users: List<UserHandle>) {
+            val userIds = users.map { it.identifier }.toSet()
+            synchronized(instances) {
+                instances.keys.retainAll(users)
+            }
+
+            val fileNames = app.filesDir.list() ?: return
+            for (fileName in fileNames) {
+                val userId = fileName.removePrefix(LAST_VISIBLE_TIMES_FILE_PREFIX)
+                    .takeIf { it != fileName }
+                    // Also matches the temporary files of AtomicFile
+                    ?.substringBefore('.')?.toIntOrNull() ?: continue
+                if (userId !in userIds) {
+                    AtomicFile(File(app.filesDir, LAST_VISIBLE_TIMES_FILE_PREFIX + userId))
+                        .delete()
+                }
+            }
+        }
+    }
+}
@@ -84,7 +84,9 @@ class LightAppPermGroupLiveData private constructor(
         }
 
         addSource(packageInfoLiveData) { packageInfo ->
-            if (packageInfo == null && packageInfoLiveData.isInitialized) {
+            // A package missing from the packages of the last process might be installed by now
+            if (packageInfo == null && packageInfoLiveData.isInitialized &&
+                !packageInfoLiveData.isOutOfDate) {
                 invalidateSingle(key)
                 value = null
             } else {
@@ -98,11 +100,13 @@ class LightAppPermGroupLiveData private constructor(
         val permGroup = permGroupLiveData.value ?: return
         val packageInfo = packageInfoLiveData.value ?: return
         val allForegroundPerms = fgPermNamesLiveData.value ?: return
+        val isSourceOutOfDate = packageInfoLiveData.isOutOfDate
 
         // Do not allow toggling pre-M custom perm groups
         if (packageInfo.targetSdkVersion < Build.VERSION_CODES.M &&
             permGroup.groupInfo.packageName != OS_PKG) {
-            value = LightAppPermGroup(packageInfo, permGroup.groupInfo, emptyMap())
+            setDerivedValue(LightAppPermGroup(packageInfo, permGroup.groupInfo, emptyMap()),
+                isSourceOutOfDate)
             return
         }
 
@@ -128,8 +132,8 @@ class LightAppPermGroupLiveData private constructor(
         }
 
         val hasInstallToRuntimeSplit = hasInstallToRuntimeSplit(packageInfo, permissionMap)
-        value = LightAppPermGroup(packageInfo, permGroup.groupInfo, permissionMap,
-            hasInstallToRuntimeSplit, specialLocationGrant)
+        setDerivedValue(LightAppPermGroup(packageInfo, permGroup.groupInfo, permissionMap,
+            hasInstallToRuntimeSplit, specialLocationGrant), isSourceOutOfDate)
     }
 
     /**
@@ -146,7 +146,7 @@ class LightPackageInfoLiveData private constructor(
                 watchingUserPackagesLiveData = false
             }
 
-            value = packageInfo
+            setDerivedValue(packageInfo, userPackagesLiveData.isOutOfDate)
         } else {
             // If the UserPackageInfosLiveData does not contain this package, check for removal, and
             // stop watching.
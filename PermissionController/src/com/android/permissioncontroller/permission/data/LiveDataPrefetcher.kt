@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.os.Handler
+import android.os.Looper
+import android.util.Log
+import androidx.annotation.MainThread
+import androidx.lifecycle.Observer
+import com.android.permissioncontroller.PermissionControllerProto.LiveDataPrefetchStatsProto
+import com.android.permissioncontroller.permission.utils.ensureMainThread
+import java.util.ArrayDeque
+import java.util.Collections
+import java.util.WeakHashMap
+
+/**
+ * Loads the LiveDatas a screen will most likely need next, e.g. the data of the rows of a list the
+ * user is likely to tap, before they are needed.
+ *
+ * Prefetching is low priority: it only starts after the current screen had time to load, only a
+ * few LiveDatas are loaded at once, and only a bounded number of them is kept loaded, each for a
+ * limited time. A prefetched LiveData stays in its [DataRepository] afterwards, so a screen which
+ * opens it later starts with its value.
+ */
+object LiveDataPrefetcher {
+    private val LOG_TAG = LiveDataPrefetcher::class.java.simpleName
+    private const val DEBUG_PREFETCH = false
+
+    /**
+     * How long to wait after a prefetch request before starting to load
+     */
+    private const val START_DELAY_MS = 500L
+
+    /**
+     * How long a prefetched LiveData is kept active
+     */
+    private const val HOLD_TIME_MS = 30_000L
+
+    /**
+     * How many LiveDatas are loaded at the same time
+     */
+    private const val MAX_CONCURRENT_LOADS = 2
+
+    /**
+     * How many LiveDatas are kept active at most. This bounds the memory prefetching pins.
+     */
+    private const val MAX_HELD = 12
+
+    private val handler = Handler(Looper.getMainLooper())
+
+    private val pending = ArrayDeque<SmartUpdateMediatorLiveData<*>>()
+    private val loading = mutableSetOf<SmartUpdateMediatorLiveData<*>>()
+
+    /**
+     * The LiveDatas kept active, with their observers, oldest first
+     */
+    private val held = LinkedHashMap<SmartUpdateMediatorLiveData<*>, Observer<Any?>>()
+
+    /**
+     * All LiveDatas which were prefetched, and not accessed since
+     */
+    private val prefetched =
+        Collections.newSetFromMap(WeakHashMap<SmartUpdateMediatorLiveData<*>, Boolean>())
+
+    /**
+     * Number of accesses to a prefetched LiveData which already had a value
+     */
+    @Volatile
+    var numHits = 0
+        private set
+
+    /**
+     * Number of accesses to a prefetched LiveData which did not have a value yet
+     */
+    @Volatile
+    var numMisses = 0
+        private set
+
+    /**
+     * Number of LiveDatas which were prefetched
+     */
+    @Volatile
+    var numPrefetched = 0
+        private set
+
+    private val startLoadsRunnable = Runnable { startLoads() }
+
+    /**
+     * Request LiveDatas to be prefetched. Replaces any pending, not yet started, requests.
+     *
+     * @param liveDatas The LiveDatas to load, most likely needed first
+     */
+    @MainThread
+    fun prefetch(liveDatas: List<SmartUpdateMediatorLiveData<*>>) {
+        ensureMainThread()
+
+        pending.clear()
+        pending.addAll(liveDatas.take(MAX_HELD))
+        handler.removeCallbacks(startLoadsRunnable)
+        handler.postDelayed(startLoadsRunnable, START_DELAY_MS)
+    }
+
+    /**
+     * Record that a screen accessed a LiveData, to measure the prefetch hit rate.
+     *
+     * @param liveData The LiveData the screen uses
+     */
+    @MainThread
+    fun recordAccess(liveData: SmartUpdateMediatorLiveData<*>) {
+        ensureMainThread()
+
+        if (!prefetched.remove(liveData)) {
+            return
+        }
+        if (liveData.isInitialized) {
+            numHits++
+        } else {
+            numMisses++
+        }
+        if (DEBUG_PREFETCH) {
+            Log.i(LOG_TAG, "${liveData.javaClass.simpleName} accessed, hit rate " +
+                "$numHits/${numHits + numMisses}, $numPrefetched prefetched")
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun startLoads() {
+        while (loading.size < MAX_CONCURRENT_LOADS && pending.isNotEmpty()) {
+            val liveData = pending.removeFirst()
+            if (liveData in held || (liveData.isInitialized && !liveData.isStale)) {
+                // Already loaded, or loaded and in use
+                continue
+            }
+
+            if (held.size >= MAX_HELD) {
+                release(held.keys.first())
+            }
+
+            val observer = Observer<Any?> {
+                if (liveData.isInitialized && loading.remove(liveData)) {
+                    handler.post(startLoadsRunnable)
+                }
+            }
+            loading.add(liveData)
+            held[liveData] = observer
+            prefetched.add(liveData)
+            numPrefetched++
+            (liveData as SmartUpdateMediatorLiveData<Any?>).observeForever(observer)
+            // The LiveData might have been released and held again by then, which starts a new
+            // hold time
+            handler.postDelayed({
+                if (held[liveData] === observer) {
+                    release(liveData)
+                }
+            }, HOLD_TIME_MS)
+        }
+    }
+
+    /**
+     * @return how many LiveDatas were prefetched, and how often they were used, since the process
+     * started
+     */
+    fun dump(): LiveDataPrefetchStatsProto {
+        return LiveDataPrefetchStatsProto.newBuilder()
+            .setNumPrefetched(numPrefetched)
+            .setNumHits(numHits)
+            .setNumMisses(numMisses)
+            .build()
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun release(liveData: SmartUpdateMediatorLiveData<*>) {
+        val observer = held.remove(liveData) ?: return
+        (liveData as SmartUpdateMediatorLiveData<Any?>).removeObserver(observer)
+        if (loading.remove(liveData)) {
+            handler.post(startLoadsRunnable)
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.os.Looper
+import android.os.SystemClock
+import android.os.Trace
+import android.provider.DeviceConfig
+import androidx.annotation.MainThread
+import androidx.lifecycle.LiveData
+import com.android.permissioncontroller.PermissionControllerProto.LiveDataUpdateProto
+import com.android.permissioncontroller.permission.utils.Utils
+import java.util.ArrayDeque
+import java.util.concurrent.Executor
+
+/**
+ * Records how updates propagate through the graph of [SmartUpdateMediatorLiveData]s: which source
+ * triggered which [update][SmartUpdateMediatorLiveData.update], how long the update took, and
+ * whether it changed the value.
+ *
+ * Updates are emitted as trace sections whenever the app is being traced, so they show up in
+ * systrace and Perfetto. If [isEnabled], the most recent updates are also kept, so they can be
+ * dumped.
+ */
+object LiveDataUpdateTracer {
+    /**
+     * How many updates are kept for the dump
+     */
+    private const val MAX_RECORDED_UPDATES = 1000
+
+    /**
+     * The maximum length of a trace section name allowed by [Trace]
+     */
+    private const val MAX_SECTION_NAME_LENGTH = 127
+
+    /**
+     * Whether updates are recorded for the dump. Follows the device config, unless set directly.
+     */
+    @Volatile
+    var isEnabled = Utils.isLiveDataUpdateTracingEnabled()
+
+    /**
+     * Whether updates are recorded at all
+     */
+    val isTracing: Boolean
+        get() = isEnabled || Trace.isEnabled()
+
+    /**
+     * The sources whose value is currently being delivered, innermost last. Main thread only.
+     */
+    private val triggers = ArrayList<LiveData<*>>()
+
+    /**
+     * The LiveDatas which are currently being updated, innermost last. Main thread only.
+     */
+    private val updating = ArrayList<SmartUpdateMediatorLiveData<*>>()
+
+    private val recordedUpdates = ArrayDeque<LiveDataUpdateProto>()
+
+    init {
+        DeviceConfig.addOnPropertiesChangedListener(DeviceConfig.NAMESPACE_PERMISSIONS,
+            Executor(Runnable::run),
+            DeviceConfig.OnPropertiesChangedListener {
+                isEnabled = Utils.isLiveDataUpdateTracingEnabled()
+            })
+    }
+
+    /**
+     * Deliver a new value of a source, recording the source as the trigger of any update it
+     * causes.
+     *
+     * @param source The source whose value is delivered
+     * @param deliver Delivers the value
+     */
+    @MainThread
+    inline fun deliver(source: LiveData<*>, deliver: () -> Unit) {
+        if (!isTracing) {
+            deliver()
+            return
+        }
+
+        pushTrigger(source)
+        try {
+            deliver()
+        } finally {
+            popTrigger()
+        }
+    }
+
+    @PublishedApi
+    @MainThread
+    internal fun pushTrigger(source: LiveData<*>) {
+        triggers.add(source)
+    }
+
+    @PublishedApi
+    @MainThread
+    internal fun popTrigger() {
+        triggers.removeAt(triggers.lastIndex)
+    }
+
+    /**
+     * Get the source whose value is currently being delivered, so an asynchronous load can be
+     * attributed to it once its value is set.
+     *
+     * @return The name of the source, or null if no value is being delivered, or if not called
+     * on the main thread
+     */
+    internal fun getCurrentTrigger(): String? {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            return null
+        }
+        return triggers.lastOrNull()?.let { getName(it) }
+    }
+
+    /**
+     * Run an update of a LiveData, and record it.
+     *
+     * @param liveData The LiveData which is updated
+     * @param onUpdate Performs the update
+     */
+    @MainThread
+    fun traceUpdate(liveData: SmartUpdateMediatorLiveData<*>, onUpdate: () -> Unit) {
+        val name = getName(liveData)
+        val trigger = triggers.lastOrNull()?.let { getName(it) }
+        val numChangesBefore = liveData.numValueChanges
+
+        Trace.beginSection(("update $name" + if (trigger != null) " <- $trigger" else "")
+            .take(MAX_SECTION_NAME_LENGTH))
+        updating.add(liveData)
+        val start = SystemClock.elapsedRealtimeNanos()
+        try {
+            onUpdate()
+        } finally {
+            val duration = SystemClock.elapsedRealtimeNanos() - start
+            updating.removeAt(updating.lastIndex)
+            Trace.endSection()
+
+            record(name, trigger, start, duration, liveData.numValueChanges != numChangesBefore)
+        }
+    }
+
+    /**
+     * Set the value of a LiveData outside of an update of it, e.g. to the result of an
+     * asynchronous load, and record it.
+     *
+     * @param liveData The LiveData whose value is set
+     * @param trigger The name of the source which caused the value to be loaded, if known
+     * @param setValue Sets the value
+     */
+    @MainThread
+    fun traceSetValue(
+        liveData: SmartUpdateMediatorLiveData<*>,
+        trigger: String?,
+        setValue: () -> Unit
+    ) {
+        if (updating.lastOrNull() === liveData) {
+            // Recorded with the update
+            setValue()
+            return
+        }
+
+        val name = getName(liveData)
+        val numChangesBefore = liveData.numValueChanges
+
+        Trace.beginSection(("set $name" + if (trigger != null) " <- $trigger" else "")
+            .take(MAX_SECTION_NAME_LENGTH))
+        val start = SystemClock.elapsedRealtimeNanos()
+        try {
+            setValue()
+        } finally {
+            val duration = SystemClock.elapsedRealtimeNanos() - start
+            Trace.endSection()
+
+            record(name, trigger, start, duration, liveData.numValueChanges != numChangesBefore)
+        }
+    }
+
+    private fun record(
+        name: String,
+        trigger: String?,
+        startNanos: Long,
+        durationNanos: Long,
+        valueChanged: Boolean
+    ) {
+        if (!isEnabled) {
+            return
+        }
+
+        val update = LiveDataUpdateProto.newBuilder()
+            .setLiveData(name)
+            .setStartNanos(startNanos)
+            .setDurationNanos(durationNanos)
+            .setValueChanged(valueChanged)
+        if (trigger != null) {
+            update.source = trigger
+        }
+
+        synchronized(recordedUpdates) {
+            if (recordedUpdates.size >= MAX_RECORDED_UPDATES) {
+                recordedUpdates.removeFirst()
+            }
+            recordedUpdates.addLast(update.build())
+        }
+    }
+
+    /**
+     * Get the recorded updates, oldest first.
+     *
+     * @return The most recent updates, or an empty list if not [isEnabled]
+     */
+    fun dump(): List<LiveDataUpdateProto> {
+        synchronized(recordedUpdates) {
+            return recordedUpdates.toList()
+        }
+    }
+
+    private fun getName(liveData: LiveData<*>): String {
+        val liveDataClass = liveData.javaClass
+        return liveDataClass.simpleName.ifEmpty { liveDataClass.name.substringAfterLast(".") }
+    }
+}
@@ -156,6 +156,8 @@ object PackageBroadcastReceiver : BroadcastReceiver() {
         if (intent.action == Intent.ACTION_PACKAGE_REMOVED) {
             // Invalidate all livedatas associated with this package
             LightPackageInfoLiveData.invalidateAllForPackage(packageName)
+            PackagePermInfosLiveData.invalidateAllForPackage(packageName)
+            PackagePermStatesLiveData.invalidateAllForPackage(packageName)
             PermStateLiveData.invalidateAllForPackage(packageName)
             PackagePermissionsLiveData.invalidateAllForPackage(packageName)
             AutoRevokeStateLiveData.invalidateAllForPackage(packageName)
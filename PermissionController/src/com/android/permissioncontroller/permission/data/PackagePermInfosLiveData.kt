@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.app.Application
+import android.content.pm.PackageManager
+import android.content.pm.PermissionInfo
+import android.os.UserHandle
+import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPermInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.PackagePermInfos
+import com.android.permissioncontroller.permission.utils.Utils
+import kotlinx.coroutines.Job
+
+/**
+ * A LiveData which tracks the definitions of every permission one package requests, indexed by
+ * permission group. Only reloads the definitions if the requested permissions change, or if a
+ * package which might define one of them is installed, updated or removed.
+ *
+ * @param app The current application
+ * @param packageName The name of the package
+ * @param user The user of the package
+ */
+class PackagePermInfosLiveData private constructor(
+    private val app: Application,
+    private val packageName: String,
+    private val user: UserHandle
+) : SmartAsyncMediatorLiveData<PackagePermInfos>(),
+    PackageBroadcastReceiver.PackageBroadcastListener {
+
+    private val packageInfoLiveData = LightPackageInfoLiveData[packageName, user]
+
+    /**
+     * The permission infos of the last set of requested permissions, reused as long as neither
+     * the requested permissions nor their definitions change
+     */
+    @Volatile
+    private var cachedPermInfos: Pair<List<String>, Map<String, LightPermInfo>>? = null
+
+    init {
+        addSource(packageInfoLiveData) {
+            // A package missing from the packages of the last process might be installed by now
+            if (packageInfoLiveData.isInitialized && !packageInfoLiveData.isOutOfDate &&
+                it == null) {
+                invalidateSingle(packageName to user)
+                value = null
+                return@addSource
+            }
+            updateAsync()
+        }
+    }
+
+    override suspend fun loadDataAndPostValue(job: Job) {
+        val packageInfo = packageInfoLiveData.value ?: return
+        val isSourceOutOfDate = packageInfoLiveData.isOutOfDate
+
+        val permInfos = getPermInfos(packageInfo)
+        if (job.isCancelled) {
+            return
+        }
+
+        val groupPermNames = mutableMapOf<String, MutableList<String>>()
+        for (permName in packageInfo.requestedPermissions) {
+            val permInfo = permInfos[permName] ?: continue
+            if (permInfo.protection != PermissionInfo.PROTECTION_DANGEROUS) {
+                continue
+            }
+            groupPermNames.getOrPut(getGroupOfPermission(permInfo)) { mutableListOf() }
+                .add(permName)
+        }
+
+        postDerivedValue(PackagePermInfos(packageInfo, permInfos, groupPermNames),
+            isSourceOutOfDate)
+    }
+
+    private fun getPermInfos(packageInfo: LightPackageInfo): Map<String, LightPermInfo> {
+        cachedPermInfos?.let { (requestedPermissions, permInfos) ->
+            if (requestedPermissions == packageInfo.requestedPermissions) {
+                return permInfos
+            }
+        }
+
+        val permInfos = mutableMapOf<String, LightPermInfo>()
+        for (permName in packageInfo.requestedPermissions) {
+            permInfos[permName] = try {
+                LightPermInfo(app.packageManager.getPermissionInfo(permName, 0))
+            } catch (e: PackageManager.NameNotFoundException) {
+                continue
+            }
+        }
+        cachedPermInfos = packageInfo.requestedPermissions to permInfos
+        return permInfos
+    }
+
+    /**
+     * Drop the cached definitions if the changed package defines one of the requested
+     * permissions, or if some requested permission was not defined, as the changed package might
+     * define it now.
+     */
+    override fun onPackageUpdate(packageName: String) {
+        val (requestedPermissions, permInfos) = cachedPermInfos ?: return
+        if (permInfos.size < requestedPermissions.size ||
+            permInfos.values.any { it.packageName == packageName }) {
+            cachedPermInfos = null
+            updateAsync()
+        }
+    }
+
+    override fun onActive() {
+        super.onActive()
+        PackageBroadcastReceiver.addAllCallback(this)
+    }
+
+    override fun onInactive() {
+        super.onInactive()
+        PackageBroadcastReceiver.removeAllCallback(this)
+        // Definitions are not tracked while inactive
+        cachedPermInfos = null
+    }
+
+    /**
+     * Repository for PackagePermInfosLiveDatas.
+     * <p> Key value is a string package name and UserHandle pair, value is its corresponding
+     * LiveData.
+     */
+    companion object : DataRepositoryForPackage<Pair<String, UserHandle>,
+        PackagePermInfosLiveData>() {
+        override fun newValue(key: Pair<String, UserHandle>): PackagePermInfosLiveData {
+            return PackagePermInfosLiveData(PermissionControllerApplication.get(),
+                key.first, key.second)
+        }
+
+        /**
+         * Equivalent to [Utils.getGroupOfPermission] for a [LightPermInfo], with a fallback to
+         * the permission name, as lone permissions are their own group.
+         *
+         * @param permInfo The permission whose group we want
+         *
+         * @return The name of the group the permission belongs to
+         */
+        fun getGroupOfPermission(permInfo: LightPermInfo): String {
+            return Utils.getGroupOfPlatformPermission(permInfo.name) ?: permInfo.group
+                ?: permInfo.name
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.app.Application
+import android.content.pm.PackageInfo
+import android.content.pm.PackageManager
+import android.content.pm.PermissionInfo
+import android.os.UserHandle
+import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.PackagePermStates
+import com.android.permissioncontroller.permission.model.livedatatypes.PermState
+import com.android.permissioncontroller.permission.utils.Utils
+import kotlinx.coroutines.Job
+
+/**
+ * A LiveData which tracks the permission state of every runtime permission one package requests.
+ * The per-group [PermStateLiveData]s of a package are projections of this value, so the requested
+ * permissions are only walked once per package.
+ *
+ * @param app The current application
+ * @param packageName The name of the package
+ * @param user The user of the package
+ */
+class PackagePermStatesLiveData private constructor(
+    private val app: Application,
+    private val packageName: String,
+    private val user: UserHandle
+) : SmartAsyncMediatorLiveData<PackagePermStates>(),
+    PermissionListenerMultiplexer.PermissionChangeCallback {
+
+    private val context = Utils.getUserContext(app, user)
+    private val packagePermInfosLiveData = PackagePermInfosLiveData[packageName, user]
+
+    private var uid: Int? = null
+    private var registeredUid: Int? = null
+
+    init {
+        addSource(packagePermInfosLiveData) {
+            if (packagePermInfosLiveData.isInitialized && it == null) {
+                invalidateSingle(packageName to user)
+                value = null
+                return@addSource
+            }
+            checkForUidUpdate(it?.packageInfo)
+            updateAsync()
+        }
+    }
+
+    override suspend fun loadDataAndPostValue(job: Job) {
+        val permInfos = packagePermInfosLiveData.value ?: return
+        val packageInfo = permInfos.packageInfo
+
+        val permStates = mutableMapOf<String, PermState>()
+        for ((index, permName) in packageInfo.requestedPermissions.withIndex()) {
+            if (permInfos.permInfos[permName]?.protection != PermissionInfo.PROTECTION_DANGEROUS) {
+                continue
+            }
+
+            val packageFlags = packageInfo.requestedPermissionsFlags[index]
+            val permFlags = context.packageManager.getPermissionFlags(permName, packageName, user)
+            val granted = packageFlags and PackageInfo.REQUESTED_PERMISSION_GRANTED != 0 &&
+                permFlags and PackageManager.FLAG_PERMISSION_REVOKED_COMPAT == 0
+
+            if (job.isCancelled) {
+                return
+            }
+            permStates[permName] = PermState(permFlags, granted)
+        }
+
+        postValue(PackagePermStates(permInfos, permStates))
+    }
+
+    override fun onPermissionChange() {
+        updateAsync()
+    }
+
+    private fun checkForUidUpdate(packageInfo: LightPackageInfo?) {
+        if (packageInfo == null) {
+            registeredUid?.let {
+                PermissionListenerMultiplexer.removeCallback(it, this)
+            }
+            return
+        }
+        uid = packageInfo.uid
+        if (uid != registeredUid && hasActiveObservers()) {
+            PermissionListenerMultiplexer.addOrReplaceCallback(
+                registeredUid, packageInfo.uid, this)
+            registeredUid = uid
+        }
+    }
+
+    override fun onInactive() {
+        super.onInactive()
+        registeredUid?.let {
+            PermissionListenerMultiplexer.removeCallback(it, this)
+            registeredUid = null
+        }
+    }
+
+    override fun onActive() {
+        super.onActive()
+        uid?.let {
+            PermissionListenerMultiplexer.addCallback(it, this)
+            registeredUid = uid
+        }
+        updateAsync()
+    }
+
+    /**
+     * Repository for PackagePermStatesLiveDatas.
+     * <p> Key value is a string package name and UserHandle pair, value is its corresponding
+     * LiveData.
+     */
+    companion object : DataRepositoryForPackage<Pair<String, UserHandle>,
+        PackagePermStatesLiveData>() {
+        override fun newValue(key: Pair<String, UserHandle>): PackagePermStatesLiveData {
+            return PackagePermStatesLiveData(PermissionControllerApplication.get(),
+                key.first, key.second)
+        }
+    }
+}
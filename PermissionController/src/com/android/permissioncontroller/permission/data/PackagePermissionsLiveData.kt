@@ -17,12 +17,10 @@
 package com.android.permissioncontroller.permission.data
 
 import android.app.Application
-import android.content.pm.PackageManager
 import android.content.pm.PermissionInfo
 import android.os.Build
 import android.os.UserHandle
 import com.android.permissioncontroller.PermissionControllerApplication
-import com.android.permissioncontroller.permission.utils.Utils
 
 /**
  * LiveData with a map representing the runtime permissions a group requests and all of the
@@ -40,11 +38,12 @@ class PackagePermissionsLiveData private constructor(
     user: UserHandle
 ) : SmartUpdateMediatorLiveData<Map<String, List<String>>?>() {
 
-    private val packageInfoLiveData = LightPackageInfoLiveData[packageName, user]
+    private val packagePermInfosLiveData = PackagePermInfosLiveData[packageName, user]
 
     init {
-        addSource(packageInfoLiveData) {
-            if (packageInfoLiveData.isInitialized && packageInfoLiveData.value == null) {
+        addSource(packagePermInfosLiveData) {
+            if (packagePermInfosLiveData.isInitialized &&
+                packagePermInfosLiveData.value == null) {
                 invalidateSingle(packageName to user)
                 value = null
                 return@addSource
@@ -54,14 +53,11 @@ class PackagePermissionsLiveData private constructor(
     }
 
     override fun onUpdate() {
-        val packageInfo = packageInfoLiveData.value ?: return
+        val packagePermInfos = packagePermInfosLiveData.value ?: return
+        val packageInfo = packagePermInfos.packageInfo
         val permissionMap = mutableMapOf<String, MutableList<String>>()
         for (permName in packageInfo.requestedPermissions) {
-            val permInfo = try {
-                app.packageManager.getPermissionInfo(permName, 0)
-            } catch (e: PackageManager.NameNotFoundException) {
-                continue
-            }
+            val permInfo = packagePermInfos.permInfos[permName] ?: continue
 
             if (permInfo.flags and PermissionInfo.FLAG_INSTALLED == 0 ||
                 permInfo.flags and PermissionInfo.FLAG_REMOVED != 0) {
@@ -89,7 +85,7 @@ class PackagePermissionsLiveData private constructor(
                 continue
             }
 
-            val groupName = Utils.getGroupOfPermission(permInfo) ?: permInfo.name
+            val groupName = PackagePermInfosLiveData.getGroupOfPermission(permInfo)
             if (!permissionMap.containsKey(groupName)) {
                 permissionMap[groupName] = mutableListOf()
             }
@@ -22,6 +22,7 @@ import android.os.Build
 import android.os.UserHandle
 import androidx.lifecycle.LiveData
 import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
 import com.android.permissioncontroller.permission.model.livedatatypes.PermGroup
 import com.android.permissioncontroller.permission.utils.Utils.OS_PKG
 
@@ -33,25 +34,44 @@ import com.android.permissioncontroller.permission.utils.Utils.OS_PKG
  */
 class PermGroupsPackagesLiveData private constructor(
     private val app: Application,
-    groupNamesLiveData: LiveData<List<String>>
-) : SmartUpdateMediatorLiveData<Map<String, Set<Pair<String, UserHandle>>>>() {
+    private val groupNamesLiveData: LiveData<List<String>>
+) : SmartBackgroundMediatorLiveData<Map<String, Set<Pair<String, UserHandle>>>>() {
 
     private val packagesLiveData = AllPackageInfosLiveData
     private val permGroupLiveDatas = mutableMapOf<String, PermGroupLiveData>()
 
     private var groupNames = emptyList<String>()
 
+    /**
+     * Map<permission name, names of the groups which contain that permission>. Maintained
+     * incrementally from the values of the [PermGroupLiveData]s, so each package only needs a
+     * single pass over its requested permissions to be categorized. Replaced instead of modified,
+     * so updates can hand it to the background computation without copying it.
+     */
+    private var permToGroups = emptyMap<String, List<String>>()
+
+    /**
+     * The PermGroups which are currently reflected in [permToGroups]. Replaced instead of
+     * modified, like [permToGroups].
+     */
+    private var indexedGroups = emptyMap<String, PermGroup>()
+
     init {
         addSource(groupNamesLiveData) {
             groupNames = it ?: emptyList()
 
             val getLiveData = { groupName: String -> PermGroupLiveData[groupName] }
-            setSourcesToDifference(groupNames, permGroupLiveDatas, getLiveData) {
+            val (_, removed) = setSourcesToDifference(groupNames, permGroupLiveDatas,
+                getLiveData) { groupName ->
+                updateGroupIndex(groupName)
                 if (packagesLiveData.isInitialized &&
                     permGroupLiveDatas.all { it.value.isInitialized }) {
                     update()
                 }
             }
+            for (groupName in removed) {
+                updateGroupIndex(groupName)
+            }
         }
 
         addSource(packagesLiveData) {
@@ -62,42 +82,95 @@ class PermGroupsPackagesLiveData private constructor(
     }
 
     /**
-     * Using the current list of permission groups, go through all packages in the system,
-     * and figure out which permission groups they have permissions for. If applicable, remove
-     * any lone-permission permission that are not requested by any packages.
+     * Update the entries of a single permission group in the permission to group index.
+     *
+     * @param groupName The name of the group whose PermGroupLiveData changed
      */
-    override fun onUpdate() {
-        if (groupNames.isEmpty()) {
+    private fun updateGroupIndex(groupName: String) {
+        val newGroup = permGroupLiveDatas[groupName]?.value?.takeIf { it.hasRuntimePermissions }
+        val oldGroup = indexedGroups[groupName]
+        if (newGroup == oldGroup) {
             return
         }
 
+        val newPermToGroups = permToGroups.toMutableMap()
+        oldGroup?.permissionInfos?.keys?.forEach { permName ->
+            val groups = newPermToGroups[permName]?.minus(groupName) ?: return@forEach
+            if (groups.isEmpty()) {
+                newPermToGroups.remove(permName)
+            } else {
+                newPermToGroups[permName] = groups
+            }
+        }
+
+        if (newGroup == null) {
+            indexedGroups = indexedGroups - groupName
+        } else {
+            indexedGroups = indexedGroups + (groupName to newGroup)
+            for (permName in newGroup.permissionInfos.keys) {
+                newPermToGroups[permName] = (newPermToGroups[permName] ?: emptyList()) + groupName
+            }
+        }
+        permToGroups = newPermToGroups
+    }
+
+    override fun snapshotSources(): (() -> Map<String, Set<Pair<String, UserHandle>>>)? {
+        if (groupNames.isEmpty()) {
+            return null
+        }
+        val allPackages = packagesLiveData.value ?: return null
+
+        val groupNames = groupNames
+        val groups = indexedGroups
+        val permToGroups = permToGroups
+        return { categorizePackages(groupNames, groups, permToGroups, allPackages) }
+    }
+
+    override fun areSourcesOutOfDate(): Boolean {
+        return packagesLiveData.isOutOfDate ||
+            (groupNamesLiveData as? SmartUpdateMediatorLiveData<*>)?.isOutOfDate == true
+    }
+
+    /**
+     * Using the given list of permission groups, go through all packages in the system,
+     * and figure out which permission groups they have permissions for. If applicable, remove
+     * any lone-permission permission that are not requested by any packages.
+     *
+     * @param groupNames The names of the permission groups to track
+     * @param groups The permission groups with runtime permissions, by name
+     * @param permToGroups The names of the groups which contain each permission
+     * @param allPackages All packages, by user
+     *
+     * @return The packages which request a permission of each group, by group name
+     */
+    private fun categorizePackages(
+        groupNames: List<String>,
+        groups: Map<String, PermGroup>,
+        permToGroups: Map<String, List<String>>,
+        allPackages: Map<UserHandle, List<LightPackageInfo>>
+    ): Map<String, Set<Pair<String, UserHandle>>> {
         val groupApps = mutableMapOf<String, MutableSet<Pair<String, UserHandle>>>()
         val permGroups = mutableListOf<PermGroup>()
         for (groupName in groupNames) {
-            val permGroup = permGroupLiveDatas[groupName]?.value
-            if (permGroup == null || !permGroup.hasRuntimePermissions) {
-                continue
-            }
+            val permGroup = groups[groupName] ?: continue
             permGroups.add(permGroup)
             groupApps[groupName] = mutableSetOf()
         }
 
-        val allPackages = packagesLiveData.value ?: return
         for ((userHandle, packageInfos) in allPackages) {
             for (packageInfo in packageInfos) {
                 val isPreMApp = packageInfo.targetSdkVersion < Build.VERSION_CODES.M
 
-                for ((groupInfo, permissionInfos) in permGroups) {
-                    // Do not allow toggling non-platform permission groups for legacy apps via app
-                    // ops.
-                    if (isPreMApp && groupInfo.packageName != OS_PKG) {
-                        continue
-                    }
-                    // Categorize all requested permissions of this package
-                    for (permissionName in packageInfo.requestedPermissions) {
-                        if (permissionInfos.containsKey(permissionName)) {
-                            groupApps[groupInfo.name]?.add(packageInfo.packageName to userHandle)
+                // Categorize all requested permissions of this package
+                for (permissionName in packageInfo.requestedPermissions) {
+                    val permGroupNames = permToGroups[permissionName] ?: continue
+                    for (groupName in permGroupNames) {
+                        // Do not allow toggling non-platform permission groups for legacy apps
+                        // via app ops.
+                        if (isPreMApp && groups[groupName]?.groupInfo?.packageName != OS_PKG) {
+                            continue
                         }
+                        groupApps[groupName]?.add(packageInfo.packageName to userHandle)
                     }
                 }
             }
@@ -117,7 +190,7 @@ class PermGroupsPackagesLiveData private constructor(
             }
         }
 
-        value = groupApps
+        return groupApps
     }
 
     companion object {
@@ -99,6 +99,7 @@ class PermGroupsPackagesUiInfoLiveData(
                 null
             }
         }
-        value = allPackageData.toMap()
+        setDerivedValue(allPackageData.toMap(),
+            permGroupPackagesLiveDatas.any { it.value.isOutOfDate })
     }
 }
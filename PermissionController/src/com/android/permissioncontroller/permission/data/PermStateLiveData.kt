@@ -21,7 +21,6 @@ import android.content.pm.PackageInfo
 import android.content.pm.PackageManager
 import android.os.UserHandle
 import com.android.permissioncontroller.PermissionControllerApplication
-import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
 import com.android.permissioncontroller.permission.model.livedatatypes.PermState
 import com.android.permissioncontroller.permission.utils.Utils
 import kotlinx.coroutines.Job
@@ -42,19 +41,14 @@ class PermStateLiveData private constructor(
     private val packageName: String,
     private val permGroupName: String,
     private val user: UserHandle
-) : SmartAsyncMediatorLiveData<Map<String, PermState>>(),
-    PermissionListenerMultiplexer.PermissionChangeCallback {
+) : SmartAsyncMediatorLiveData<Map<String, PermState>>() {
 
     private val context = Utils.getUserContext(app, user)
-    private val packageInfoLiveData = LightPackageInfoLiveData[packageName, user]
+    private val packagePermStatesLiveData = PackagePermStatesLiveData[packageName, user]
     private val groupLiveData = PermGroupLiveData[permGroupName]
 
-    private var uid: Int? = null
-    private var registeredUid: Int? = null
-
     init {
-        addSource(packageInfoLiveData) {
-            checkForUidUpdate(it)
+        addSource(packagePermStatesLiveData) {
             updateAsync()
         }
 
@@ -64,74 +58,52 @@ class PermStateLiveData private constructor(
     }
 
     /**
-     * Gets the system flags from the package manager, and the grant state from those flags, plus
-     * the RequestedPermissionFlags of the PermState.
+     * Projects the permission states of this group out of the [PackagePermStatesLiveData]. The
+     * system flags are only loaded here for requested permissions of the group the snapshot does
+     * not know of, e.g. because the permission was defined after the snapshot was taken.
      */
     override suspend fun loadDataAndPostValue(job: Job) {
-        if (!packageInfoLiveData.isInitialized || !groupLiveData.isInitialized) {
+        if (!packagePermStatesLiveData.isInitialized || !groupLiveData.isInitialized) {
             return
         }
 
-        val packageInfo = packageInfoLiveData.value
+        val packagePermStates = packagePermStatesLiveData.value
         val permissionGroup = groupLiveData.value
-        if (packageInfo == null || permissionGroup == null) {
+        if (packagePermStates == null || permissionGroup == null) {
             invalidateSingle(Triple(packageName, permGroupName, user))
             postValue(null)
             return
         }
-        val permissionStates = mutableMapOf<String, PermState>()
-        for ((index, permissionName) in packageInfo.requestedPermissions.withIndex()) {
+        val packageInfo = packagePermStates.packageInfo
+        val permissionStates = packagePermStates.getGroupPermStates(permGroupName)
+            .filterKeys { it in permissionGroup.permissionInfos }.toMutableMap()
+        for (permInfo in permissionGroup.permissionInfos.values) {
+            if (permInfo.name in permissionStates ||
+                permInfo.name !in packageInfo.requestedPermissions) {
+                continue
+            }
 
-            permissionGroup.permissionInfos[permissionName]?.let { permInfo ->
-                val packageFlags = packageInfo.requestedPermissionsFlags[index]
+            val permState = packagePermStates.permStates[permInfo.name] ?: run {
+                val packageFlags = packageInfo.requestedPermissionsFlags[
+                    packageInfo.requestedPermissions.indexOf(permInfo.name)]
                 val permFlags = context.packageManager.getPermissionFlags(permInfo.name,
                     packageName, user)
                 val granted = packageFlags and PackageInfo.REQUESTED_PERMISSION_GRANTED != 0 &&
                     permFlags and PackageManager.FLAG_PERMISSION_REVOKED_COMPAT == 0
-
-                if (job.isCancelled) {
-                    return
-                }
-                permissionStates[permissionName] = PermState(permFlags, granted)
+                PermState(permFlags, granted)
             }
-        }
-
-        postValue(permissionStates)
-    }
-
-    override fun onPermissionChange() {
-        updateAsync()
-    }
 
-    private fun checkForUidUpdate(packageInfo: LightPackageInfo?) {
-        if (packageInfo == null) {
-            registeredUid?.let {
-                PermissionListenerMultiplexer.removeCallback(it, this)
+            if (job.isCancelled) {
+                return
             }
-            return
-        }
-        uid = packageInfo.uid
-        if (uid != registeredUid && hasActiveObservers()) {
-            PermissionListenerMultiplexer.addOrReplaceCallback(
-                registeredUid, packageInfo.uid, this)
-            registeredUid = uid
+            permissionStates[permInfo.name] = permState
         }
-    }
 
-    override fun onInactive() {
-        super.onInactive()
-        registeredUid?.let {
-            PermissionListenerMultiplexer.removeCallback(it, this)
-            registeredUid = null
-        }
+        postValue(permissionStates)
     }
 
     override fun onActive() {
         super.onActive()
-        uid?.let {
-            PermissionListenerMultiplexer.addCallback(it, this)
-            registeredUid = uid
-        }
         updateAsync()
     }
 
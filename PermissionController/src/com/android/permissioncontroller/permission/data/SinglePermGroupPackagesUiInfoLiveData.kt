@@ -71,7 +71,7 @@ class SinglePermGroupPackagesUiInfoLiveData private constructor(
 
             if (thisPermGroupPackages.isEmpty()) {
                 permGroupLiveData.value?.groupInfo?.let {
-                    value = emptyMap()
+                    setDerivedValue(emptyMap(), permGroupPackagesLiveData.isOutOfDate)
                 }
             }
         }
@@ -99,7 +99,7 @@ class SinglePermGroupPackagesUiInfoLiveData private constructor(
 
             if (appPermGroupLiveDatas.all { entry -> entry.value.isInitialized }) {
                 permGroupLiveData.value?.groupInfo?.let {
-                    value = shownPackages.toMap()
+                    setShownPackages()
                 }
             }
         }
@@ -110,11 +110,16 @@ class SinglePermGroupPackagesUiInfoLiveData private constructor(
 
         if (appPermGroupLiveDatas.all { entry -> entry.value.isInitialized }) {
             permGroupLiveData.value?.groupInfo?.let {
-                value = shownPackages.toMap()
+                setShownPackages()
             }
         }
     }
 
+    private fun setShownPackages() {
+        setDerivedValue(shownPackages.toMap(), permGroupPackagesLiveData.isOutOfDate ||
+            appPermGroupLiveDatas.any { entry -> entry.value.isOutOfDate })
+    }
+
     /**
      * Repository for SinglePermGroupPackagesUiInfoLiveData objects.
      * <p> Key value is a string permission group name, value is its corresponding LiveData.
@@ -35,6 +35,14 @@ abstract class SmartAsyncMediatorLiveData<T> : SmartUpdateMediatorLiveData<T>()
     @Volatile
     private var jobRunning = false
 
+    /**
+     * The source which triggered the queued and the running load, for [LiveDataUpdateTracer]
+     */
+    @Volatile
+    private var queuedTrigger: String? = null
+    @Volatile
+    private var loadTrigger: String? = null
+
     /**
      * The main function which will load data. It should periodically check isCancelled to see if
      * it should stop working. If data is loaded, it should call "postValue".
@@ -46,6 +54,10 @@ abstract class SmartAsyncMediatorLiveData<T> : SmartUpdateMediatorLiveData<T>()
     }
 
     open fun updateAsync() {
+        if (LiveDataUpdateTracer.isTracing) {
+            LiveDataUpdateTracer.getCurrentTrigger()?.let { queuedTrigger = it }
+        }
+
         if (jobRunning) {
             jobQueued = true
             return
@@ -53,6 +65,8 @@ abstract class SmartAsyncMediatorLiveData<T> : SmartUpdateMediatorLiveData<T>()
             jobRunning = true
         }
 
+        loadTrigger = queuedTrigger
+        queuedTrigger = null
         GlobalScope.launch(IPC) {
             currentJob = coroutineContext[Job]
             loadDataAndPostValue(currentJob!!)
@@ -68,6 +82,8 @@ abstract class SmartAsyncMediatorLiveData<T> : SmartUpdateMediatorLiveData<T>()
         }
     }
 
+    override fun getValueTrigger(): String? = loadTrigger
+
     override fun onInactive() {
         cancelJobIfRunning()
         jobQueued = false
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import androidx.annotation.MainThread
+import com.android.permissioncontroller.permission.utils.IPC
+import kotlinx.coroutines.Dispatchers.Main
+import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.launch
+
+/**
+ * A LiveData which, like a plain [SmartUpdateMediatorLiveData], derives its value from the values
+ * of its sources, but computes it on a background thread. On every update, the values of the
+ * sources are captured on the main thread, the new value is computed from this snapshot in the
+ * background, and only the resulting [setValue] happens on the main thread again.
+ *
+ * Results of an update are dropped if a newer update was started, or the value was set directly,
+ * in the meantime, so values are never set out of order.
+ */
+abstract class SmartBackgroundMediatorLiveData<T> : SmartUpdateMediatorLiveData<T>() {
+
+    /**
+     * Incremented for every update and every direct set, so older results can be recognized.
+     * Only modified on the main thread.
+     */
+    @Volatile
+    private var generation = 0L
+
+    /**
+     * The source which triggered the update whose result is currently being set, for
+     * [LiveDataUpdateTracer]. Only accessed on the main thread.
+     */
+    private var resultTrigger: String? = null
+
+    /**
+     * Capture the values needed to compute a new value. Must copy any mutable state, as the
+     * returned function runs on a background thread, concurrently with the main thread.
+     *
+     * @return A function computing the new value from the captured values, or null if no new
+     * value can be computed at the moment
+     */
+    @MainThread
+    protected abstract fun snapshotSources(): (() -> T)?
+
+    /**
+     * Whether any of the captured values is [out of date][isOutOfDate], in which case the computed
+     * value is set via [setStaleValue]. Checked together with [snapshotSources].
+     */
+    @MainThread
+    protected open fun areSourcesOutOfDate(): Boolean = false
+
+    final override fun onUpdate() {
+        val computeValue = snapshotSources() ?: return
+        val isSourceOutOfDate = areSourcesOutOfDate()
+        val updateGeneration = ++generation
+        val trigger = if (LiveDataUpdateTracer.isTracing) {
+            LiveDataUpdateTracer.getCurrentTrigger()
+        } else {
+            null
+        }
+
+        GlobalScope.launch(IPC) {
+            if (updateGeneration != generation) {
+                return@launch
+            }
+            val newValue = computeValue()
+            GlobalScope.launch(Main.immediate) {
+                if (updateGeneration == generation) {
+                    resultTrigger = trigger
+                    if (isSourceOutOfDate) {
+                        setStaleValue(newValue)
+                    } else {
+                        value = newValue
+                    }
+                    resultTrigger = null
+                }
+            }
+        }
+    }
+
+    override fun getValueTrigger(): String? = resultTrigger
+
+    @MainThread
+    override fun setValue(newValue: T?) {
+        generation++
+        super.setValue(newValue)
+    }
+}
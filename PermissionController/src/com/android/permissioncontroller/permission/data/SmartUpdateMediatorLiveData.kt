@@ -16,7 +16,6 @@
 
 package com.android.permissioncontroller.permission.data
 
-import android.util.Log
 import androidx.annotation.MainThread
 import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.Lifecycle.State
@@ -28,11 +27,16 @@ import androidx.lifecycle.MediatorLiveData
 import androidx.lifecycle.Observer
 import com.android.permissioncontroller.permission.utils.KotlinUtils
 import com.android.permissioncontroller.permission.utils.ensureMainThread
-import com.android.permissioncontroller.permission.utils.getInitializedValue
-import com.android.permissioncontroller.permission.utils.shortStackTrace
 import kotlinx.coroutines.Dispatchers.Main
 import kotlinx.coroutines.GlobalScope
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
 
 /**
  * A MediatorLiveData which tracks how long it has been inactive, compares new values before setting
@@ -43,7 +47,6 @@ abstract class SmartUpdateMediatorLiveData<T> : MediatorLiveData<T>(),
     DataRepository.InactiveTimekeeper {
 
     companion object {
-        const val DEBUG_UPDATES = false
         val LOG_TAG = SmartUpdateMediatorLiveData::class.java.simpleName
     }
 
@@ -52,6 +55,7 @@ abstract class SmartUpdateMediatorLiveData<T> : MediatorLiveData<T>(),
      * Differentiates between "null value because liveData is new" and "null value because
      * liveData is invalid"
      */
+    @Volatile
     var isInitialized = false
         private set
 
@@ -59,35 +63,86 @@ abstract class SmartUpdateMediatorLiveData<T> : MediatorLiveData<T>(),
      * Boolean, whether or not this liveData has a stale value or not. Every time the liveData goes
      * inactive, its data becomes stale, until it goes active again, and is explicitly set.
      */
+    @Volatile
     var isStale = true
         private set
 
+    /**
+     * Whether the value was set via [setStaleValue], e.g. restored from disk, and has not been
+     * confirmed by [setValue] since. Unlike [isStale], this does not change when the LiveData
+     * goes inactive.
+     */
+    @Volatile
+    var isOutOfDate = false
+        private set
+
     private val staleObservers = mutableListOf<Pair<LifecycleOwner, Observer<in T>>>()
 
-    private val sources = mutableListOf<SmartUpdateMediatorLiveData<*>>()
+    private val sources = mutableSetOf<SmartUpdateMediatorLiveData<*>>()
 
-    private val children =
-        mutableListOf<Triple<SmartUpdateMediatorLiveData<*>, Observer<in T>, Boolean>>()
+    /**
+     * A LiveData which has this LiveData as a source
+     *
+     * @param liveData The child LiveData
+     * @param observer The observer the child added to this LiveData
+     * @param sendStaleUpdates Whether the child wants to be notified when this LiveData stops
+     * being stale, even if the value did not change
+     */
+    private class Child<T>(
+        val liveData: SmartUpdateMediatorLiveData<*>,
+        val observer: Observer<in T>,
+        var sendStaleUpdates: Boolean
+    )
+
+    private val children = mutableMapOf<SmartUpdateMediatorLiveData<*>, Child<T>>()
+
+    /**
+     * The [children] which want stale updates. Replaced instead of modified, so it can be
+     * iterated while children are added or removed.
+     */
+    private var staleUpdateChildren = emptyList<Child<T>>()
 
     private val stacktraceExceptionMessage = "Caller of coroutine"
 
+    /**
+     * How often observers were notified of a new value, used by the [LiveDataUpdateTracer]
+     */
+    internal var numValueChanges = 0L
+        private set
+
     @MainThread
     override fun setValue(newValue: T?) {
         ensureMainThread()
 
+        if (LiveDataUpdateTracer.isTracing) {
+            LiveDataUpdateTracer.traceSetValue(this, getValueTrigger()) {
+                setValueAndNotify(newValue)
+            }
+        } else {
+            setValueAndNotify(newValue)
+        }
+    }
+
+    @MainThread
+    private fun setValueAndNotify(newValue: T?) {
         if (!isInitialized) {
             isInitialized = true
             isStale = false
             // If we have received an invalid value, and this is the first time we are set,
             // notify observers.
             if (newValue == null) {
+                numValueChanges++
                 super.setValue(newValue)
                 return
             }
         }
 
-        if (valueNotEqual(super.getValue(), newValue)) {
+        // Observers which ignore out of date values have to learn about the confirmed value, even
+        // if it did not change
+        if (valueNotEqual(super.getValue(), newValue) || isOutOfDate) {
             isStale = false
+            isOutOfDate = false
+            numValueChanges++
             super.setValue(newValue)
         } else if (isStale) {
             isStale = false
@@ -97,14 +152,87 @@ abstract class SmartUpdateMediatorLiveData<T> : MediatorLiveData<T>(),
                 observer.onChanged(newValue)
             }
 
-            for ((liveData, observer, shouldUpdate) in children.toList()) {
-                if (liveData.hasActiveObservers() && shouldUpdate) {
-                    observer.onChanged(newValue)
+            val staleUpdateChildren = staleUpdateChildren
+            for (i in staleUpdateChildren.indices) {
+                val child = staleUpdateChildren[i]
+                if (child.liveData.hasActiveObservers()) {
+                    LiveDataUpdateTracer.deliver(this) {
+                        child.observer.onChanged(newValue)
+                    }
                 }
             }
         }
     }
 
+    /**
+     * Get the source which caused the value which is set outside of an update to be loaded, for
+     * [LiveDataUpdateTracer].
+     *
+     * @return The name of the source, or null if unknown
+     */
+    internal open fun getValueTrigger(): String? = null
+
+    /**
+     * Set a value which is known to be out of date, e.g. one restored from disk. Observers are
+     * notified, but this LiveData stays [stale][isStale] and [out of date][isOutOfDate] until it
+     * is set via [setValue]. Consumers which must not act on out of date values should check
+     * [isOutOfDate], or pass it on via [setStaleValue].
+     *
+     * @param newValue The out of date value
+     */
+    @MainThread
+    protected fun setStaleValue(newValue: T?) {
+        ensureMainThread()
+
+        isInitialized = true
+        isStale = true
+        isOutOfDate = true
+        numValueChanges++
+        super.setValue(newValue)
+    }
+
+    /**
+     * Like [setStaleValue], but can be called from any thread. Like [postValue], the value is set
+     * on the main thread, in order with values posted before and after.
+     *
+     * @param newValue The out of date value
+     */
+    protected fun postStaleValue(newValue: T?) {
+        GlobalScope.launch(Main.immediate) {
+            setStaleValue(newValue)
+        }
+    }
+
+    /**
+     * Set a value computed from the values of sources. If any of these was
+     * [out of date][isOutOfDate], so is the computed value, and it is set via [setStaleValue].
+     *
+     * @param newValue The computed value
+     * @param isSourceOutOfDate Whether any value it was computed from was out of date
+     */
+    @MainThread
+    protected fun setDerivedValue(newValue: T?, isSourceOutOfDate: Boolean) {
+        if (isSourceOutOfDate) {
+            setStaleValue(newValue)
+        } else {
+            value = newValue
+        }
+    }
+
+    /**
+     * Like [setDerivedValue], but can be called from any thread.
+     *
+     * @param newValue The computed value
+     * @param isSourceOutOfDate Whether any value it was computed from was out of date
+     */
+    protected fun postDerivedValue(newValue: T?, isSourceOutOfDate: Boolean) {
+        if (isSourceOutOfDate) {
+            postStaleValue(newValue)
+        } else {
+            postValue(newValue)
+        }
+    }
+
     /**
      * Update the value of this LiveData.
      *
@@ -112,10 +240,11 @@ abstract class SmartUpdateMediatorLiveData<T> : MediatorLiveData<T>(),
      */
     @MainThread
     fun update() {
-        if (DEBUG_UPDATES) {
-            Log.i(LOG_TAG, "update ${javaClass.simpleName} ${shortStackTrace()}")
+        if (LiveDataUpdateTracer.isTracing) {
+            LiveDataUpdateTracer.traceUpdate(this) { onUpdate() }
+        } else {
+            onUpdate()
         }
-        onUpdate()
     }
 
     @MainThread
@@ -161,16 +290,21 @@ abstract class SmartUpdateMediatorLiveData<T> : MediatorLiveData<T>(),
         val exception = e ?: IllegalStateException(stacktraceExceptionMessage)
 
         GlobalScope.launch(Main.immediate) {
+            // Only the values of smart sources are traced, as they are never added twice, and
+            // hence their observer can be wrapped
+            var observer = onChanged
             if (source is SmartUpdateMediatorLiveData) {
                 if (source in sources) {
                     return@launch
                 }
-                source.addChild(this@SmartUpdateMediatorLiveData, onChanged,
-                    staleObservers.isNotEmpty() || children.any { it.third })
+                source.addChild(this@SmartUpdateMediatorLiveData, onChanged, hasStaleObserver())
                 sources.add(source)
+                observer = Observer<S> { newValue ->
+                    LiveDataUpdateTracer.deliver(source) { onChanged.onChanged(newValue) }
+                }
             }
             try {
-                super.addSource(source, onChanged)
+                super.addSource(source, observer)
             } catch (other: IllegalStateException) {
                 throw other.apply { initCause(exception) }
             }
@@ -244,8 +378,11 @@ abstract class SmartUpdateMediatorLiveData<T> : MediatorLiveData<T>(),
     }
 
     @MainThread
-    private fun <S : Any?> removeChild(liveData: LiveData<S>) {
-        children.removeIf { it.first == liveData }
+    private fun <S : Any?> removeChild(liveData: SmartUpdateMediatorLiveData<S>) {
+        val child = children.remove(liveData) ?: return
+        if (child.sendStaleUpdates) {
+            staleUpdateChildren = staleUpdateChildren - child
+        }
     }
 
     @MainThread
@@ -254,7 +391,13 @@ abstract class SmartUpdateMediatorLiveData<T> : MediatorLiveData<T>(),
         onChanged: Observer<in T>,
         sendStaleUpdates: Boolean
     ) {
-        children.add(Triple(liveData, onChanged, sendStaleUpdates))
+        removeChild(liveData)
+
+        val child = Child(liveData, onChanged, sendStaleUpdates)
+        children[liveData] = child
+        if (sendStaleUpdates) {
+            staleUpdateChildren = staleUpdateChildren + child
+        }
     }
 
     @MainThread
@@ -262,10 +405,16 @@ abstract class SmartUpdateMediatorLiveData<T> : MediatorLiveData<T>(),
         liveData: SmartUpdateMediatorLiveData<S>,
         sendStaleUpdates: Boolean
     ) {
-        for ((idx, childTriple) in children.withIndex()) {
-            if (childTriple.first == liveData) {
-                children[idx] = Triple(liveData, childTriple.second, sendStaleUpdates)
-            }
+        val child = children[liveData] ?: return
+        if (child.sendStaleUpdates == sendStaleUpdates) {
+            return
+        }
+
+        child.sendStaleUpdates = sendStaleUpdates
+        staleUpdateChildren = if (sendStaleUpdates) {
+            staleUpdateChildren + child
+        } else {
+            staleUpdateChildren - child
         }
     }
 
@@ -307,7 +456,7 @@ abstract class SmartUpdateMediatorLiveData<T> : MediatorLiveData<T>(),
     }
 
     private fun hasStaleObserver(): Boolean {
-        return staleObservers.isNotEmpty() || children.any { it.third }
+        return staleObservers.isNotEmpty() || staleUpdateChildren.isNotEmpty()
     }
 
     override fun onActive() {
@@ -322,20 +471,60 @@ abstract class SmartUpdateMediatorLiveData<T> : MediatorLiveData<T>(),
     }
 
     /**
-     * Get the [initialized][isInitialized] value, suspending until one is available
+     * Get the [initialized][isInitialized] value, suspending until one is available. If a usable
+     * value is already set, it is returned right away, without switching to the main thread.
      *
      * @param staleOk whether [isStale] value is ok to return
-     * @param forceUpdate whether to call [update] (usually triggers an IPC)
+     * @param forceUpdate whether to call [update] (usually triggers an IPC) if no usable value is
+     * set yet
      */
     suspend fun getInitializedValue(staleOk: Boolean = false, forceUpdate: Boolean = false): T {
-        return getInitializedValue(
-            observe = { observer ->
+        return asFlow(staleOk, forceUpdate).first()
+    }
+
+    /**
+     * Get a [Flow] of the values of this LiveData. Only [initialized][isInitialized] values are
+     * emitted, and, unless [staleOk], only values which are not [stale][isStale]. While the flow
+     * is collected, this LiveData is observed, and hence active.
+     *
+     * If a usable value is already set when collection starts, it is emitted right away, without
+     * switching to the main thread. The flow is conflated: a slow collector only receives the
+     * latest value, instead of queueing up every intermediate one.
+     *
+     * @param staleOk whether [isStale] values are ok to emit
+     * @param forceUpdate whether to call [update] (usually triggers an IPC) once observed
+     */
+    fun asFlow(staleOk: Boolean = false, forceUpdate: Boolean = false): Flow<T> {
+        val isUsable = { isInitialized && (staleOk || !isStale) }
+
+        return flow {
+            if (isUsable()) {
+                emit(value as T)
+            }
+
+            val values = Channel<T>(Channel.CONFLATED)
+            val observer = Observer<T> { newValue ->
+                if (isUsable()) {
+                    values.offer(newValue)
+                }
+            }
+
+            withContext(Main.immediate) {
                 observeStale(ForeverActiveLifecycle, observer)
                 if (forceUpdate || (!staleOk && isStale)) {
                     update()
                 }
-            },
-            isInitialized = { isInitialized && (staleOk || !isStale) })
+            }
+            try {
+                for (newValue in values) {
+                    emit(newValue)
+                }
+            } finally {
+                withContext(NonCancellable + Main.immediate) {
+                    removeObserver(observer)
+                }
+            }
+        }.distinctUntilChanged()
     }
 
     /**
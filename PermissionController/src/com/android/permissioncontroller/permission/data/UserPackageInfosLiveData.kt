@@ -19,11 +19,23 @@ package com.android.permissioncontroller.permission.data
 import android.app.Application
 import android.content.pm.PackageManager.GET_PERMISSIONS
 import android.content.pm.PackageManager.MATCH_ALL
+import android.os.SystemClock
 import android.os.UserHandle
 import android.util.Log
 import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.PermissionControllerProto.UserPackageLoadProto
 import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.android.permissioncontroller.permission.utils.IPC
+import kotlinx.coroutines.Dispatchers.Main
+import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.Job
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
+import kotlinx.coroutines.withContext
+import java.util.concurrent.ConcurrentHashMap
 
 /**
  * A LiveData which tracks all of the packageinfos installed for a given user.
@@ -43,6 +55,27 @@ class UserPackageInfosLiveData private constructor(
      */
     var permChangeStale = false
 
+    /**
+     * The packages last written to the [UserPackageInfosSnapshot]
+     */
+    @Volatile
+    private var persistedPackageInfos: List<LightPackageInfo>? = null
+
+    private val snapshotLock = Any()
+
+    /**
+     * The [system state][UserPackageInfosSnapshot.getSystemState] and packages of the last load,
+     * if they still have to be written to the [UserPackageInfosSnapshot]. Guarded by
+     * [snapshotLock].
+     */
+    private var pendingSnapshot: Pair<Pair<Int, String>, List<LightPackageInfo>>? = null
+
+    /**
+     * The job writing the [pendingSnapshot] once [SNAPSHOT_WRITE_DELAY_MILLIS] passed. Guarded by
+     * [snapshotLock].
+     */
+    private var snapshotWriteJob: Job? = null
+
     override fun onPackageUpdate(packageName: String) {
         updateAsync()
     }
@@ -78,10 +111,93 @@ class UserPackageInfosLiveData private constructor(
         // TODO ntmyren: remove once b/154796729 is fixed
         Log.i("UserPackageInfos", "updating UserPackageInfosLiveData for user " +
             "${user.identifier}")
-        val packageInfos = app.applicationContext.packageManager
-            .getInstalledPackagesAsUser(GET_PERMISSIONS or MATCH_ALL, user.identifier)
+        val loadStart = SystemClock.elapsedRealtime()
+        val systemState = UserPackageInfosSnapshot.getSystemState(user)
+        // Waiting for a permit must not throw if the job is cancelled, as that would leave the
+        // job marked as running
+        val packageInfos = withContext(NonCancellable) {
+            loadSemaphore.withPermit {
+                app.applicationContext.packageManager
+                    .getInstalledPackagesAsUser(GET_PERMISSIONS or MATCH_ALL, user.identifier)
+                    .map { packageInfo -> LightPackageInfo(packageInfo) }
+            }
+        }
+        val loadDuration = SystemClock.elapsedRealtime() - loadStart
+        lastLoads[user.identifier] = UserPackageLoadProto.newBuilder()
+            .setUserId(user.identifier)
+            .setNumPackages(packageInfos.size)
+            .setDurationMillis(loadDuration)
+            .build()
+        Log.i("UserPackageInfos", "loaded ${packageInfos.size} packages for user " +
+            "${user.identifier} in ${loadDuration}ms")
+
+        postValue(packageInfos)
+
+        if (packageInfos != persistedPackageInfos) {
+            scheduleSnapshotWrite(systemState, packageInfos)
+        }
+    }
 
-        postValue(packageInfos.map { packageInfo -> LightPackageInfo(packageInfo) })
+    /**
+     * Write loaded packages to the [UserPackageInfosSnapshot] once [SNAPSHOT_WRITE_DELAY_MILLIS]
+     * passed, or this LiveData goes inactive. Packages loaded in the meantime replace them, so
+     * frequent package changes rewrite the snapshot at most once per delay.
+     *
+     * @param systemState The system state from before the packages were loaded
+     * @param packageInfos The loaded packages
+     */
+    private fun scheduleSnapshotWrite(
+        systemState: Pair<Int, String>,
+        packageInfos: List<LightPackageInfo>
+    ) {
+        synchronized(snapshotLock) {
+            pendingSnapshot = systemState to packageInfos
+            if (snapshotWriteJob == null) {
+                snapshotWriteJob = GlobalScope.launch(IPC) {
+                    delay(SNAPSHOT_WRITE_DELAY_MILLIS)
+                    writePendingSnapshot()
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the [pendingSnapshot], if any. Performs disk I/O, do not call from the main thread.
+     */
+    private fun writePendingSnapshot() {
+        val (systemState, packageInfos) = synchronized(snapshotLock) {
+            val snapshot = pendingSnapshot
+            pendingSnapshot = null
+            snapshotWriteJob = null
+            snapshot
+        } ?: return
+
+        if (packageInfos != persistedPackageInfos) {
+            UserPackageInfosSnapshot.write(user, systemState, packageInfos)
+            persistedPackageInfos = packageInfos
+        }
+    }
+
+    /**
+     * If no value was loaded yet, post the persisted packages of the last process as a stale
+     * value, so UIs can show content while the packages are reloaded.
+     */
+    private fun loadSnapshot() {
+        GlobalScope.launch(IPC) {
+            val packageInfos = UserPackageInfosSnapshot.read(user) ?: return@launch
+            persistedPackageInfos = packageInfos
+            GlobalScope.launch(Main.immediate) {
+                if (!isInitialized) {
+                    setStaleValue(packageInfos)
+                    if (hasActiveObservers()) {
+                        for (packageInfo in packageInfos) {
+                            PermissionListenerMultiplexer.addCallback(packageInfo.uid,
+                                this@UserPackageInfosLiveData)
+                        }
+                    }
+                }
+            }
+        }
     }
 
     override fun onActive() {
@@ -93,6 +209,9 @@ class UserPackageInfosLiveData private constructor(
             PermissionListenerMultiplexer.addCallback(packageInfo.uid, this)
         }
 
+        if (!isInitialized) {
+            loadSnapshot()
+        }
         updateAsync()
     }
 
@@ -104,6 +223,11 @@ class UserPackageInfosLiveData private constructor(
         }
 
         PackageBroadcastReceiver.removeAllCallback(this)
+
+        // The process might be killed soon after the UI is gone
+        GlobalScope.launch(IPC) {
+            writePendingSnapshot()
+        }
     }
 
     /**
@@ -111,6 +235,38 @@ class UserPackageInfosLiveData private constructor(
      * <p> Key value is a UserHandle, value is its corresponding LiveData.
      */
     companion object : DataRepository<UserHandle, UserPackageInfosLiveData>() {
+        /**
+         * The maximum number of users whose packages are loaded at the same time. Every load is a
+         * large binder transaction, and loading many users at once would take up the whole IPC
+         * pool.
+         */
+        private const val MAX_CONCURRENT_USER_LOADS = 3
+
+        /**
+         * How long loaded packages wait to be written to the [UserPackageInfosSnapshot]. Packages
+         * often change in bursts, e.g. during app updates, and every write rewrites the snapshot
+         * of all packages of the user.
+         */
+        private const val SNAPSHOT_WRITE_DELAY_MILLIS = 10_000L
+
+        private val loadSemaphore = Semaphore(MAX_CONCURRENT_USER_LOADS)
+
+        /**
+         * The last load of each user, by user id. Kept when the LiveDatas are dropped on low
+         * memory, so the dump shows how long the loads took.
+         */
+        private val lastLoads = ConcurrentHashMap<Int, UserPackageLoadProto>()
+
+        /**
+         * Get how the packages of each user were last loaded, e.g. to see which users are slow to
+         * load.
+         *
+         * @return the last load of each user whose packages were loaded since the process started
+         */
+        fun dumpLoads(): List<UserPackageLoadProto> {
+            return lastLoads.values.sortedBy { it.userId }
+        }
+
         override fun newValue(key: UserHandle): UserPackageInfosLiveData {
             return UserPackageInfosLiveData(PermissionControllerApplication.get(), key)
         }
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.os.Build
+import android.os.UserHandle
+import android.provider.Settings
+import android.util.AtomicFile
+import android.util.Log
+import com.android.permissioncontroller.Constants.PACKAGE_INFOS_SNAPSHOT_FILE_PREFIX
+import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.model.livedatatypes.IntArrayList
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPermInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.PermissionNameList
+import com.android.permissioncontroller.permission.utils.Utils
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+
+/**
+ * A persisted copy of the last [LightPackageInfo]s loaded for each user, so they can be shown
+ * right after the process started, while [UserPackageInfosLiveData] reloads them from the system.
+ *
+ * A snapshot is only returned if no package was changed since it was written, as reported by the
+ * package manager's change sequence number, in the same boot of the same build. Permission grants
+ * are not covered by this check, so a snapshot must always be treated as stale.
+ */
+object UserPackageInfosSnapshot {
+    private val LOG_TAG = UserPackageInfosSnapshot::class.java.simpleName
+
+    /**
+     * Version of the file format. Increase when changing the format, or [LightPackageInfo].
+     */
+    private const val VERSION = 1
+
+    private val app = PermissionControllerApplication.get()
+
+    private val lock = Any()
+
+    /**
+     * Get the state the system is currently in. If a snapshot written in a different state is
+     * read, it is dropped.
+     *
+     * @param user The user whose packages are snapshot
+     *
+     * @return The change sequence number of the package manager, and a fingerprint of the boot
+     */
+    fun getSystemState(user: UserHandle): Pair<Int, String> {
+        val userContext = Utils.getUserContext(app, user)
+        val sequenceNumber = userContext.packageManager.getChangedPackages(0)?.sequenceNumber ?: 0
+        val bootCount = Settings.Global.getInt(app.contentResolver, Settings.Global.BOOT_COUNT, -1)
+        return sequenceNumber to "${Build.FINGERPRINT}/$bootCount"
+    }
+
+    /**
+     * Read the snapshot of a user, if it is still valid. Performs disk I/O, do not call from the
+     * main thread.
+     *
+     * @param user The user whose packages should be read
+     *
+     * @return The persisted packages of the user, or null if there is no valid snapshot
+     */
+    fun read(user: UserHandle): List<LightPackageInfo>? {
+        if (!Utils.isPackageInfosSnapshotEnabled()) {
+            return null
+        }
+
+        synchronized(lock) {
+            try {
+                DataInputStream(BufferedInputStream(getFile(user).openRead())).use { input ->
+                    if (input.readInt() != VERSION) {
+                        return null
+                    }
+                    val sequenceNumber = input.readInt()
+                    if (input.readUTF() != getSystemState(user).second) {
+                        return null
+                    }
+                    val userContext = Utils.getUserContext(app, user)
+                    if (userContext.packageManager.getChangedPackages(sequenceNumber) != null) {
+                        return null
+                    }
+
+                    return List(input.readInt()) { readPackageInfo(input) }
+                }
+            } catch (e: FileNotFoundException) {
+                return null
+            } catch (e: IOException) {
+                Log.w(LOG_TAG, "Cannot read package infos snapshot of user ${user.identifier}", e)
+                getFile(user).delete()
+                return null
+            }
+        }
+    }
+
+    /**
+     * Persist the packages of a user. Performs disk I/O, do not call from the main thread.
+     *
+     * @param user The user whose packages should be written
+     * @param systemState The [system state][getSystemState] from before the packages were loaded
+     * @param packageInfos The packages of the user
+     */
+    fun write(
+        user: UserHandle,
+        systemState: Pair<Int, String>,
+        packageInfos: List<LightPackageInfo>
+    ) {
+        if (!Utils.isPackageInfosSnapshotEnabled()) {
+            return
+        }
+
+        synchronized(lock) {
+            val file = getFile(user)
+            val stream = try {
+                file.startWrite()
+            } catch (e: IOException) {
+                Log.w(LOG_TAG, "Cannot write package infos snapshot of user ${user.identifier}",
+                    e)
+                return
+            }
+
+            try {
+                val output = DataOutputStream(BufferedOutputStream(stream))
+                output.writeInt(VERSION)
+                output.writeInt(systemState.first)
+                output.writeUTF(systemState.second)
+                output.writeInt(packageInfos.size)
+                for (packageInfo in packageInfos) {
+                    writePackageInfo(output, packageInfo)
+                }
+                output.flush()
+                file.finishWrite(stream)
+            } catch (e: IOException) {
+                Log.w(LOG_TAG, "Cannot write package infos snapshot of user ${user.identifier}",
+                    e)
+                file.failWrite(stream)
+            }
+        }
+    }
+
+    private fun getFile(user: UserHandle): AtomicFile {
+        return AtomicFile(File(app.cacheDir,
+            PACKAGE_INFOS_SNAPSHOT_FILE_PREFIX + user.identifier))
+    }
+
+    private fun writePackageInfo(output: DataOutputStream, packageInfo: LightPackageInfo) {
+        output.writeUTF(packageInfo.packageName)
+        output.writeInt(packageInfo.permissions.size)
+        for (permInfo in packageInfo.permissions) {
+            output.writeUTF(permInfo.name)
+            output.writeUTF(permInfo.packageName)
+            writeNullableString(output, permInfo.group)
+            writeNullableString(output, permInfo.backgroundPermission)
+            output.writeInt(permInfo.protection)
+            output.writeInt(permInfo.protectionFlags)
+            output.writeInt(permInfo.flags)
+        }
+        output.writeInt(packageInfo.requestedPermissions.size)
+        for ((index, permName) in packageInfo.requestedPermissions.withIndex()) {
+            output.writeUTF(permName)
+            output.writeInt(packageInfo.requestedPermissionsFlags[index])
+        }
+        output.writeInt(packageInfo.uid)
+        output.writeInt(packageInfo.targetSdkVersion)
+        output.writeBoolean(packageInfo.isInstantApp)
+        output.writeBoolean(packageInfo.enabled)
+        output.writeInt(packageInfo.appFlags)
+        output.writeLong(packageInfo.firstInstallTime)
+    }
+
+    private fun readPackageInfo(input: DataInputStream): LightPackageInfo {
+        val packageName = input.readUTF()
+        val permissions = List(input.readInt()) {
+            LightPermInfo(input.readUTF(), input.readUTF(), readNullableString(input),
+                readNullableString(input), input.readInt(), input.readInt(), input.readInt())
+        }
+        val numRequestedPermissions = input.readInt()
+        val requestedPermissions = arrayOfNulls<String>(numRequestedPermissions)
+        val requestedPermissionsFlags = IntArray(numRequestedPermissions)
+        for (i in 0 until numRequestedPermissions) {
+            requestedPermissions[i] = input.readUTF()
+            requestedPermissionsFlags[i] = input.readInt()
+        }
+        return LightPackageInfo(packageName, permissions,
+            PermissionNameList(requestedPermissions.requireNoNulls()),
+            IntArrayList(requestedPermissionsFlags), input.readInt(), input.readInt(),
+            input.readBoolean(), input.readBoolean(), input.readInt(), input.readLong())
+    }
+
+    private fun writeNullableString(output: DataOutputStream, value: String?) {
+        output.writeBoolean(value != null)
+        if (value != null) {
+            output.writeUTF(value)
+        }
+    }
+
+    private fun readNullableString(input: DataInputStream): String? {
+        return if (input.readBoolean()) input.readUTF() else null
+    }
+}
@@ -25,11 +25,13 @@ import android.os.Process.INVALID_UID
 import android.os.UserHandle
 
 import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
 import com.android.permissioncontroller.permission.model.livedatatypes.UidSensitivityState
 import com.android.permissioncontroller.permission.utils.KotlinUtils
 import com.android.permissioncontroller.permission.utils.Utils
 import kotlinx.coroutines.Job
 import java.lang.IllegalArgumentException
+import java.util.concurrent.ConcurrentHashMap
 
 /**
  * Live data of the user sensitivity of either one uid, or all uids that belong to a user.
@@ -44,12 +46,16 @@ class UserSensitivityLiveData private constructor(
     private val app: Application,
     private val uid: Int,
     private val user: UserHandle
-) : SmartAsyncMediatorLiveData<Map<Int, UidSensitivityState>?>() {
+) : SmartAsyncMediatorLiveData<Map<Int, UidSensitivityState>?>(),
+    PackageManager.OnPermissionsChangedListener {
 
     private val context: Context
     private val packageLiveDatas = mutableMapOf<String, LightPackageInfoLiveData>()
     private val userPackageInfosLiveData = UserPackageInfosLiveData[user]
     private val getAllUids = uid == INVALID_UID
+    private val calculator = UidSensitivityCalculator { perm, packageName ->
+        context.packageManager.getPermissionFlags(perm, packageName, user)
+    }
 
     init {
         try {
@@ -71,7 +77,6 @@ class UserSensitivityLiveData private constructor(
     }
 
     override suspend fun loadDataAndPostValue(job: Job) {
-        val pm = context.packageManager
         if (!getAllUids) {
             val uidHasPackages = getAndObservePackageLiveDatas()
 
@@ -88,6 +93,10 @@ class UserSensitivityLiveData private constructor(
             }
         }
         val pkgs = if (getAllUids) {
+            // Packages restored from the last process might have out of date flags
+            if (userPackageInfosLiveData.isOutOfDate) {
+                return
+            }
             userPackageInfosLiveData.value ?: return
         } else {
             packageLiveDatas.mapNotNull { it.value.value }
@@ -95,72 +104,46 @@ class UserSensitivityLiveData private constructor(
         if (job.isCancelled) {
             return
         }
-
-        // map of <uid, userSensitiveState>
-        val sensitiveStatePerUid = mutableMapOf<Int, UidSensitivityState>()
-
-        // TODO ntmyren: Figure out how to get custom runtime permissions in a less costly manner
-        val runtimePerms = Utils.getRuntimePlatformPermissionNames()
-
-        for (pkg in pkgs) {
-            // sensitivityState for one uid
-            val userSensitiveState = sensitiveStatePerUid.getOrPut(pkg.uid) {
-                UidSensitivityState(mutableSetOf(), mutableMapOf())
-            }
-            userSensitiveState.packages.add(pkg)
-
-            val pkgHasLauncherIcon = if (getAllUids) {
-                // The launcher packages set will only be null when it is uninitialized.
-                LauncherPackagesLiveData.value?.contains(pkg.packageName) ?: return
-            } else {
+        val hasLauncherIcon = if (getAllUids) {
+            // The launcher packages set will only be null when it is uninitialized.
+            val launcherPkgs = LauncherPackagesLiveData.value ?: return
+            { pkg: LightPackageInfo -> launcherPkgs.contains(pkg.packageName) }
+        } else {
+            { pkg: LightPackageInfo ->
                 KotlinUtils.packageHasLaunchIntent(context, pkg.packageName)
             }
-            val pkgIsSystemApp = pkg.appFlags and ApplicationInfo.FLAG_SYSTEM != 0
-            // Iterate through all runtime perms, setting their keys
-            for (perm in pkg.requestedPermissions.intersect(runtimePerms)) {
-                /*
-                 * Permissions are considered user sensitive for a package, when
-                 * - the package has a launcher icon, or
-                 * - the permission is not pre-granted, or
-                 * - the package is not a system app (i.e. not preinstalled)
-                 */
-                var flags = if (pkgIsSystemApp && !pkgHasLauncherIcon) {
-                    val permGrantedByDefault = pm.getPermissionFlags(perm, pkg.packageName,
-                        user) and PackageManager.FLAG_PERMISSION_GRANTED_BY_DEFAULT != 0
+        }
 
-                    if (permGrantedByDefault) {
-                        0
-                    } else {
-                        PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED
-                    }
-                } else {
-                    Utils.FLAGS_ALWAYS_USER_SENSITIVE
-                }
+        val sensitiveStatePerUid = calculator.calculate(pkgs, hasLauncherIcon) {
+            job.isCancelled
+        } ?: return
+        postValue(sensitiveStatePerUid)
+    }
 
-                /*
-                 * If two packages share a UID there can be two cases:
-                 * - for well known UIDs: if the permission for any package is non-user sensitive,
-                 *                        it is non-sensitive. I.e. prefer to hide
-                 * - for non system UIDs: if the permission for any package is user sensitive, it is
-                 *                        user sensitive. I.e. prefer to show
-                 */
-                val previousFlags = userSensitiveState.permStates[perm]
-                if (previousFlags != null) {
-                    flags = if (pkg.uid < Process.FIRST_APPLICATION_UID) {
-                        flags and previousFlags
-                    } else {
-                        flags or previousFlags
-                    }
-                }
+    /**
+     * The flags of the permissions of the uid might have changed, which the packages do not
+     * reflect, hence the uid has to be recalculated.
+     */
+    override fun onPermissionsChanged(changedUid: Int) {
+        if (!getAllUids && changedUid != uid ||
+            UserHandle.getUserHandleForUid(changedUid) != user) {
+            return
+        }
 
-                userSensitiveState.permStates[perm] = flags
-            }
+        calculator.invalidateUid(changedUid)
+        updateAsync()
+    }
 
-            if (job.isCancelled) {
-                return
-            }
-        }
-        postValue(sensitiveStatePerUid)
+    override fun onActive() {
+        super.onActive()
+        app.packageManager.addOnPermissionsChangeListener(this)
+    }
+
+    override fun onInactive() {
+        super.onInactive()
+        app.packageManager.removeOnPermissionsChangeListener(this)
+        // Changes are not tracked while inactive
+        calculator.invalidateAll()
     }
 
     private fun getAndObservePackageLiveDatas(): Boolean {
@@ -208,3 +191,170 @@ class UserSensitivityLiveData private constructor(
         }
     }
 }
+
+/**
+ * Calculates the [UidSensitivityState] of a set of uids. The result of every uid is kept, and only
+ * recalculated when the packages of the uid, or their launcher status, changed since the last
+ * calculation, or when the uid was invalidated. Not thread safe, calls to [calculate] must be
+ * serialized.
+ *
+ * @param getPermissionFlags Gets the system flags of a permission (first) for a package (second)
+ */
+class UidSensitivityCalculator(
+    private val getPermissionFlags: (String, String) -> Int
+) {
+    /**
+     * Map<uid, the packages of the uid and whether each has a launcher icon>, the inputs of
+     * the last calculation for every uid
+     */
+    private val uidInputs = mutableMapOf<Int, List<Pair<LightPackageInfo, Boolean>>>()
+    private val uidStates = mutableMapOf<Int, UidSensitivityState>()
+
+    /**
+     * Uids whose permission flags changed since the last calculation, set from any thread
+     */
+    private val invalidatedUids: MutableSet<Int> = ConcurrentHashMap.newKeySet()
+    @Volatile
+    private var isAllInvalidated = false
+
+    /**
+     * The number of uids which were recalculated by the last call to [calculate]
+     */
+    var numRecalculatedUids = 0
+        private set
+
+    /**
+     * Recalculate a uid on the next [calculate], as the flags of its permissions changed. Can be
+     * called from any thread.
+     *
+     * @param uid The uid to recalculate
+     */
+    fun invalidateUid(uid: Int) {
+        invalidatedUids.add(uid)
+    }
+
+    /**
+     * Recalculate all uids on the next [calculate]. Can be called from any thread.
+     */
+    fun invalidateAll() {
+        isAllInvalidated = true
+    }
+
+    /**
+     * Calculate the user sensitivity of every uid of the given packages.
+     *
+     * @param pkgs All packages whose uids should be calculated
+     * @param hasLauncherIcon Whether a package has a launcher icon
+     * @param isCancelled Whether the calculation should be abandoned
+     *
+     * @return A map <uid, user sensitive state>, or null if the calculation was cancelled
+     */
+    fun calculate(
+        pkgs: List<LightPackageInfo>,
+        hasLauncherIcon: (LightPackageInfo) -> Boolean,
+        isCancelled: () -> Boolean = { false }
+    ): Map<Int, UidSensitivityState>? {
+        val pkgsPerUid = mutableMapOf<Int, MutableList<Pair<LightPackageInfo, Boolean>>>()
+        for (pkg in pkgs) {
+            pkgsPerUid.getOrPut(pkg.uid) { mutableListOf() }.add(pkg to hasLauncherIcon(pkg))
+        }
+
+        if (isAllInvalidated) {
+            isAllInvalidated = false
+            invalidatedUids.clear()
+            uidStates.clear()
+        }
+        val invalidatedIterator = invalidatedUids.iterator()
+        while (invalidatedIterator.hasNext()) {
+            uidStates.remove(invalidatedIterator.next())
+            invalidatedIterator.remove()
+        }
+
+        uidInputs.keys.retainAll(pkgsPerUid.keys)
+        uidStates.keys.retainAll(pkgsPerUid.keys)
+
+        numRecalculatedUids = 0
+        // map of <uid, userSensitiveState>
+        val sensitiveStatePerUid = mutableMapOf<Int, UidSensitivityState>()
+        for ((uid, uidPkgs) in pkgsPerUid) {
+            val cachedState = uidStates[uid]
+            if (cachedState != null && uidInputs[uid] == uidPkgs) {
+                sensitiveStatePerUid[uid] = cachedState
+                continue
+            }
+
+            val uidState = calculateUid(uid, uidPkgs)
+            if (isCancelled()) {
+                return null
+            }
+            numRecalculatedUids++
+            uidInputs[uid] = uidPkgs
+            uidStates[uid] = uidState
+            sensitiveStatePerUid[uid] = uidState
+        }
+        return sensitiveStatePerUid
+    }
+
+    private fun calculateUid(
+        uid: Int,
+        uidPkgs: List<Pair<LightPackageInfo, Boolean>>
+    ): UidSensitivityState {
+        // sensitivityState for one uid
+        val userSensitiveState = UidSensitivityState(mutableSetOf(), mutableMapOf())
+
+        for ((pkg, pkgHasLauncherIcon) in uidPkgs) {
+            userSensitiveState.packages.add(pkg)
+
+            val pkgIsSystemApp = pkg.appFlags and ApplicationInfo.FLAG_SYSTEM != 0
+            // Iterate through all runtime perms, setting their keys
+            for (perm in pkg.requestedPermissions) {
+                if (perm !in runtimePerms) {
+                    continue
+                }
+                /*
+                 * Permissions are considered user sensitive for a package, when
+                 * - the package has a launcher icon, or
+                 * - the permission is not pre-granted, or
+                 * - the package is not a system app (i.e. not preinstalled)
+                 */
+                var flags = if (pkgIsSystemApp && !pkgHasLauncherIcon) {
+                    val permGrantedByDefault = getPermissionFlags(perm, pkg.packageName) and
+                        PackageManager.FLAG_PERMISSION_GRANTED_BY_DEFAULT != 0
+
+                    if (permGrantedByDefault) {
+                        0
+                    } else {
+                        PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED
+                    }
+                } else {
+                    Utils.FLAGS_ALWAYS_USER_SENSITIVE
+                }
+
+                /*
+                 * If two packages share a UID there can be two cases:
+                 * - for well known UIDs: if the permission for any package is non-user sensitive,
+                 *                        it is non-sensitive. I.e. prefer to hide
+                 * - for non system UIDs: if the permission for any package is user sensitive, it is
+                 *                        user sensitive. I.e. prefer to show
+                 */
+                val previousFlags = userSensitiveState.permStates[perm]
+                if (previousFlags != null) {
+                    flags = if (uid < Process.FIRST_APPLICATION_UID) {
+                        flags and previousFlags
+                    } else {
+                        flags or previousFlags
+                    }
+                }
+
+                userSensitiveState.permStates[perm] = flags
+            }
+        }
+        return userSensitiveState
+    }
+
+    companion object {
+        // TODO ntmyren: Figure out how to get custom runtime permissions in a less costly manner
+        private val runtimePerms: Set<String> =
+            Utils.getRuntimePlatformPermissionNames().toHashSet()
+    }
+}
@@ -50,23 +50,24 @@ data class LightPackageInfo(
 ) {
     constructor(pI: PackageInfo) : this(pI.packageName,
         pI.permissions?.map { perm -> LightPermInfo(perm) } ?: emptyList(),
-        pI.requestedPermissions?.toList() ?: emptyList(),
-        pI.requestedPermissionsFlags?.toList() ?: emptyList(),
+        PermissionNameList(pI.requestedPermissions ?: emptyArray()),
+        IntArrayList(pI.requestedPermissionsFlags ?: IntArray(0)),
         pI.applicationInfo.uid, pI.applicationInfo.targetSdkVersion,
         pI.applicationInfo.isInstantApp, pI.applicationInfo.enabled, pI.applicationInfo.flags,
         pI.firstInstallTime)
 
     /**
-     * Permissions which are granted according to the [requestedPermissionsFlags]
+     * Permissions which are granted according to the [requestedPermissionsFlags]. Computed once,
+     * as both lists are immutable.
      */
-    val grantedPermissions: List<String> get() {
+    val grantedPermissions: List<String> by lazy {
         val grantedPermissions = mutableListOf<String>()
         for (i in 0 until requestedPermissions.size) {
             if ((requestedPermissionsFlags[i] and PackageInfo.REQUESTED_PERMISSION_GRANTED) != 0) {
                 grantedPermissions.add(requestedPermissions[i])
             }
         }
-        return grantedPermissions
+        grantedPermissions
     }
 
     /**
@@ -106,3 +107,58 @@ data class LightPackageInfo(
         return null
     }
 }
+
+/**
+ * An immutable list of permission names, as requested by a package. The names are interned, as the
+ * same few hundred permissions are requested by thousands of packages, and [contains] is O(1).
+ *
+ * Behaves like any other [List] for [equals] and [hashCode].
+ *
+ * @param permNames The permission names
+ */
+class PermissionNameList(permNames: Array<String>) : AbstractList<String>(), RandomAccess {
+    private val names = Array(permNames.size) { permNames[it].intern() }
+    private val nameSet by lazy { names.toHashSet() }
+    private val hash by lazy { names.contentHashCode() }
+
+    override val size: Int
+        get() = names.size
+
+    override fun get(index: Int): String = names[index]
+
+    override fun contains(element: String): Boolean = element in nameSet
+
+    override fun equals(other: Any?): Boolean {
+        if (other is PermissionNameList) {
+            return names.contentEquals(other.names)
+        }
+        return super.equals(other)
+    }
+
+    override fun hashCode(): Int = hash
+}
+
+/**
+ * An immutable list of ints backed by an [IntArray], so the values are not boxed while stored.
+ *
+ * Behaves like any other [List] for [equals] and [hashCode].
+ *
+ * @param values The values of the list
+ */
+class IntArrayList(values: IntArray) : AbstractList<Int>(), RandomAccess {
+    private val values = values.copyOf()
+
+    override val size: Int
+        get() = values.size
+
+    override fun get(index: Int): Int = values[index]
+
+    override fun equals(other: Any?): Boolean {
+        if (other is IntArrayList) {
+            return values.contentEquals(other.values)
+        }
+        return super.equals(other)
+    }
+
+    override fun hashCode(): Int = values.contentHashCode()
+}
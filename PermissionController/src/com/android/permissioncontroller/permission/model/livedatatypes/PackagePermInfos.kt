@@ -14,11 +14,18 @@
  * limitations under the License.
  */
 
-package com.android.permissioncontroller.permission.data
+package com.android.permissioncontroller.permission.model.livedatatypes
 
 /**
- * An interface for classes that have an [Intent] action
+ * The definitions of every permission requested by one package, computed once and shared by all
+ * the LiveDatas of that package.
+ *
+ * @param packageInfo The package this was computed from
+ * @param permInfos The LightPermInfos of all requested permissions which are defined in the system
+ * @param groupPermNames The requested runtime permissions, indexed by permission group name
  */
-interface HasIntentAction {
-    val intentAction: String
-}
\ No newline at end of file
+data class PackagePermInfos(
+    val packageInfo: LightPackageInfo,
+    val permInfos: Map<String, LightPermInfo>,
+    val groupPermNames: Map<String, List<String>>
+)
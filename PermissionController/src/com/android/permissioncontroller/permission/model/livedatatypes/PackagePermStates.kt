@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.model.livedatatypes
+
+/**
+ * A snapshot of the permission state of every runtime permission requested by one package,
+ * computed once and shared by all the per-group LiveDatas of that package.
+ *
+ * @param permInfos The definitions of the requested permissions
+ * @param permStates The flags and grant state of every requested runtime permission
+ */
+data class PackagePermStates(
+    val permInfos: PackagePermInfos,
+    val permStates: Map<String, PermState>
+) {
+    /**
+     * The package this snapshot was computed from
+     */
+    val packageInfo: LightPackageInfo
+        get() = permInfos.packageInfo
+
+    /**
+     * Get the states of the requested permissions of one permission group.
+     *
+     * @param groupName The name of the permission group
+     *
+     * @return A map of permission name to PermState, empty if no permission of the group is
+     * requested
+     */
+    fun getGroupPermStates(groupName: String): Map<String, PermState> {
+        val permNames = permInfos.groupPermNames[groupName] ?: return emptyMap()
+        val groupStates = mutableMapOf<String, PermState>()
+        for (permName in permNames) {
+            groupStates[permName] = permStates[permName] ?: continue
+        }
+        return groupStates
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.service
+
+import android.app.Application
+import android.os.UserHandle
+import android.util.AtomicFile
+import android.util.Log
+import androidx.annotation.WorkerThread
+import com.android.permissioncontroller.Constants.AUTO_REVOKE_CHECKPOINTS_FILE_PREFIX
+import com.android.permissioncontroller.permission.data.UserPackageInfosSnapshot
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.android.permissioncontroller.permission.utils.Utils
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.util.concurrent.TimeUnit.DAYS
+
+/**
+ * The persisted earliest time at which each package of a user could be auto revoked, so an auto
+ * revoke run only has to evaluate the packages whose time has come.
+ *
+ * The last visible time of a package never decreases, so a package which was used recently enough
+ * at one run cannot become unused before its checkpoint. Checkpoints of packages which were
+ * reinstalled, or changed as reported by the package manager, are ignored. All packages are
+ * evaluated again if the unused threshold changed, and periodically as a fallback.
+ *
+ * @param app The current application
+ * @param user The user whose packages are checkpointed
+ * @param unusedThresholdMs The unused threshold of the current run
+ */
+class AutoRevokeCheckpoints private constructor(
+    private val app: Application,
+    val user: UserHandle,
+    private val unusedThresholdMs: Long
+) {
+    private data class Checkpoint(
+        val uid: Int,
+        val firstInstallTime: Long,
+        val earliestRevokeTime: Long
+    )
+
+    private val checkpoints = mutableMapOf<String, Checkpoint>()
+
+    /**
+     * The system state at the start of the run, see [UserPackageInfosSnapshot.getSystemState]
+     */
+    private lateinit var systemState: Pair<Int, String>
+
+    private var lastFullScanTime = 0L
+
+    /**
+     * Whether all packages have to be evaluated in this run
+     */
+    var isFullScan = true
+        private set
+
+    /**
+     * Whether a package has to be evaluated in this run.
+     *
+     * @param pkg The package
+     * @param now The time of the run
+     *
+     * @return {@code false} iff the package was evaluated before, and cannot be unused yet
+     */
+    @Synchronized
+    fun shouldEvaluate(pkg: LightPackageInfo, now: Long): Boolean {
+        if (isFullScan) {
+            return true
+        }
+
+        val checkpoint = checkpoints[pkg.packageName] ?: return true
+        return checkpoint.uid != pkg.uid ||
+            checkpoint.firstInstallTime != pkg.firstInstallTime ||
+            checkpoint.earliestRevokeTime <= now
+    }
+
+    /**
+     * Record the result of the evaluation of a package.
+     *
+     * @param pkg The package
+     * @param lastTimeVisible When the package was last visible, or null if it is unused and has to
+     * be evaluated on every run
+     */
+    @Synchronized
+    fun setLastTimeVisible(pkg: LightPackageInfo, lastTimeVisible: Long?) {
+        if (lastTimeVisible == null) {
+            checkpoints.remove(pkg.packageName)
+        } else {
+            checkpoints[pkg.packageName] = Checkpoint(pkg.uid, pkg.firstInstallTime,
+                lastTimeVisible + unusedThresholdMs)
+        }
+    }
+
+    private fun getFile(): AtomicFile {
+        return AtomicFile(File(app.filesDir,
+            AUTO_REVOKE_CHECKPOINTS_FILE_PREFIX + user.identifier))
+    }
+
+    private fun read(now: Long) {
+        systemState = UserPackageInfosSnapshot.getSystemState(user)
+
+        try {
+            DataInputStream(BufferedInputStream(getFile().openRead())).use { input ->
+                if (input.readInt() != VERSION) {
+                    return
+                }
+                val unusedThresholdMs = input.readLong()
+                val lastFullScanTime = input.readLong()
+                val sequenceNumber = input.readInt()
+                val bootFingerprint = input.readUTF()
+                val checkpoints = mutableMapOf<String, Checkpoint>()
+                for (i in 0 until input.readInt()) {
+                    checkpoints[input.readUTF()] = Checkpoint(input.readInt(), input.readLong(),
+                        input.readLong())
+                }
+
+                if (unusedThresholdMs != this.unusedThresholdMs ||
+                    lastFullScanTime > now ||
+                    now - lastFullScanTime >= FULL_SCAN_INTERVAL_MS) {
+                    return
+                }
+
+                // The change sequence number is reset on boot. Reinstalled packages are still
+                // detected by their uid and install time then.
+                if (bootFingerprint == systemState.second) {
+                    Utils.getUserContext(app, user).packageManager
+                        .getChangedPackages(sequenceNumber)?.packageNames?.let {
+                            checkpoints.keys.removeAll(it)
+                        }
+                }
+
+                this.checkpoints.putAll(checkpoints)
+                this.lastFullScanTime = lastFullScanTime
+                isFullScan = false
+            }
+        } catch (e: FileNotFoundException) {
+            // First run
+        } catch (e: IOException) {
+            Log.w(LOG_TAG, "Cannot read auto revoke checkpoints of user ${user.identifier}", e)
+            getFile().delete()
+        }
+    }
+
+    /**
+     * Persist the checkpoints. Performs disk I/O, do not call from the main thread.
+     *
+     * @param packageNames The packages currently installed for the user, checkpoints of other
+     * packages are dropped
+     * @param now The time of the run
+     */
+    @WorkerThread
+    @Synchronized
+    fun write(packageNames: Set<String>, now: Long) {
+        checkpoints.keys.retainAll(packageNames)
+        if (isFullScan) {
+            lastFullScanTime = now
+        }
+
+        val file = getFile()
+        val stream = try {
+            file.startWrite()
+        } catch (e: IOException) {
+            Log.w(LOG_TAG, "Cannot write auto revoke checkpoints of user ${user.identifier}", e)
+            return
+        }
+
+        try {
+            val output = DataOutputStream(BufferedOutputStream(stream))
+            output.writeInt(VERSION)
+            output.writeLong(unusedThresholdMs)
+            output.writeLong(lastFullScanTime)
+            output.writeInt(systemState.first)
+            output.writeUTF(systemState.second)
+            output.writeInt(checkpoints.size)
+            for ((packageName, checkpoint) in checkpoints) {
+                output.writeUTF(packageName)
+                output.writeInt(checkpoint.uid)
+                output.writeLong(checkpoint.firstInstallTime)
+                output.writeLong(checkpoint.earliestRevokeTime)
+            }
+            output.flush()
+            file.finishWrite(stream)
+        } catch (e: IOException) {
+            Log.w(LOG_TAG, "Cannot write auto revoke checkpoints of user ${user.identifier}", e)
+            file.failWrite(stream)
+        }
+    }
+
+    companion object {
+        private val LOG_TAG = AutoRevokeCheckpoints::class.java.simpleName
+
+        /**
+         * Version of the file format. Increase when changing the format.
+         */
+        private const val VERSION = 1
+
+        /**
+         * How often all packages are evaluated, no matter their checkpoints
+         */
+        private val FULL_SCAN_INTERVAL_MS = DAYS.toMillis(60)
+
+        /**
+         * Read the checkpoints of a user. Performs IPCs and disk I/O, do not call from the main
+         * thread.
+         *
+         * @param app The current application
+         * @param user The user whose checkpoints to read
+         * @param unusedThresholdMs The unused threshold of the current run
+         * @param now The time of the current run
+         *
+         * @return The checkpoints, or empty checkpoints requiring a [full scan][isFullScan]
+         */
+        @WorkerThread
+        fun read(
+            app: Application,
+            user: UserHandle,
+            unusedThresholdMs: Long,
+            now: Long
+        ): AutoRevokeCheckpoints {
+            return AutoRevokeCheckpoints(app, user, unusedThresholdMs).apply { read(now) }
+        }
+    }
+}
@@ -19,7 +19,6 @@
 package com.android.permissioncontroller.permission.service
 
 import android.Manifest
-import android.accessibilityservice.AccessibilityService
 import android.app.ActivityManager
 import android.app.ActivityManager.RunningAppProcessInfo.IMPORTANCE_TOP_SLEEPING
 import android.app.AppOpsManager
@@ -32,39 +31,26 @@ import android.app.NotificationManager.IMPORTANCE_LOW
 import android.app.PendingIntent
 import android.app.PendingIntent.FLAG_ONE_SHOT
 import android.app.PendingIntent.FLAG_UPDATE_CURRENT
-import android.app.admin.DeviceAdminReceiver
-import android.app.admin.DevicePolicyManager
 import android.app.job.JobInfo
 import android.app.job.JobParameters
 import android.app.job.JobScheduler
 import android.app.job.JobService
-import android.app.usage.UsageStats
-import android.app.usage.UsageStatsManager.INTERVAL_DAILY
-import android.app.usage.UsageStatsManager.INTERVAL_MONTHLY
 import android.content.BroadcastReceiver
 import android.content.ComponentName
 import android.content.Context
 import android.content.Intent
 import android.content.SharedPreferences
-import android.content.pm.PackageManager.FLAG_PERMISSION_AUTO_REVOKED
-import android.content.pm.PackageManager.FLAG_PERMISSION_USER_SET
 import android.content.pm.PackageManager.PERMISSION_GRANTED
 import android.os.Bundle
 import android.os.Process.myUserHandle
+import android.os.SystemClock
 import android.os.UserHandle
 import android.os.UserManager
-import android.printservice.PrintService
 import android.provider.DeviceConfig
 import android.provider.Settings
-import android.service.autofill.AutofillService
-import android.service.dreams.DreamService
-import android.service.notification.NotificationListenerService
-import android.service.voice.VoiceInteractionService
-import android.service.wallpaper.WallpaperService
 import android.telephony.TelephonyManager.CARRIER_PRIVILEGE_STATUS_HAS_ACCESS
 import android.telephony.TelephonyManager.CARRIER_PRIVILEGE_STATUS_NO_ACCESS
 import android.util.Log
-import android.view.inputmethod.InputMethod
 import androidx.annotation.MainThread
 import androidx.preference.PreferenceManager
 import com.android.permissioncontroller.Constants
@@ -81,17 +67,14 @@ import com.android.permissioncontroller.PermissionControllerStatsLog.PERMISSION_
 import com.android.permissioncontroller.R
 import com.android.permissioncontroller.permission.data.AllPackageInfosLiveData
 import com.android.permissioncontroller.permission.data.AppOpLiveData
-import com.android.permissioncontroller.permission.data.BroadcastReceiverLiveData
+import com.android.permissioncontroller.permission.data.BoundServicesLiveData
 import com.android.permissioncontroller.permission.data.CarrierPrivilegedStatusLiveData
 import com.android.permissioncontroller.permission.data.DataRepositoryForPackage
-import com.android.permissioncontroller.permission.data.HasIntentAction
+import com.android.permissioncontroller.permission.data.LastVisibleTimesLiveData
 import com.android.permissioncontroller.permission.data.LightAppPermGroupLiveData
 import com.android.permissioncontroller.permission.data.PackagePermissionsLiveData
-import com.android.permissioncontroller.permission.data.ServiceLiveData
 import com.android.permissioncontroller.permission.data.SmartUpdateMediatorLiveData
 import com.android.permissioncontroller.permission.data.UnusedAutoRevokedPackagesLiveData
-import com.android.permissioncontroller.permission.data.UsageStatsLiveData
-import com.android.permissioncontroller.permission.data.UsersLiveData
 import com.android.permissioncontroller.permission.data.get
 import com.android.permissioncontroller.permission.model.livedatatypes.LightAppPermGroup
 import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
@@ -107,18 +90,25 @@ import com.android.permissioncontroller.permission.utils.Utils
 import com.android.permissioncontroller.permission.utils.Utils.PROPERTY_AUTO_REVOKE_CHECK_FREQUENCY_MILLIS
 import com.android.permissioncontroller.permission.utils.Utils.PROPERTY_AUTO_REVOKE_UNUSED_THRESHOLD_MILLIS
 import com.android.permissioncontroller.permission.utils.application
-import com.android.permissioncontroller.permission.utils.forEachInParallel
-import com.android.permissioncontroller.permission.utils.updatePermissionFlags
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Deferred
 import kotlinx.coroutines.Dispatchers.Main
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.Job
+import kotlinx.coroutines.NonCancellable
 import kotlinx.coroutines.async
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.joinAll
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeoutOrNull
 import java.util.Date
 import java.util.Random
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReferenceArray
 import java.util.concurrent.TimeUnit.DAYS
 import java.util.concurrent.TimeUnit.SECONDS
-import java.util.concurrent.atomic.AtomicBoolean
 
 private const val LOG_TAG = "AutoRevokePermissions"
 private const val DEBUG_OVERRIDE_THRESHOLDS = false
@@ -163,21 +153,31 @@ fun isAutoRevokeEnabled(context: Context): Boolean {
 }
 
 /**
+ * @param context The current context
+ * @param timeoutMillis How long to spend on dumping packages at most. Packages which were not
+ * dumped by then are left out, and the dump is marked as truncated.
+ *
  * @return dump of auto revoke service as a proto
  */
-suspend fun dumpAutoRevokePermissions(context: Context): AutoRevokePermissionsDumpProto {
+suspend fun dumpAutoRevokePermissions(
+    context: Context,
+    timeoutMillis: Long
+): AutoRevokePermissionsDumpProto {
     val teamFoodSettings = GlobalScope.async(IPC) {
         TeamfoodSettings.get(context)?.dump()
                 ?: TeamFoodSettingsProto.newBuilder().build()
     }
 
-    val dumpData = GlobalScope.async(IPC) {
-        AutoRevokeDumpLiveData(context).getInitializedValue()
-    }
+    val runs = GlobalScope.async(IPC) { AutoRevokeRunHistory.get() }
+
+    val dump = AutoRevokePermissionsDumpProto.newBuilder()
+    val isComplete = AutoRevokeDumper(context, SystemClock.elapsedRealtime() + timeoutMillis)
+        .dumpUsers(dump)
 
-    return AutoRevokePermissionsDumpProto.newBuilder()
+    return dump
             .setTeamfoodSettings(teamFoodSettings.await())
-            .addAllUsers(dumpData.await().dumpUsers())
+            .addAllRuns(runs.await())
+            .setIsTruncated(!isComplete)
             .build()
 }
 
@@ -224,10 +224,38 @@ class AutoRevokeOnBootReceiver : BroadcastReceiver() {
     }
 }
 
+/**
+ * The maximum number of packages (or groups) each stage of [revokePermissionsOnUnusedApps]
+ * processes at the same time. The candidate selection and the revocation make blocking binder
+ * calls, the exemption check and the group load mostly wait for LiveDatas.
+ */
+private const val CANDIDATE_SELECTION_CONCURRENCY = 4
+private const val EXEMPTION_CHECK_CONCURRENCY = 8
+private const val GROUP_LOAD_CONCURRENCY = 8
+private const val REVOKE_CONCURRENCY = 2
+
+/**
+ * Walk the auto revoke pipeline without changing any state, and report which packages would be
+ * revoked, which would be skipped and why, and how long each phase took.
+ *
+ * @param context The current context
+ *
+ * @return The report of the dry run
+ */
+suspend fun dryRunAutoRevoke(context: Context): AutoRevokeReport {
+    val report = AutoRevokeReport(isDryRun = true)
+    withContext(Main) {
+        revokePermissionsOnUnusedApps(context, report = report)
+    }
+    DumpableLog.i(LOG_TAG, report.toString())
+    return report
+}
+
 @MainThread
 private suspend fun revokePermissionsOnUnusedApps(
     context: Context,
-    sessionId: Long = INVALID_SESSION_ID
+    sessionId: Long = INVALID_SESSION_ID,
+    report: AutoRevokeReport = AutoRevokeReport(isDryRun = false)
 ):
     List<Pair<String, UserHandle>> {
     if (!isAutoRevokeEnabled(context)) {
@@ -236,210 +264,276 @@ private suspend fun revokePermissionsOnUnusedApps(
 
     val now = System.currentTimeMillis()
     val firstBootTime = context.firstBootTime
+    val unusedThresholdMs = getUnusedThresholdMs(context)
 
     // TODO ntmyren: remove once b/154796729 is fixed
     Log.i(LOG_TAG, "getting UserPackageInfoLiveData for all users " +
         "in AutoRevokePermissions")
-    val allPackagesByUser = AllPackageInfosLiveData.getInitializedValue()
+    val allPackagesByUser = report.newStage("package load").run {
+        AllPackageInfosLiveData.getInitializedValue()
+    }
     val allPackagesByUserByUid = allPackagesByUser.mapValues { (_, pkgs) ->
         pkgs.groupBy { pkg -> pkg.uid }
     }
-    val unusedApps = allPackagesByUser.toMutableMap()
 
-    val userStats = UsageStatsLiveData[getUnusedThresholdMs(context),
-        if (DEBUG_OVERRIDE_THRESHOLDS) INTERVAL_DAILY else INTERVAL_MONTHLY].getInitializedValue()
+    val userStats = report.newStage("usage stats load").run {
+        LastVisibleTimesLiveData[unusedThresholdMs].getInitializedValue()
+    }
     if (DEBUG_AUTO_REVOKE) {
         for ((user, stats) in userStats) {
             DumpableLog.i(LOG_TAG, "Usage stats for user ${user.identifier}: " +
-                    stats.map { stat ->
-                        stat.packageName to Date(stat.lastTimeVisible)
-                    }.toMap())
+                    stats.mapValues { (_, lastTimeVisible) -> Date(lastTimeVisible) })
         }
     }
-    for (user in unusedApps.keys.toList()) {
+
+    val userManager = context.getSystemService(UserManager::class.java)
+    val checkpointsByUser = mutableMapOf<UserHandle, AutoRevokeCheckpoints>()
+    val candidates = mutableListOf<Pair<LightPackageInfo, UserHandle>>()
+    for ((user, pkgs) in allPackagesByUser) {
         if (user !in userStats.keys) {
             if (DEBUG_AUTO_REVOKE) {
                 DumpableLog.i(LOG_TAG, "Ignoring user ${user.identifier}")
             }
-            unusedApps.remove(user)
+            continue
         }
+        if (userManager == null || !userManager.isUserUnlocked(user)) {
+            DumpableLog.w(LOG_TAG, "Skipping $user - locked direct boot state")
+            continue
+        }
+
+        // Only evaluate the packages which might have become unused since the last run
+        val checkpoints = withContext(IPC) {
+            AutoRevokeCheckpoints.read(context.application, user, unusedThresholdMs, now)
+        }
+        checkpointsByUser[user] = checkpoints
+        val numCandidates = candidates.size
+        pkgs.filter { pkg -> checkpoints.shouldEvaluate(pkg, now) }
+            .mapTo(candidates) { pkg -> pkg to user }
+        DumpableLog.i(LOG_TAG, "Evaluating ${candidates.size - numCandidates} of ${pkgs.size} " +
+            "packages of user ${user.identifier}" +
+            if (checkpoints.isFullScan) " (full scan)" else "")
     }
 
-    for ((user, stats) in userStats) {
-        var unusedUserApps = unusedApps[user] ?: continue
+    report.numPackagesExamined = candidates.size
 
-        unusedUserApps = unusedUserApps.filter { packageInfo ->
-            val pkgName = packageInfo.packageName
+    // Stage 1: select the packages which were not visible within the threshold
+    val candidateSelection =
+        report.newStage("candidate selection", CANDIDATE_SELECTION_CONCURRENCY)
+    val unusedApps = candidateSelection.mapNotNull(candidates) { (packageInfo, user) ->
+        val pkgName = packageInfo.packageName
 
-            val uidPackages = allPackagesByUserByUid[user]!![packageInfo.uid]
-                    ?.map { info -> info.packageName } ?: emptyList()
-            if (pkgName !in uidPackages) {
-                Log.wtf(LOG_TAG, "Package $pkgName not among packages for " +
-                        "its uid ${packageInfo.uid}: $uidPackages")
-            }
-            var lastTimeVisible: Long = stats.lastTimeVisible(uidPackages)
+        val uidPackages = allPackagesByUserByUid[user]!![packageInfo.uid]
+                ?.map { info -> info.packageName } ?: emptyList()
+        if (pkgName !in uidPackages) {
+            Log.wtf(LOG_TAG, "Package $pkgName not among packages for " +
+                    "its uid ${packageInfo.uid}: $uidPackages")
+        }
+        var lastTimeVisible: Long = userStats[user]!!.lastTimeVisible(uidPackages)
 
-            // Limit by install time
-            lastTimeVisible = Math.max(lastTimeVisible, packageInfo.firstInstallTime)
+        // Limit by install time
+        lastTimeVisible = Math.max(lastTimeVisible, packageInfo.firstInstallTime)
 
-            // Limit by first boot time
-            lastTimeVisible = Math.max(lastTimeVisible, firstBootTime)
+        // Limit by first boot time
+        lastTimeVisible = Math.max(lastTimeVisible, firstBootTime)
 
-            // Handle cross-profile apps
-            if (context.isPackageCrossProfile(pkgName)) {
-                for ((otherUser, otherStats) in userStats) {
-                    if (otherUser == user) {
-                        continue
-                    }
-                    lastTimeVisible = Math.max(lastTimeVisible, otherStats.lastTimeVisible(pkgName))
+        // Handle cross-profile apps
+        if (context.isPackageCrossProfile(pkgName, candidateSelection)) {
+            for ((otherUser, otherStats) in userStats) {
+                if (otherUser == user) {
+                    continue
                 }
+                lastTimeVisible = Math.max(lastTimeVisible, otherStats.lastTimeVisible(pkgName))
             }
-
-            // Threshold check - whether app is unused
-            now - lastTimeVisible > getUnusedThresholdMs(context)
         }
 
-        unusedApps[user] = unusedUserApps
-        if (DEBUG_AUTO_REVOKE) {
+        // Threshold check - whether app is unused
+        if (now - lastTimeVisible > unusedThresholdMs) {
+            checkpointsByUser[user]!!.setLastTimeVisible(packageInfo, null)
+            packageInfo to user
+        } else {
+            checkpointsByUser[user]!!.setLastTimeVisible(packageInfo, lastTimeVisible)
+            null
+        }
+    }
+    if (!report.isDryRun) {
+        withContext(IPC) {
+            for ((user, checkpoints) in checkpointsByUser) {
+                checkpoints.write(allPackagesByUser[user]!!.map { it.packageName }.toSet(), now)
+            }
+        }
+    }
+    if (DEBUG_AUTO_REVOKE) {
+        for ((user, userApps) in unusedApps.groupBy({ it.second }, { it.first })) {
             DumpableLog.i(LOG_TAG, "Unused apps for user ${user.identifier}: " +
-                "${unusedUserApps.map { it.packageName }}")
+                "${userApps.map { it.packageName }}")
         }
     }
 
-    val revokedApps = mutableListOf<Pair<String, UserHandle>>()
-    val userManager = context.getSystemService(UserManager::class.java)
-    for ((user, userApps) in unusedApps) {
-        if (userManager == null || !userManager.isUserUnlocked(user)) {
-            DumpableLog.w(LOG_TAG, "Skipping $user - locked direct boot state")
-            continue
+    // Stage 2: drop the packages which are exempt, or have nothing to revoke
+    val exemptionCheck = report.newStage("exemption check", EXEMPTION_CHECK_CONCURRENCY)
+    val nonExemptApps = exemptionCheck.mapNotNull(unusedApps) { (pkg, user) ->
+        val reason = if (pkg.grantedPermissions.isEmpty()) {
+            "no granted permissions"
+        } else {
+            getAutoRevokePermanentExemptionReason(pkg, user, exemptionCheck)
+                ?: getAutoRevokeExemptionReason(context, pkg)
         }
-        userApps.forEachInParallel(Main) { pkg: LightPackageInfo ->
-            if (pkg.grantedPermissions.isEmpty()) {
-                return@forEachInParallel
-            }
-
-            if (isPackageAutoRevokePermanentlyExempt(pkg, user)) {
-                return@forEachInParallel
-            }
-
-            val packageName = pkg.packageName
-            if (isPackageAutoRevokeExempt(context, pkg)) {
-                return@forEachInParallel
-            }
-
-            val anyPermsRevoked = AtomicBoolean(false)
-            val pkgPermGroups: Map<String, List<String>>? =
-                PackagePermissionsLiveData[packageName, user]
-                    .getInitializedValue()
-
-            pkgPermGroups?.entries?.forEachInParallel(Main) { (groupName, _) ->
-                if (groupName == PackagePermissionsLiveData.NON_RUNTIME_NORMAL_PERMS) {
-                    return@forEachInParallel
-                }
+        if (reason != null) {
+            report.addSkipped(pkg.packageName, user, reason)
+            null
+        } else {
+            pkg to user
+        }
+    }
 
-                val group: LightAppPermGroup =
-                    LightAppPermGroupLiveData[packageName, groupName, user]
-                        .getInitializedValue()
-                        ?: return@forEachInParallel
+    // Stage 3: load the groups of the packages, and select the ones which should be revoked
+    val groupLoad = report.newStage("group load", GROUP_LOAD_CONCURRENCY)
+    val appGroupNames = groupLoad.mapNotNull(nonExemptApps) { (pkg, user) ->
+        PackagePermissionsLiveData[pkg.packageName, user].getInitializedValue()?.keys
+            ?.filter { it != PackagePermissionsLiveData.NON_RUNTIME_NORMAL_PERMS }
+            ?.map { groupName -> Triple(pkg.packageName, groupName, user) }
+    }.flatten()
+    val revocableGroups = groupLoad.mapNotNull(appGroupNames) { (packageName, groupName, user) ->
+        LightAppPermGroupLiveData[packageName, groupName, user].getInitializedValue()
+            ?.takeIf { group -> group.shouldAutoRevoke() }
+    }
+    val appsWithRevocableGroups = revocableGroups.map { it.packageName to it.userHandle }.toSet()
+    for ((pkg, user) in nonExemptApps) {
+        if (pkg.packageName to user !in appsWithRevocableGroups) {
+            report.addSkipped(pkg.packageName, user, "no revocable permission groups")
+        }
+    }
 
-                val fixed = group.isBackgroundFixed || group.isForegroundFixed
-                val granted = group.permissions.any { (_, perm) ->
-                    perm.isGrantedIncludingAppOp && perm.name !in EXEMPT_PERMISSIONS
-                }
-                if (!fixed &&
-                    granted &&
-                    !group.isGrantedByDefault &&
-                    !group.isGrantedByRole &&
-                    group.isUserSensitive) {
+    // Stage 4: revoke the groups, one package at a time
+    val revoke = report.newStage("revoke", REVOKE_CONCURRENCY)
+    val revokedApps = revoke.mapNotNull(revocableGroups
+        .groupBy { group -> group.packageName to group.userHandle }.toList()
+    ) { (app, groups) ->
+        val (packageName, user) = app
+        if (revokeUnusedGroups(context, packageName, user, groups, sessionId, report, revoke,
+                userStats[user]?.lastTimeVisible(packageName))) {
+            app
+        } else {
+            null
+        }
+    }
 
-                    val revocablePermissions = group.permissions.keys.toList()
+    if (report.isDryRun) {
+        return revokedApps
+    }
+    for (user in candidates.map { it.second }.distinct()) {
+        DumpableLog.i(LOG_TAG, "Done auto-revoke for user ${user.identifier} - revoked " +
+            "${revokedApps.filter { it.second == user }}")
+    }
+    for (stage in report.stages) {
+        DumpableLog.i(LOG_TAG, "Auto-revoke $stage")
+    }
+    return revokedApps
+}
 
-                    if (revocablePermissions.isEmpty()) {
-                        return@forEachInParallel
-                    }
+/**
+ * Whether the permissions of this group should be revoked if the app is unused
+ */
+private fun LightAppPermGroup.shouldAutoRevoke(): Boolean {
+    val fixed = isBackgroundFixed || isForegroundFixed
+    val granted = permissions.any { (_, perm) ->
+        perm.isGrantedIncludingAppOp && perm.name !in EXEMPT_PERMISSIONS
+    }
+    return !fixed &&
+        granted &&
+        !isGrantedByDefault &&
+        !isGrantedByRole &&
+        isUserSensitive &&
+        permissions.isNotEmpty()
+}
 
-                    if (DEBUG_AUTO_REVOKE) {
-                        DumpableLog.i(LOG_TAG, "revokeUnused $packageName - $revocablePermissions" +
-                                " - lastVisible on " +
-                                userStats[user]?.lastTimeVisible(packageName)?.let(::Date))
-                    }
+/**
+ * Revoke the permissions of the groups of an unused package, unless the package is running.
+ * Makes blocking binder calls.
+ *
+ * @param context The current context
+ * @param packageName The name of the unused package
+ * @param user The user of the package
+ * @param groups The groups of the package which should be revoked
+ * @param sessionId The session of this auto-revoke run
+ * @param report The report of this auto-revoke run. If it is a dry run, nothing is revoked.
+ * @param stage The stage counting the binder calls
+ * @param lastTimeVisible When the package was last visible, for logging
+ *
+ * @return whether any permission was revoked
+ */
+private fun revokeUnusedGroups(
+    context: Context,
+    packageName: String,
+    user: UserHandle,
+    groups: List<LightAppPermGroup>,
+    sessionId: Long,
+    report: AutoRevokeReport,
+    stage: AutoRevokeStage,
+    lastTimeVisible: Long?
+): Boolean {
+    val activityManager = context.getSystemService(ActivityManager::class.java)!!
+    val packageImportance = stage.ipc { activityManager.getPackageImportance(packageName) }
+    if (report.isDryRun) {
+        if (packageImportance <= IMPORTANCE_TOP_SLEEPING) {
+            report.addSkipped(packageName, user, "running with importance $packageImportance")
+            return false
+        }
+        report.addRevoked(packageName, user, groups.map { it.permGroupName })
+        return true
+    }
 
-                    val uid = group.packageInfo.uid
-                    for (permName in revocablePermissions) {
-                        PermissionControllerStatsLog.write(
-                            PERMISSION_GRANT_REQUEST_RESULT_REPORTED,
-                            sessionId, uid, packageName, permName, false, SERVER_LOG_ID)
-                    }
+    for (group in groups) {
+        val revocablePermissions = group.permissions.keys.toList()
+        if (DEBUG_AUTO_REVOKE) {
+            DumpableLog.i(LOG_TAG, "revokeUnused $packageName - $revocablePermissions" +
+                    " - lastVisible on " + lastTimeVisible?.let(::Date))
+        }
 
-                    val packageImportance = context
-                        .getSystemService(ActivityManager::class.java)!!
-                        .getPackageImportance(packageName)
-                    if (packageImportance > IMPORTANCE_TOP_SLEEPING) {
-                        if (DEBUG_AUTO_REVOKE) {
-                            DumpableLog.i(LOG_TAG, "revoking $packageName - $revocablePermissions")
-                            DumpableLog.i(LOG_TAG, "State pre revocation: ${group.allPermissions}")
-                        }
-                        anyPermsRevoked.compareAndSet(false, true)
-
-                        val bgRevokedState = KotlinUtils.revokeBackgroundRuntimePermissions(
-                                context.application, group,
-                                userFixed = false, oneTime = false,
-                                filterPermissions = revocablePermissions)
-                        if (DEBUG_AUTO_REVOKE) {
-                            DumpableLog.i(LOG_TAG,
-                                "Bg state post revocation: ${bgRevokedState.allPermissions}")
-                        }
-                        val fgRevokedState = KotlinUtils.revokeForegroundRuntimePermissions(
-                            context.application, group,
-                            userFixed = false, oneTime = false,
-                            filterPermissions = revocablePermissions)
-                        if (DEBUG_AUTO_REVOKE) {
-                            DumpableLog.i(LOG_TAG,
-                                "Fg state post revocation: ${fgRevokedState.allPermissions}")
-                        }
+        val uid = group.packageInfo.uid
+        for (permName in revocablePermissions) {
+            PermissionControllerStatsLog.write(
+                PERMISSION_GRANT_REQUEST_RESULT_REPORTED,
+                sessionId, uid, packageName, permName, false, SERVER_LOG_ID)
+        }
+    }
 
-                        for (permission in revocablePermissions) {
-                            context.packageManager.updatePermissionFlags(
-                                permission, packageName, user,
-                                FLAG_PERMISSION_AUTO_REVOKED to true,
-                                FLAG_PERMISSION_USER_SET to false)
-                        }
-                    } else {
-                        DumpableLog.i(LOG_TAG,
-                            "Skipping auto-revoke - $packageName running with importance " +
-                                "$packageImportance")
-                    }
-                }
-            }
+    if (packageImportance <= IMPORTANCE_TOP_SLEEPING) {
+        DumpableLog.i(LOG_TAG,
+            "Skipping auto-revoke - $packageName running with importance " +
+                "$packageImportance")
+        report.addSkipped(packageName, user, "running with importance $packageImportance")
+        return false
+    }
 
-            if (anyPermsRevoked.get()) {
-                synchronized(revokedApps) {
-                    revokedApps.add(pkg.packageName to user)
-                }
-            }
+    if (DEBUG_AUTO_REVOKE) {
+        for (group in groups) {
+            DumpableLog.i(LOG_TAG, "revoking $packageName - ${group.permissions.keys}")
+            DumpableLog.i(LOG_TAG, "State pre revocation: ${group.allPermissions}")
         }
-        if (DEBUG_AUTO_REVOKE) {
-            synchronized(revokedApps) {
-                DumpableLog.i(LOG_TAG,
-                        "Done auto-revoke for user ${user.identifier} - revoked $revokedApps")
-            }
+    }
+
+    val revokedGroups = KotlinUtils.revokeRuntimePermissionsForUid(context.application, groups,
+        userFixed = false, oneTime = false, autoRevoked = true)
+    if (DEBUG_AUTO_REVOKE) {
+        for (group in revokedGroups) {
+            DumpableLog.i(LOG_TAG, "State post revocation: ${group.allPermissions}")
         }
     }
-    return revokedApps
+    report.addRevoked(packageName, user, groups.map { it.permGroupName })
+    return true
 }
 
-private fun List<UsageStats>.lastTimeVisible(pkgNames: List<String>): Long {
+private fun Map<String, Long>.lastTimeVisible(pkgNames: List<String>): Long {
     var result = 0L
-    for (stat in this) {
-        if (stat.packageName in pkgNames) {
-            result = Math.max(result, stat.lastTimeVisible)
-        }
+    for (pkgName in pkgNames) {
+        result = Math.max(result, this[pkgName] ?: 0L)
     }
     return result
 }
 
-private fun List<UsageStats>.lastTimeVisible(pkgName: String): Long {
-    return lastTimeVisible(listOf(pkgName))
+private fun Map<String, Long>.lastTimeVisible(pkgName: String): Long {
+    return this[pkgName] ?: 0L
 }
 
 /**
@@ -449,17 +543,31 @@ suspend fun isPackageAutoRevokePermanentlyExempt(
     pkg: LightPackageInfo,
     user: UserHandle
 ): Boolean {
+    return getAutoRevokePermanentExemptionReason(pkg, user) != null
+}
+
+/**
+ * @param stage If set, the stage counting the binder calls
+ *
+ * @return why the given package is exempt from auto revoke in a way that's not user-overridable,
+ * or {@code null} if it is not
+ */
+private suspend fun getAutoRevokePermanentExemptionReason(
+    pkg: LightPackageInfo,
+    user: UserHandle,
+    stage: AutoRevokeStage? = null
+): String? {
     if (!ExemptServicesLiveData[user]
             .getInitializedValue()[pkg.packageName]
             .isNullOrEmpty()) {
-        return true
+        return "implements an exempt service"
     }
     if (Utils.isUserDisabledOrWorkProfile(user)) {
         if (DEBUG_AUTO_REVOKE) {
             DumpableLog.i(LOG_TAG,
                     "Exempted ${pkg.packageName} - $user is disabled or a work profile")
         }
-        return true
+        return "user is disabled or a work profile"
     }
     val carrierPrivilegedStatus = CarrierPrivilegedStatusLiveData[pkg.packageName]
             .getInitializedValue()
@@ -472,22 +580,25 @@ suspend fun isPackageAutoRevokePermanentlyExempt(
         if (DEBUG_AUTO_REVOKE) {
             DumpableLog.i(LOG_TAG, "Exempted ${pkg.packageName} - carrier privileged")
         }
-        return true
+        return "carrier privileged"
     }
 
-    if (PermissionControllerApplication.get()
+    val holdsPrivilegedPhoneState = {
+        PermissionControllerApplication.get()
             .packageManager
             .checkPermission(
                     android.Manifest.permission.READ_PRIVILEGED_PHONE_STATE,
-                    pkg.packageName) == PERMISSION_GRANTED) {
+                    pkg.packageName) == PERMISSION_GRANTED
+    }
+    if (stage?.ipc(holdsPrivilegedPhoneState) ?: holdsPrivilegedPhoneState()) {
         if (DEBUG_AUTO_REVOKE) {
             DumpableLog.i(LOG_TAG, "Exempted ${pkg.packageName} " +
                     "- holder of READ_PRIVILEGED_PHONE_STATE")
         }
-        return true
+        return "holder of READ_PRIVILEGED_PHONE_STATE"
     }
 
-    return false
+    return null
 }
 
 /**
@@ -497,6 +608,17 @@ suspend fun isPackageAutoRevokeExempt(
     context: Context,
     pkg: LightPackageInfo
 ): Boolean {
+    return getAutoRevokeExemptionReason(context, pkg) != null
+}
+
+/**
+ * @return why the given package is exempt from auto revoke in a way that's user-overridable, or
+ * {@code null} if it is not
+ */
+private suspend fun getAutoRevokeExemptionReason(
+    context: Context,
+    pkg: LightPackageInfo
+): String? {
     val packageName = pkg.packageName
     val packageUid = pkg.uid
 
@@ -508,24 +630,28 @@ suspend fun isPackageAutoRevokeExempt(
         // Initial state - whitelist not explicitly overridden by either user or installer
         if (DEBUG_OVERRIDE_THRESHOLDS) {
             // Suppress exemptions to allow debugging
-            return false
+            return null
         }
 
         // Q- packages exempt by default, except for dogfooding
-        return pkg.targetSdkVersion <= android.os.Build.VERSION_CODES.Q &&
-                TeamfoodSettings.get(context)?.enabledForPreRApps != true
+        return if (pkg.targetSdkVersion <= android.os.Build.VERSION_CODES.Q &&
+                TeamfoodSettings.get(context)?.enabledForPreRApps != true) {
+            "targets Q or lower"
+        } else {
+            null
+        }
     }
     // Check whether user/installer exempt
-    return whitelistAppOpMode != MODE_ALLOWED
+    return if (whitelistAppOpMode != MODE_ALLOWED) "exempted by user or installer" else null
 }
 
-private fun Context.isPackageCrossProfile(pkg: String): Boolean {
-    return packageManager.checkPermission(
-        Manifest.permission.INTERACT_ACROSS_PROFILES, pkg) == PERMISSION_GRANTED ||
-        packageManager.checkPermission(
-            Manifest.permission.INTERACT_ACROSS_USERS, pkg) == PERMISSION_GRANTED ||
-        packageManager.checkPermission(
-            Manifest.permission.INTERACT_ACROSS_USERS_FULL, pkg) == PERMISSION_GRANTED
+private fun Context.isPackageCrossProfile(pkg: String, stage: AutoRevokeStage): Boolean {
+    return stage.ipc { packageManager.checkPermission(
+        Manifest.permission.INTERACT_ACROSS_PROFILES, pkg) } == PERMISSION_GRANTED ||
+        stage.ipc { packageManager.checkPermission(
+            Manifest.permission.INTERACT_ACROSS_USERS, pkg) } == PERMISSION_GRANTED ||
+        stage.ipc { packageManager.checkPermission(
+            Manifest.permission.INTERACT_ACROSS_USERS_FULL, pkg) } == PERMISSION_GRANTED
 }
 
 private fun Context.forUser(user: UserHandle): Context {
@@ -577,19 +703,27 @@ class AutoRevokeService : JobService() {
 
         jobStartTime = System.currentTimeMillis()
         job = GlobalScope.launch(Main) {
+            val report = AutoRevokeReport(isDryRun = false)
             try {
                 var sessionId = INVALID_SESSION_ID
                 while (sessionId == INVALID_SESSION_ID) {
                     sessionId = Random().nextLong()
                 }
 
-                val revokedApps = revokePermissionsOnUnusedApps(this@AutoRevokeService, sessionId)
+                val revokedApps = revokePermissionsOnUnusedApps(this@AutoRevokeService, sessionId,
+                    report)
                 if (revokedApps.isNotEmpty()) {
-                    showAutoRevokeNotification(sessionId)
+                    report.newStage("notification").run {
+                        showAutoRevokeNotification(sessionId)
+                    }
                 }
             } catch (e: Exception) {
                 DumpableLog.e(LOG_TAG, "Failed to auto-revoke permissions", e)
             }
+            // Also record runs which were stopped
+            withContext(IPC + NonCancellable) {
+                AutoRevokeRunHistory.add(report)
+            }
             jobFinished(params, false)
         }
         return true
@@ -652,64 +786,15 @@ class AutoRevokeService : JobService() {
  */
 class ExemptServicesLiveData(val user: UserHandle)
     : SmartUpdateMediatorLiveData<Map<String, List<String>>>() {
-    private val serviceLiveDatas: List<SmartUpdateMediatorLiveData<Set<String>>> = listOf(
-            ServiceLiveData[InputMethod.SERVICE_INTERFACE,
-                    Manifest.permission.BIND_INPUT_METHOD,
-                    user],
-            ServiceLiveData[
-                    NotificationListenerService.SERVICE_INTERFACE,
-                    Manifest.permission.BIND_NOTIFICATION_LISTENER_SERVICE,
-                    user],
-            ServiceLiveData[
-                    AccessibilityService.SERVICE_INTERFACE,
-                    Manifest.permission.BIND_ACCESSIBILITY_SERVICE,
-                    user],
-            ServiceLiveData[
-                    WallpaperService.SERVICE_INTERFACE,
-                    Manifest.permission.BIND_WALLPAPER,
-                    user],
-            ServiceLiveData[
-                    VoiceInteractionService.SERVICE_INTERFACE,
-                    Manifest.permission.BIND_VOICE_INTERACTION,
-                    user],
-            ServiceLiveData[
-                    PrintService.SERVICE_INTERFACE,
-                    Manifest.permission.BIND_PRINT_SERVICE,
-                    user],
-            ServiceLiveData[
-                    DreamService.SERVICE_INTERFACE,
-                    Manifest.permission.BIND_DREAM_SERVICE,
-                    user],
-            ServiceLiveData[
-                    AutofillService.SERVICE_INTERFACE,
-                    Manifest.permission.BIND_AUTOFILL_SERVICE,
-                    user],
-            ServiceLiveData[
-                    DevicePolicyManager.ACTION_DEVICE_ADMIN_SERVICE,
-                    Manifest.permission.BIND_DEVICE_ADMIN,
-                    user],
-            BroadcastReceiverLiveData[
-                    DeviceAdminReceiver.ACTION_DEVICE_ADMIN_ENABLED,
-                    Manifest.permission.BIND_DEVICE_ADMIN,
-                    user]
-    )
+    private val boundServicesLiveData = BoundServicesLiveData[user]
 
     init {
-        serviceLiveDatas.forEach { addSource(it) { update() } }
+        addSource(boundServicesLiveData) { update() }
     }
 
     override fun onUpdate() {
-        if (serviceLiveDatas.all { it.isInitialized }) {
-            val pksToServices = mutableMapOf<String, MutableList<String>>()
-
-            serviceLiveDatas.forEach { serviceLD ->
-                serviceLD.value!!.forEach { packageName ->
-                    pksToServices.getOrPut(packageName, { mutableListOf() })
-                            .add((serviceLD as? HasIntentAction)?.intentAction ?: "???")
-                }
-            }
-
-            value = pksToServices
+        if (boundServicesLiveData.isInitialized) {
+            value = boundServicesLiveData.value
         }
     }
 
@@ -780,258 +865,140 @@ private data class TeamfoodSettings(
     }
 }
 
-/** Data interesting to auto-revoke */
-private class AutoRevokeDumpLiveData(context: Context) :
-        SmartUpdateMediatorLiveData<AutoRevokeDumpLiveData.AutoRevokeDumpData>() {
-    /** All data */
-    data class AutoRevokeDumpData(
-        val users: List<AutoRevokeDumpUserData>
-    ) {
-        fun dumpUsers(): List<PerUserProto> {
-            return users.map { it.dump() }
-        }
-    }
-
-    /** Per user data */
-    data class AutoRevokeDumpUserData(
-        val user: UserHandle,
-        val pkgs: List<AutoRevokeDumpPackageData>
-    ) {
-        fun dump(): PerUserProto {
-            val dump = PerUserProto.newBuilder()
-                    .setUserId(user.identifier)
-
-            pkgs.forEach { dump.addPackages(it.dump()) }
-
-            return dump.build()
-        }
-    }
-
-    /** Per package data */
-    data class AutoRevokeDumpPackageData(
-        val uid: Int,
-        val packageName: String,
-        val firstInstallTime: Long,
-        val lastTimeVisible: Long?,
-        val implementedServices: List<String>,
-        val groups: List<AutoRevokeDumpGroupData>
-    ) {
-        fun dump(): PackageProto {
-            val dump = PackageProto.newBuilder()
-                    .setUid(uid)
-                    .setPackageName(packageName)
-                    .setFirstInstallTime(firstInstallTime)
-
-            lastTimeVisible?.let { dump.lastTimeVisible = lastTimeVisible }
-
-            implementedServices.forEach { dump.addImplementedServices(it) }
-
-            groups.forEach { dump.addGroups(it.dump()) }
-
-            return dump.build()
-        }
-    }
+/**
+ * How many packages [AutoRevokeDumper] dumps at the same time
+ */
+private const val DUMP_CONCURRENCY = 8
 
-    /** Per permission group data */
-    data class AutoRevokeDumpGroupData(
-        val groupName: String,
-        val isFixed: Boolean,
-        val isAnyGrantedIncludingAppOp: Boolean,
-        val isGrantedByDefault: Boolean,
-        val isGrantedByRole: Boolean,
-        val isUserSensitive: Boolean,
-        val isAutoRevoked: Boolean
-    ) {
-        fun dump(): PermissionGroupProto {
-            return PermissionGroupProto.newBuilder()
-                    .setGroupName(groupName)
-                    .setIsFixed(isFixed)
-                    .setIsAnyGrantedIncludingAppop(isAnyGrantedIncludingAppOp)
-                    .setIsGrantedByDefault(isGrantedByDefault)
-                    .setIsGrantedByRole(isGrantedByRole)
-                    .setIsUserSensitive(isUserSensitive)
-                    .setIsAutoRevoked(isAutoRevoked)
-                    .build()
-        }
+/**
+ * Dumps the data interesting to auto-revoke, one package at a time, until a deadline.
+ *
+ * Each package is dumped as soon as its permission groups are loaded, and its LiveDatas are
+ * released right after. Packages which are not dumped by the deadline are left out, so a dump of
+ * a device with many packages is partial instead of missing.
+ *
+ * @param context The current context
+ * @param deadline The [elapsed realtime][SystemClock.elapsedRealtime] at which to stop dumping
+ */
+private class AutoRevokeDumper(private val context: Context, private val deadline: Long) {
+    private suspend fun <T> awaitUntilDeadline(deferred: Deferred<T>): T? {
+        return withTimeoutOrNull(deadline - SystemClock.elapsedRealtime()) { deferred.await() }
     }
 
-    /** All users */
-    private val users = UsersLiveData
-
-    /** Exempt services for each user: user -> services */
-    private var services: MutableMap<UserHandle, ExemptServicesLiveData>? = null
-
-    /** Usage stats: user -> list<usages> */
-    private val usages = UsageStatsLiveData[
-        getUnusedThresholdMs(context),
-        if (DEBUG_OVERRIDE_THRESHOLDS) INTERVAL_DAILY else INTERVAL_MONTHLY
-    ]
-
-    /** All package infos: user -> pkg **/
-    private val packages = AllPackageInfosLiveData
-
-    /** Group names of revoked permission groups: (user, pkg-name) -> set<group-name> **/
-    private val revokedPermGroupNames = UnusedAutoRevokedPackagesLiveData
-
     /**
-     * Group names for packages
-     * map<user, pkg-name> -> list<perm-group-name>. {@code null} before step 1
-     */
-    private var pkgPermGroupNames:
-            MutableMap<Pair<UserHandle, String>, PackagePermissionsLiveData>? = null
-
-    /**
-     * Group state for packages
-     * map<(user, pkg-name) -> map<perm-group-name -> group>>, value {@code null} before step 2
+     * Dump all users and their packages.
+     *
+     * @param dump The builder to add the users to
+     *
+     * @return whether all packages of all users were dumped
      */
-    private val pkgPermGroups =
-            mutableMapOf<Pair<UserHandle, String>,
-                    MutableMap<String, LightAppPermGroupLiveData>?>()
-
-    /** If this live-data currently inside onUpdate */
-    private var isUpdating = false
-
-    init {
-        addSource(revokedPermGroupNames) {
-            update()
-        }
-
-        addSource(users) {
-            services?.values?.forEach { removeSource(it) }
-            services = null
-
-            update()
-        }
-
-        addSource(usages) {
-            update()
-        }
-
-        addSource(packages) {
-            pkgPermGroupNames?.values?.forEach { removeSource(it) }
-            pkgPermGroupNames = null
-            pkgPermGroups.values.forEach { it?.values?.forEach { removeSource(it) } }
-
-            update()
-        }
-    }
-
-    override fun onUpdate() {
-        // If a source is already ready, the call onUpdate when added. Suppress this
-        if (isUpdating) {
-            return
-        }
-        isUpdating = true
-
-        // services/autoRevokeManifestExemptPackages step 1, users is loaded, nothing else
-        if (users.isInitialized && services == null) {
-            services = mutableMapOf()
-
-            for (user in users.value!!) {
-                val newServices = ExemptServicesLiveData[user]
-                services!![user] = newServices
+    suspend fun dumpUsers(dump: AutoRevokePermissionsDumpProto.Builder): Boolean {
+        // All loads are owned by the dump, so none of them outlives it
+        val job = Job()
+        try {
+            return dumpUsers(dump, CoroutineScope(IPC + job), job)
+        } finally {
+            job.cancel()
+        }
+    }
+
+    private suspend fun dumpUsers(
+        dump: AutoRevokePermissionsDumpProto.Builder,
+        scope: CoroutineScope,
+        job: Job
+    ): Boolean {
+        val packages = scope.async { AllPackageInfosLiveData.getInitializedValue() }
+        val usages = scope.async {
+            LastVisibleTimesLiveData[getUnusedThresholdMs(context)].getInitializedValue()
+        }
+        val revokedPermGroupNames = scope.async {
+            UnusedAutoRevokedPackagesLiveData.getInitializedValue()
+        }
+
+        val allPackages = awaitUntilDeadline(packages) ?: return false
+        val servicesByUser = allPackages.keys.associateWith { user ->
+            scope.async { ExemptServicesLiveData[user].getInitializedValue() }
+        }
+        val lastVisibleTimes = awaitUntilDeadline(usages) ?: return false
+        val revokedGroups = awaitUntilDeadline(revokedPermGroupNames) ?: return false
+        val services = servicesByUser.mapValues { (_, userServices) ->
+            awaitUntilDeadline(userServices) ?: return false
+        }
+
+        val entries = allPackages.flatMap { (user, pkgs) -> pkgs.map { pkg -> user to pkg } }
+        val packageDumps = AtomicReferenceArray<PackageProto>(entries.size)
+        val nextIndex = AtomicInteger()
+        val workers = List(minOf(DUMP_CONCURRENCY, entries.size)) {
+            scope.launch {
+                while (isActive) {
+                    val index = nextIndex.getAndIncrement()
+                    if (index >= entries.size) {
+                        break
+                    }
 
-                addSource(newServices) {
-                    update()
+                    val (user, pkg) = entries[index]
+                    packageDumps.set(index, dumpPackage(user, pkg,
+                        lastVisibleTimes[user]?.lastTimeVisible(pkg.packageName),
+                        services[user]!![pkg.packageName] ?: emptyList(),
+                        revokedGroups[pkg.packageName to user] ?: emptySet()))
                 }
             }
         }
-
-        // pkgPermGroupNames step 1, packages is loaded, nothing else
-        if (packages.isInitialized && pkgPermGroupNames == null) {
-            pkgPermGroupNames = mutableMapOf()
-
-            for ((user, userPkgs) in packages.value!!) {
-                for (pkg in userPkgs) {
-                    val newPermGroupNames = PackagePermissionsLiveData[pkg.packageName, user]
-                    pkgPermGroupNames!![user to pkg.packageName] = newPermGroupNames
-
-                    addSource(newPermGroupNames) {
-                        pkgPermGroups[user to pkg.packageName]?.forEach { removeSource(it.value) }
-                        pkgPermGroups.remove(user to pkg.packageName)
-
-                        update()
-                    }
-                }
+        val isComplete = withTimeoutOrNull(deadline - SystemClock.elapsedRealtime()) {
+            workers.joinAll()
+            true
+        } ?: false
+        // Waiting for a LiveData is cancellable, hence the workers stop right away
+        job.cancelAndJoin()
+
+        var index = 0
+        for ((user, pkgs) in allPackages) {
+            val userDump = PerUserProto.newBuilder()
+                .setUserId(user.identifier)
+            for (i in pkgs.indices) {
+                packageDumps.get(index++)?.let { userDump.addPackages(it) }
             }
-        }
-
-        // pkgPermGroupNames step 2, packages and pkgPermGroupNames are loaded, but pkgPermGroups
-        // are not loaded yet
-        if (packages.isInitialized && pkgPermGroupNames != null) {
-            for ((user, userPkgs) in packages.value!!) {
-                for (pkg in userPkgs) {
-                    if (pkgPermGroupNames!![user to pkg.packageName]?.isInitialized == true &&
-                            pkgPermGroups[user to pkg.packageName] == null) {
-                        pkgPermGroups[user to pkg.packageName] = mutableMapOf()
-
-                        for (groupName in
-                                pkgPermGroupNames!![user to pkg.packageName]!!.value!!.keys) {
-                            if (groupName == PackagePermissionsLiveData.NON_RUNTIME_NORMAL_PERMS) {
-                                continue
-                            }
-
-                            val newPkgPermGroup = LightAppPermGroupLiveData[pkg.packageName,
-                                    groupName, user]
-
-                            pkgPermGroups[user to pkg.packageName]!![groupName] = newPkgPermGroup
-
-                            addSource(newPkgPermGroup) { update() }
-                        }
-                    }
-                }
+            dump.addUsers(userDump.setIsTruncated(userDump.packagesCount < pkgs.size))
+        }
+
+        return isComplete
+    }
+
+    private suspend fun dumpPackage(
+        user: UserHandle,
+        pkg: LightPackageInfo,
+        lastTimeVisible: Long?,
+        implementedServices: List<String>,
+        revokedGroups: Set<String>
+    ): PackageProto {
+        val dump = PackageProto.newBuilder()
+            .setUid(pkg.uid)
+            .setPackageName(pkg.packageName)
+            .setFirstInstallTime(pkg.firstInstallTime)
+            .addAllImplementedServices(implementedServices)
+        lastTimeVisible?.let { dump.lastTimeVisible = lastTimeVisible }
+
+        val groupNames = PackagePermissionsLiveData[pkg.packageName, user].getInitializedValue()
+            ?.keys ?: emptySet<String>()
+        for (groupName in groupNames) {
+            if (groupName == PackagePermissionsLiveData.NON_RUNTIME_NORMAL_PERMS) {
+                continue
             }
-        }
-
-        // Final step, everything is loaded, generate data
-        if (packages.isInitialized && usages.isInitialized && revokedPermGroupNames.isInitialized &&
-                pkgPermGroupNames?.values?.all { it.isInitialized } == true &&
-                pkgPermGroupNames?.size == pkgPermGroups.size &&
-                pkgPermGroups.values.all { it?.values?.all { it.isInitialized } == true } &&
-                services?.values?.all { it.isInitialized } == true) {
-            val users = mutableListOf<AutoRevokeDumpUserData>()
-
-            for ((user, userPkgs) in packages.value!!) {
-                val pkgs = mutableListOf<AutoRevokeDumpPackageData>()
-
-                for (pkg in userPkgs) {
-                    val groups = mutableListOf<AutoRevokeDumpGroupData>()
-
-                    for (groupName in pkgPermGroupNames!![user to pkg.packageName]!!.value!!.keys) {
-                        if (groupName == PackagePermissionsLiveData.NON_RUNTIME_NORMAL_PERMS) {
-                            continue
-                        }
 
-                        pkgPermGroups[user to pkg.packageName]?.let {
-                            it[groupName]?.value?.apply {
-                                groups.add(AutoRevokeDumpGroupData(groupName,
-                                        isBackgroundFixed || isForegroundFixed,
-                                        permissions.any { (_, p) -> p.isGrantedIncludingAppOp },
-                                        isGrantedByDefault,
-                                        isGrantedByRole,
-                                        isUserSensitive,
-                                    revokedPermGroupNames.value?.let {
-                                        it[pkg.packageName to user]
-                                            ?.contains(groupName)
-                                    } == true
-                                ))
-                            }
-                        }
-                    }
-
-                    pkgs.add(AutoRevokeDumpPackageData(pkg.uid, pkg.packageName,
-                            pkg.firstInstallTime,
-                            usages.value!![user]?.lastTimeVisible(pkg.packageName),
-                            services!![user]?.value!![pkg.packageName] ?: emptyList(),
-                            groups))
+            LightAppPermGroupLiveData[pkg.packageName, groupName, user].getInitializedValue()
+                ?.apply {
+                    dump.addGroups(PermissionGroupProto.newBuilder()
+                        .setGroupName(groupName)
+                        .setIsFixed(isBackgroundFixed || isForegroundFixed)
+                        .setIsAnyGrantedIncludingAppop(
+                            permissions.any { (_, p) -> p.isGrantedIncludingAppOp })
+                        .setIsGrantedByDefault(isGrantedByDefault)
+                        .setIsGrantedByRole(isGrantedByRole)
+                        .setIsUserSensitive(isUserSensitive)
+                        .setIsAutoRevoked(groupName in revokedGroups))
                 }
-
-                users.add(AutoRevokeDumpUserData(user, pkgs))
-            }
-
-            value = AutoRevokeDumpData(users)
         }
 
-        isUpdating = false
+        return dump.build()
     }
 }
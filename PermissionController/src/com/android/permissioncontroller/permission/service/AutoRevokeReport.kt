@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.service
+
+import android.os.UserHandle
+import com.android.permissioncontroller.permission.service.AutoRevokePermissionsProto.AutoRevokeRunProto
+
+/**
+ * What an auto revoke run did, or would have done if it is a dry run, and how long each of its
+ * phases took.
+ *
+ * @param isDryRun Whether the run only records what it would do, without changing any state
+ */
+class AutoRevokeReport(val isDryRun: Boolean) {
+    /**
+     * When the run started
+     */
+    val startTimeMillis = System.currentTimeMillis()
+
+    /**
+     * The number of packages whose usage was evaluated
+     */
+    @Volatile
+    var numPackagesExamined = 0
+
+    /**
+     * A package which was revoked, or skipped.
+     *
+     * @param packageName The name of the package
+     * @param user The user of the package
+     * @param groups The permission groups which were revoked, if any
+     * @param reason Why the package was skipped, if it was
+     */
+    data class PackageResult(
+        val packageName: String,
+        val user: UserHandle,
+        val groups: List<String> = emptyList(),
+        val reason: String? = null
+    )
+
+    private val _revoked = mutableListOf<PackageResult>()
+    private val _skipped = mutableListOf<PackageResult>()
+
+    /**
+     * The packages whose permissions were revoked
+     */
+    val revoked: List<PackageResult>
+        get() = synchronized(this) { _revoked.toList() }
+
+    /**
+     * The unused packages whose permissions were not revoked, with the reason
+     */
+    val skipped: List<PackageResult>
+        get() = synchronized(this) { _skipped.toList() }
+
+    /**
+     * The phases of the run, in the order they ran
+     */
+    val stages = mutableListOf<AutoRevokeStage>()
+
+    /**
+     * Create a new phase of the run.
+     *
+     * @param name The name of the phase
+     * @param maxConcurrency The maximum number of items the phase processes at the same time
+     *
+     * @return The phase
+     */
+    fun newStage(name: String, maxConcurrency: Int = 1): AutoRevokeStage {
+        return AutoRevokeStage(name, maxConcurrency).also { stages.add(it) }
+    }
+
+    @Synchronized
+    fun addRevoked(packageName: String, user: UserHandle, groups: List<String>) {
+        _revoked.add(PackageResult(packageName, user, groups))
+    }
+
+    @Synchronized
+    fun addSkipped(packageName: String, user: UserHandle, reason: String) {
+        _skipped.add(PackageResult(packageName, user, reason = reason))
+    }
+
+    /**
+     * @return the instrumentation of the run as a proto
+     */
+    fun toProto(): AutoRevokeRunProto {
+        return AutoRevokeRunProto.newBuilder()
+            .setStartTimeMillis(startTimeMillis)
+            .setIsDryRun(isDryRun)
+            .addAllPhases(stages.map { it.toProto() })
+            .setNumPackagesExamined(numPackagesExamined)
+            .setNumPackagesRevoked(revoked.size)
+            .setPeakMemoryKb(stages.fold(0L) { peak, stage -> maxOf(peak, stage.peakMemoryKb) })
+            .build()
+    }
+
+    override fun toString(): String {
+        val revoked = revoked
+        val skipped = skipped
+
+        return buildString {
+            append(if (isDryRun) "Auto revoke dry run" else "Auto revoke run")
+            append(": ${revoked.size} packages ")
+            append(if (isDryRun) "would be revoked" else "revoked")
+            append(", ${skipped.size} unused packages skipped, " +
+                "$numPackagesExamined packages examined\n")
+            for (stage in stages) {
+                append("  $stage\n")
+            }
+            for (result in revoked) {
+                append("  revoke ${result.packageName} (u${result.user.identifier}): " +
+                    "${result.groups}\n")
+            }
+            for (result in skipped) {
+                append("  skip ${result.packageName} (u${result.user.identifier}): " +
+                    "${result.reason}\n")
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.service
+
+import android.util.AtomicFile
+import android.util.Log
+import androidx.annotation.WorkerThread
+import com.android.permissioncontroller.Constants.AUTO_REVOKE_RUN_HISTORY_FILE
+import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.service.AutoRevokePermissionsProto.AutoRevokeRunHistoryProto
+import com.android.permissioncontroller.permission.service.AutoRevokePermissionsProto.AutoRevokeRunProto
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+
+/**
+ * The instrumentation of the most recent auto revoke runs, persisted as the runs are days apart
+ * and the process usually does not survive in between.
+ *
+ * Only real runs are kept. Dry runs can be triggered at any rate, and would push the real runs out.
+ */
+object AutoRevokeRunHistory {
+    private val LOG_TAG = AutoRevokeRunHistory::class.java.simpleName
+
+    /**
+     * How many runs are kept
+     */
+    private const val MAX_RUNS = 10
+
+    private val lock = Any()
+    private val file = AtomicFile(File(PermissionControllerApplication.get().filesDir,
+        AUTO_REVOKE_RUN_HISTORY_FILE))
+
+    /**
+     * Add a run, dropping the oldest run if there are too many. Performs disk I/O, do not call
+     * from the main thread.
+     *
+     * @param report The report of the run, must not be a dry run
+     */
+    @WorkerThread
+    fun add(report: AutoRevokeReport) {
+        require(!report.isDryRun) { "Dry runs are not recorded" }
+
+        synchronized(lock) {
+            val runs = read() + report.toProto()
+
+            val stream = try {
+                file.startWrite()
+            } catch (e: IOException) {
+                Log.w(LOG_TAG, "Cannot write auto revoke run history", e)
+                return
+            }
+
+            try {
+                AutoRevokeRunHistoryProto.newBuilder()
+                    .addAllRuns(runs.takeLast(MAX_RUNS))
+                    .build()
+                    .writeTo(stream)
+                file.finishWrite(stream)
+            } catch (e: IOException) {
+                Log.w(LOG_TAG, "Cannot write auto revoke run history", e)
+                file.failWrite(stream)
+            }
+        }
+    }
+
+    /**
+     * Get the most recent runs. Performs disk I/O, do not call from the main thread.
+     *
+     * @return the runs, oldest first
+     */
+    @WorkerThread
+    fun get(): List<AutoRevokeRunProto> {
+        synchronized(lock) {
+            return read()
+        }
+    }
+
+    private fun read(): List<AutoRevokeRunProto> {
+        try {
+            file.openRead().use { input ->
+                return AutoRevokeRunHistoryProto.parseFrom(input).runsList
+            }
+        } catch (e: FileNotFoundException) {
+            return emptyList()
+        } catch (e: IOException) {
+            Log.w(LOG_TAG, "Cannot read auto revoke run history", e)
+            file.delete()
+            return emptyList()
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.service
+
+import android.os.Debug
+import android.os.SystemClock
+import com.android.permissioncontroller.permission.service.AutoRevokePermissionsProto.AutoRevokePhaseProto
+import com.android.permissioncontroller.permission.utils.IPC
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A stage of the auto revoke pipeline. Processes items on the [IPC] dispatcher with at most
+ * [maxConcurrency] coroutines, no matter how many items there are, and keeps track of its
+ * throughput and the binder calls it made through [ipc].
+ *
+ * A stage can be run several times, its statistics add up.
+ *
+ * @param name The name of the stage, used in logs
+ * @param maxConcurrency The maximum number of items processed at the same time
+ */
+class AutoRevokeStage(
+    val name: String,
+    private val maxConcurrency: Int
+) {
+    /**
+     * The number of items processed
+     */
+    var numItems = 0
+        private set
+
+    /**
+     * The time spent processing items
+     */
+    var durationMillis = 0L
+        private set
+
+    private val ipcs = AtomicInteger()
+
+    /**
+     * The number of binder calls the stage made through [ipc]. Calls made by LiveDatas the stage
+     * loads, or by helpers making several calls at once, are not counted.
+     */
+    val numIpcs: Int
+        get() = ipcs.get()
+
+    /**
+     * When the stage first started processing items, 0 if it did not yet
+     */
+    var startTimeMillis = 0L
+        private set
+
+    /**
+     * The peak of the java and native heap, sampled whenever the stage finished processing items
+     */
+    var peakMemoryKb = 0L
+        private set
+
+    private val activeCoroutines = AtomicInteger()
+    private val peakCoroutines = AtomicInteger()
+
+    /**
+     * The maximum number of coroutines which processed items at the same time
+     */
+    val peakCoroutineCount: Int
+        get() = peakCoroutines.get()
+
+    /**
+     * Process items, in parallel.
+     *
+     * @param items The items to process
+     * @param transform Processes an item, returns null if the item should be dropped
+     *
+     * @return The non-null results, in the order of the items
+     */
+    suspend fun <T, R : Any> mapNotNull(items: List<T>, transform: suspend (T) -> R?): List<R> {
+        return measure(items.size) {
+            val results = arrayOfNulls<Any>(items.size)
+            val nextIndex = AtomicInteger()
+
+            coroutineScope {
+                repeat(minOf(maxConcurrency, items.size)) {
+                    launch(IPC) {
+                        val numActive = activeCoroutines.incrementAndGet()
+                        peakCoroutines.accumulateAndGet(numActive) { a, b -> maxOf(a, b) }
+                        try {
+                            while (true) {
+                                val index = nextIndex.getAndIncrement()
+                                if (index >= items.size) {
+                                    break
+                                }
+                                results[index] = transform(items[index])
+                            }
+                        } finally {
+                            activeCoroutines.decrementAndGet()
+                        }
+                    }
+                }
+            }
+
+            @Suppress("UNCHECKED_CAST")
+            results.filterNotNull() as List<R>
+        }
+    }
+
+    /**
+     * Run a phase which is not split into items, e.g. loading a LiveData, in the calling
+     * coroutine.
+     *
+     * @param block The phase
+     *
+     * @return The result of the phase
+     */
+    suspend fun <R> run(block: suspend () -> R): R {
+        peakCoroutines.accumulateAndGet(1) { a, b -> maxOf(a, b) }
+        return measure(1, block)
+    }
+
+    /**
+     * Make a binder call on behalf of the stage and count it.
+     *
+     * @param call The binder call
+     *
+     * @return The result of the call
+     */
+    fun <R> ipc(call: () -> R): R {
+        ipcs.incrementAndGet()
+        return call()
+    }
+
+    private suspend fun <R> measure(numItems: Int, block: suspend () -> R): R {
+        if (startTimeMillis == 0L) {
+            startTimeMillis = System.currentTimeMillis()
+        }
+        val start = SystemClock.elapsedRealtime()
+
+        val result = block()
+
+        this.numItems += numItems
+        durationMillis += SystemClock.elapsedRealtime() - start
+
+        val runtime = Runtime.getRuntime()
+        val memoryKb = (runtime.totalMemory() - runtime.freeMemory() +
+            Debug.getNativeHeapAllocatedSize()) / 1024
+        peakMemoryKb = maxOf(peakMemoryKb, memoryKb)
+        return result
+    }
+
+    /**
+     * @return the stage as a proto
+     */
+    fun toProto(): AutoRevokePhaseProto {
+        return AutoRevokePhaseProto.newBuilder()
+            .setName(name)
+            .setStartTimeMillis(startTimeMillis)
+            .setDurationMillis(durationMillis)
+            .setNumItems(numItems)
+            .setPeakCoroutines(peakCoroutineCount)
+            .setNumIpcs(numIpcs)
+            .build()
+    }
+
+    override fun toString(): String {
+        val itemsPerSecond = numItems * 1000L / maxOf(durationMillis, 1L)
+        return "$name: $numItems items in ${durationMillis}ms ($itemsPerSecond/s), " +
+            "peak $peakCoroutineCount coroutines, $numIpcs IPCs"
+    }
+}
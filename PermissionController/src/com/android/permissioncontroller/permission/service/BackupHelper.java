@@ -16,12 +16,12 @@
 
 package com.android.permissioncontroller.permission.service;
 
-import static android.content.Context.MODE_PRIVATE;
 import static android.content.pm.PackageManager.FLAG_PERMISSION_POLICY_FIXED;
 import static android.content.pm.PackageManager.FLAG_PERMISSION_SYSTEM_FIXED;
 import static android.content.pm.PackageManager.GET_PERMISSIONS;
 import static android.util.Xml.newSerializer;
 
+import static com.android.permissioncontroller.Constants.DELAYED_RESTORE_PERMISSIONS_DIR;
 import static com.android.permissioncontroller.Constants.DELAYED_RESTORE_PERMISSIONS_FILE;
 
 import static org.xmlpull.v1.XmlPullParser.END_DOCUMENT;
@@ -37,6 +37,8 @@ import android.os.Build;
 import android.os.UserHandle;
 import android.permission.PermissionManager;
 import android.permission.PermissionManager.SplitPermissionInfo;
+import android.util.ArraySet;
+import android.util.AtomicFile;
 import android.util.Log;
 import android.util.Xml;
 
@@ -53,9 +55,11 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -80,6 +84,12 @@ public class BackupHelper {
     private static final String ATTR_USER_FIXED = "fixed";
     private static final String ATTR_WAS_REVIEWED = "was-reviewed";
 
+    /** Suffix of the files in {@link Constants#DELAYED_RESTORE_PERMISSIONS_DIR} */
+    private static final String DELAYED_RESTORE_FILE_SUFFIX = ".xml";
+
+    /** Suffix {@link AtomicFile} adds to the copy of a file it keeps while the file is written */
+    private static final String ATOMIC_FILE_BACKUP_SUFFIX = ".bak";
+
     /** Flags of permissions to <u>not</u> back up */
     private static final int SYSTEM_RUNTIME_GRANT_MASK = FLAG_PERMISSION_POLICY_FIXED
             | FLAG_PERMISSION_SYSTEM_FIXED;
@@ -210,7 +220,7 @@ public class BackupHelper {
      * Try to restore the permission state from XML.
      *
      * <p>If some apps could not be restored, the leftover apps are written to
-     * {@link Constants#DELAYED_RESTORE_PERMISSIONS_FILE}.
+     * {@link Constants#DELAYED_RESTORE_PERMISSIONS_DIR}.
      *
      * @param parser The xml to read
      */
@@ -243,13 +253,11 @@ public class BackupHelper {
     }
 
     /**
-     * Write a xml file for the given packages.
+     * Write the start of a xml file, up to where the packages are written.
      *
      * @param serializer The file to write to
-     * @param pkgs The packages to write
      */
-    private static void writePkgsAsXml(@NonNull XmlSerializer serializer,
-            @NonNull ArrayList<BackupPackageState> pkgs) throws IOException {
+    private static void writeXmlStart(@NonNull XmlSerializer serializer) throws IOException {
         serializer.startDocument(null, true);
 
         serializer.startTag(null, TAG_PERMISSION_BACKUP);
@@ -264,6 +272,29 @@ public class BackupHelper {
         }
 
         serializer.startTag(null, TAG_ALL_GRANTS);
+    }
+
+    /**
+     * Write the end of a xml file, after the packages.
+     *
+     * @param serializer The file to write to
+     */
+    private static void writeXmlEnd(@NonNull XmlSerializer serializer) throws IOException {
+        serializer.endTag(null, TAG_ALL_GRANTS);
+        serializer.endTag(null, TAG_PERMISSION_BACKUP);
+
+        serializer.endDocument();
+    }
+
+    /**
+     * Write a xml file for the given packages.
+     *
+     * @param serializer The file to write to
+     * @param pkgs The packages to write
+     */
+    private static void writePkgsAsXml(@NonNull XmlSerializer serializer,
+            @NonNull ArrayList<BackupPackageState> pkgs) throws IOException {
+        writeXmlStart(serializer);
 
         int numPkgs = pkgs.size();
         for (int i = 0; i < numPkgs; i++) {
@@ -274,101 +305,293 @@ public class BackupHelper {
             }
         }
 
-        serializer.endTag(null, TAG_ALL_GRANTS);
-        serializer.endTag(null, TAG_PERMISSION_BACKUP);
+        writeXmlEnd(serializer);
+    }
 
-        serializer.endDocument();
+    /**
+     * Get the directory containing the packages that still need to be restored, one file per
+     * package.
+     *
+     * @return The directory
+     */
+    private @NonNull File getDelayedRestoreDir() {
+        return new File(mContext.getFilesDir(), DELAYED_RESTORE_PERMISSIONS_DIR);
     }
 
     /**
-     * Update the {@link Constants#DELAYED_RESTORE_PERMISSIONS_FILE} to contain the
-     * {@code packagesToRestoreLater}.
+     * Get the file containing the delayed restore state of a package.
+     *
+     * @param packageName The package
      *
-     * @param packagesToRestoreLater The new pkgs in the delayed restore file
+     * @return The file, which might not exist
      */
-    private void writeDelayedStorePkgsLocked(
-            @NonNull ArrayList<BackupPackageState> packagesToRestoreLater) {
-        try (OutputStream delayedRestoreData = mContext.openFileOutput(
-                DELAYED_RESTORE_PERMISSIONS_FILE, MODE_PRIVATE)) {
+    private @NonNull AtomicFile getDelayedRestoreFile(@NonNull String packageName) {
+        return new AtomicFile(new File(getDelayedRestoreDir(),
+                packageName + DELAYED_RESTORE_FILE_SUFFIX));
+    }
+
+    /**
+     * Get the {@link Constants#DELAYED_RESTORE_PERMISSIONS_FILE}, as written by older versions.
+     *
+     * @return The file, which might not exist
+     */
+    private @NonNull AtomicFile getLegacyDelayedRestoreFile() {
+        return new AtomicFile(new File(mContext.getFilesDir(), DELAYED_RESTORE_PERMISSIONS_FILE));
+    }
+
+    /**
+     * Get the packages that still need to be restored.
+     *
+     * <p>A package is found as long as {@link AtomicFile#exists() its file exists}, i.e. also
+     * while only the backup copy of the file exists.
+     *
+     * @return The package names, empty if there are none
+     */
+    private @NonNull ArraySet<String> getDelayedRestorePkgNamesLocked() {
+        ArraySet<String> pkgNames = new ArraySet<>();
+
+        String[] fileNames = getDelayedRestoreDir().list();
+        if (fileNames == null) {
+            return pkgNames;
+        }
+
+        for (String fileName : fileNames) {
+            if (fileName.endsWith(ATOMIC_FILE_BACKUP_SUFFIX)) {
+                fileName = fileName.substring(0,
+                        fileName.length() - ATOMIC_FILE_BACKUP_SUFFIX.length());
+            }
+
+            if (fileName.endsWith(DELAYED_RESTORE_FILE_SUFFIX)) {
+                pkgNames.add(fileName.substring(0,
+                        fileName.length() - DELAYED_RESTORE_FILE_SUFFIX.length()));
+            }
+        }
+
+        return pkgNames;
+    }
+
+    /**
+     * Write a xml file for the given packages, replacing the previous content of the file.
+     *
+     * @param file The file to write to
+     * @param pkgs The packages to write
+     *
+     * @return {@code true} iff the file was written
+     */
+    private static boolean writePkgsToFile(@NonNull AtomicFile file,
+            @NonNull ArrayList<BackupPackageState> pkgs) {
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+
             XmlSerializer serializer = newSerializer();
-            serializer.setOutput(delayedRestoreData, UTF_8.name());
+            serializer.setOutput(out, UTF_8.name());
 
-            writePkgsAsXml(serializer, packagesToRestoreLater);
+            writePkgsAsXml(serializer, pkgs);
             serializer.flush();
+
+            file.finishWrite(out);
+            return true;
         } catch (IOException e) {
-            Log.e(LOG_TAG, "Could not remember which packages still need to be restored", e);
+            Log.e(LOG_TAG, "Could not write " + file.getBaseFile(), e);
+            if (out != null) {
+                file.failWrite(out);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Store the delayed restore state of a package, replacing the previous state of the package.
+     *
+     * @param pkgState The state to store
+     *
+     * @return {@code true} iff the state was stored
+     */
+    private boolean writeDelayedStorePkgLocked(@NonNull BackupPackageState pkgState) {
+        getDelayedRestoreDir().mkdirs();
+
+        ArrayList<BackupPackageState> pkgs = new ArrayList<>(1);
+        pkgs.add(pkgState);
+        if (!writePkgsToFile(getDelayedRestoreFile(pkgState.mPackageName), pkgs)) {
+            Log.e(LOG_TAG, "Could not remember that " + pkgState.mPackageName
+                    + " still needs to be restored");
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Update the {@link Constants#DELAYED_RESTORE_PERMISSIONS_DIR} to contain exactly the
+     * {@code packagesToRestoreLater}.
+     *
+     * @param packagesToRestoreLater The new pkgs in the delayed restore directory
+     */
+    private void writeDelayedStorePkgsLocked(
+            @NonNull ArrayList<BackupPackageState> packagesToRestoreLater) {
+        // A pending migration would only bring back state this replaces
+        getLegacyDelayedRestoreFile().delete();
+
+        for (String pkgName : getDelayedRestorePkgNamesLocked()) {
+            getDelayedRestoreFile(pkgName).delete();
+        }
+
+        int numPkgs = packagesToRestoreLater.size();
+        for (int i = 0; i < numPkgs; i++) {
+            writeDelayedStorePkgLocked(packagesToRestoreLater.get(i));
+        }
+    }
+
+    /**
+     * Move the packages of a {@link Constants#DELAYED_RESTORE_PERMISSIONS_FILE}, as written by
+     * older versions, into the {@link Constants#DELAYED_RESTORE_PERMISSIONS_DIR}.
+     *
+     * <p>Packages that could not be moved stay in the file, so they are moved by the next call.
+     */
+    private void migrateDelayedRestoreFileLocked() {
+        AtomicFile legacyFile = getLegacyDelayedRestoreFile();
+
+        ArrayList<BackupPackageState> packagesToRestoreLater;
+        try (FileInputStream delayedRestoreData = legacyFile.openRead()) {
+            XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(delayedRestoreData, UTF_8.name());
+
+            packagesToRestoreLater = parseFromXml(parser);
+        } catch (FileNotFoundException e) {
+            // Nothing to migrate
+            return;
+        } catch (IOException | XmlPullParserException e) {
+            Log.e(LOG_TAG, "Could not parse delayed permissions", e);
+            legacyFile.delete();
+            return;
+        }
+
+        ArrayList<BackupPackageState> packagesNotMigrated = new ArrayList<>();
+        int numPkgs = packagesToRestoreLater.size();
+        for (int i = 0; i < numPkgs; i++) {
+            BackupPackageState pkgState = packagesToRestoreLater.get(i);
+
+            if (!writeDelayedStorePkgLocked(pkgState)) {
+                packagesNotMigrated.add(pkgState);
+            }
+        }
+
+        if (packagesNotMigrated.isEmpty()) {
+            legacyFile.delete();
+        } else if (packagesNotMigrated.size() < numPkgs) {
+            // Do not move the migrated packages again, they might have been restored by then.
+            // If the file cannot be written, it still contains all packages, and the migrated
+            // packages are moved again, with the same state.
+            writePkgsToFile(legacyFile, packagesNotMigrated);
         }
     }
 
+    /**
+     * Get the names of all installed packages, in the order the package manager lists them.
+     *
+     * @return The package names
+     */
+    private @NonNull String[] getInstalledPackageNames() {
+        // Do not load the permissions of all packages at once, they are loaded one package at a
+        // time by the caller
+        List<PackageInfo> pkgs = mContext.getPackageManager().getInstalledPackages(0);
+
+        int numPkgs = pkgs.size();
+        String[] pkgNames = new String[numPkgs];
+        for (int i = 0; i < numPkgs; i++) {
+            pkgNames[i] = pkgs.get(i).packageName;
+        }
+
+        return pkgNames;
+    }
+
     /**
      * Write the state of all packages as XML.
      *
+     * <p>Packages are loaded, and written, one at a time, so only the state of a single package is
+     * held in memory, no matter how many packages are installed.
+     *
      * @param serializer The xml to write to
      */
     void writeState(@NonNull XmlSerializer serializer) throws IOException {
-        List<PackageInfo> pkgs = mContext.getPackageManager().getInstalledPackages(
-                GET_PERMISSIONS);
-        ArrayList<BackupPackageState> backupPkgs = new ArrayList<>();
+        PackageManager pm = mContext.getPackageManager();
+        String[] pkgNames = getInstalledPackageNames();
+        int numPkgs = pkgNames.length;
+
+        writeXmlStart(serializer);
 
-        int numPkgs = pkgs.size();
         for (int i = 0; i < numPkgs; i++) {
+            PackageInfo pkgInfo;
+            try {
+                pkgInfo = pm.getPackageInfo(pkgNames[i], GET_PERMISSIONS);
+            } catch (PackageManager.NameNotFoundException ignored) {
+                // Uninstalled since the list of packages was loaded
+                continue;
+            }
+
             BackupPackageState packageState = BackupPackageState.fromAppPermissions(mContext,
-                    pkgs.get(i));
+                    pkgInfo);
 
             if (packageState != null) {
-                backupPkgs.add(packageState);
+                packageState.writeAsXml(serializer);
             }
         }
 
-        writePkgsAsXml(serializer, backupPkgs);
+        writeXmlEnd(serializer);
     }
 
     /**
      * Restore delayed permission state for a package (if delayed during {@link #restoreState}).
      *
+     * <p>Only the state of the package itself is read and removed, so the cost does not depend on
+     * how many packages still need to be restored.
+     *
      * @param packageName The package to be restored
      *
      * @return {@code true} if there is still delayed backup left
      */
     boolean restoreDelayedState(@NonNull String packageName) {
         synchronized (sLock) {
-            ArrayList<BackupPackageState> packagesToRestoreLater;
-
-            try (FileInputStream delayedRestoreData =
-                         mContext.openFileInput(DELAYED_RESTORE_PERMISSIONS_FILE)) {
-                XmlPullParser parser = Xml.newPullParser();
-                parser.setInput(delayedRestoreData, UTF_8.name());
-
-                packagesToRestoreLater = parseFromXml(parser);
-            } catch (IOException | XmlPullParserException e) {
-                Log.e(LOG_TAG, "Could not parse delayed permissions", e);
-                return false;
-            }
-
-            PackageInfo pkgInfo = null;
-            try {
-                pkgInfo = mContext.getPackageManager().getPackageInfo(packageName, GET_PERMISSIONS);
-            } catch (PackageManager.NameNotFoundException e) {
-                Log.e(LOG_TAG, "Could not restore delayed permissions for " + packageName, e);
-            }
+            migrateDelayedRestoreFileLocked();
 
-            if (pkgInfo != null) {
-                int numPkgs = packagesToRestoreLater.size();
-                for (int i = 0; i < numPkgs; i++) {
-                    BackupPackageState pkgState = packagesToRestoreLater.get(i);
+            AtomicFile file = getDelayedRestoreFile(packageName);
+            if (file.exists()) {
+                PackageInfo pkgInfo = null;
+                try {
+                    pkgInfo = mContext.getPackageManager().getPackageInfo(packageName,
+                            GET_PERMISSIONS);
+                } catch (PackageManager.NameNotFoundException e) {
+                    Log.e(LOG_TAG, "Could not restore delayed permissions for " + packageName, e);
+                }
 
-                    if (pkgState.mPackageName.equals(packageName)) {
-                        pkgState.restore(mContext, pkgInfo);
-                        packagesToRestoreLater.remove(i);
+                if (pkgInfo != null) {
+                    ArrayList<BackupPackageState> pkgStates;
+                    try (FileInputStream delayedRestoreData = file.openRead()) {
+                        XmlPullParser parser = Xml.newPullParser();
+                        parser.setInput(delayedRestoreData, UTF_8.name());
+
+                        pkgStates = parseFromXml(parser);
+                    } catch (IOException | XmlPullParserException e) {
+                        Log.e(LOG_TAG, "Could not parse delayed permissions for " + packageName,
+                                e);
+                        pkgStates = new ArrayList<>();
+                    }
 
-                        writeDelayedStorePkgsLocked(packagesToRestoreLater);
+                    int numPkgStates = pkgStates.size();
+                    for (int i = 0; i < numPkgStates; i++) {
+                        BackupPackageState pkgState = pkgStates.get(i);
 
-                        break;
+                        if (pkgState.mPackageName.equals(packageName)) {
+                            pkgState.restore(mContext, pkgInfo);
+                        }
                     }
+
+                    file.delete();
                 }
             }
 
-            return packagesToRestoreLater.size() > 0;
+            return !getDelayedRestorePkgNamesLocked().isEmpty();
         }
     }
 
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.service
+
+import android.Manifest.permission.MANAGE_EXTERNAL_STORAGE
+import android.app.AppOpsManager
+import android.app.AppOpsManager.OPSTR_MANAGE_EXTERNAL_STORAGE
+import android.content.Context
+import android.content.pm.PackageInfo
+import android.content.pm.PackageManager
+import android.content.pm.PackageManager.FLAG_PERMISSION_REVOKED_COMPAT
+import android.content.pm.PermissionGroupInfo
+import android.content.pm.PermissionInfo
+import android.os.UserHandle
+import android.permission.PermissionControllerManager.COUNT_ONLY_WHEN_GRANTED
+import android.permission.PermissionControllerManager.COUNT_WHEN_SYSTEM
+import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.data.AppPermGroupUiInfoLiveData
+import com.android.permissioncontroller.permission.data.FullStoragePermissionAppsLiveData
+import com.android.permissioncontroller.permission.data.PackageBroadcastReceiver
+import com.android.permissioncontroller.permission.data.UserPackageInfosLiveData
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPermInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.PermState
+import com.android.permissioncontroller.permission.utils.LocationUtils
+import com.android.permissioncontroller.permission.utils.Utils
+
+/**
+ * Counts the apps which have a permission, as [PermissionControllerServiceModel] reports to
+ * Settings for every permission summary.
+ *
+ * The count is computed straight from the package infos of the user and the flags of the
+ * permissions which matter, applying the [same rules][AppPermGroupUiInfoLiveData.isCounted] as
+ * [AppPermGroupUiInfoLiveData], but without creating a LiveData per app and group. Counts are
+ * memoized until the next permission, package, location or full storage access change.
+ *
+ * The changes are listened to from the first count on, for the lifetime of the process. The
+ * listeners only forget the memoized counts, so they never call back into the system while
+ * [lock] is held.
+ */
+object PermissionAppsCounter : PackageManager.OnPermissionsChangedListener,
+    PackageBroadcastReceiver.PackageBroadcastListener, LocationUtils.LocationListener,
+    AppOpsManager.OnOpChangedListener {
+
+    private val app = PermissionControllerApplication.get()
+
+    private data class Request(
+        val user: UserHandle,
+        val permissionNames: List<String>,
+        val flags: Int
+    )
+
+    /**
+     * A permission group as far as counting is concerned.
+     *
+     * @param name The name of the group
+     * @param permInfos The installed runtime permissions of the group
+     * @param isLegacyPlatform Whether this is a platform group which is not shown in the UI
+     */
+    private class Group(
+        val name: String,
+        val permInfos: Map<String, LightPermInfo>,
+        val isLegacyPlatform: Boolean
+    )
+
+    private val lock = Any()
+    private val counts = mutableMapOf<Request, Int>()
+
+    /**
+     * Incremented on every change, so a count which raced with a change is not memoized
+     */
+    private var generation = 0
+
+    /**
+     * Guards registering the listeners. Never held by the listeners, unlike [lock].
+     */
+    private val listenerLock = Any()
+    private var isListening = false
+
+    /**
+     * Count the apps of a user which request at least one of some permissions. Performs IPCs
+     * unless the count is memoized.
+     *
+     * @param user The user whose apps to count
+     * @param permissionNames The permissions to look for
+     * @param flags [COUNT_WHEN_SYSTEM] to count system apps, [COUNT_ONLY_WHEN_GRANTED] to count
+     * only apps which were granted the permission
+     *
+     * @return The number of apps
+     */
+    suspend fun count(user: UserHandle, permissionNames: List<String>, flags: Int): Int {
+        val request = Request(user, permissionNames.toList(), flags)
+        synchronized(listenerLock) {
+            if (!isListening) {
+                startListening()
+                isListening = true
+            }
+        }
+
+        val startGeneration = synchronized(lock) {
+            counts[request]?.let { return it }
+            generation
+        }
+
+        val count = computeCount(request)
+
+        synchronized(lock) {
+            if (generation == startGeneration) {
+                counts[request] = count
+            }
+        }
+        return count
+    }
+
+    private suspend fun computeCount(request: Request): Int {
+        val pm = app.packageManager
+        val countSystem = request.flags and COUNT_WHEN_SYSTEM != 0
+        val countOnlyGranted = request.flags and COUNT_ONLY_WHEN_GRANTED != 0
+
+        val groups = mutableMapOf<String, Group?>()
+        val permToGroup = mutableMapOf<String, Group>()
+        for (permName in request.permissionNames) {
+            val permInfo = try {
+                pm.getPermissionInfo(permName, 0)
+            } catch (e: PackageManager.NameNotFoundException) {
+                continue
+            }
+            if (!Utils.isPermissionDangerousInstalledNotRemoved(permInfo)) {
+                continue
+            }
+
+            val groupName = Utils.getGroupOfPermission(permInfo) ?: permName
+            groups.getOrPut(groupName) { loadGroup(groupName) }?.let {
+                permToGroup[permName] = it
+            }
+        }
+        if (permToGroup.isEmpty()) {
+            return 0
+        }
+
+        val packageInfos = UserPackageInfosLiveData[request.user].getInitializedValue()
+        val userContext = Utils.getUserContext(app, request.user)
+
+        var numApps = 0
+        for (pkg in packageInfos) {
+            if (!pkg.enabled || pkg.isInstantApp) {
+                continue
+            }
+
+            val pkgGroups = permToGroup.filterKeys { it in pkg.requestedPermissions }.values
+                .distinct()
+            val permFlags = mutableMapOf<String, Int>()
+            if (pkgGroups.any { group ->
+                    AppPermGroupUiInfoLiveData.isCounted(pkg, group.name, group.isLegacyPlatform,
+                        group.permInfos, countSystem, countOnlyGranted,
+                        { getSpecialLocationState(userContext, pkg, group) },
+                        { getPermissionState(userContext, request.user, pkg, group, permFlags) },
+                        { isFullFilesAccessGranted(userContext, request.user, pkg) })
+                }) {
+                numApps++
+            }
+        }
+        return numApps
+    }
+
+    private fun loadGroup(groupName: String): Group? {
+        val groupInfo = Utils.getGroupInfo(groupName, app) ?: return null
+        val permInfos = when (groupInfo) {
+            is PermissionGroupInfo -> try {
+                Utils.getInstalledRuntimePermissionInfosForGroup(app.packageManager, groupName)
+            } catch (e: PackageManager.NameNotFoundException) {
+                return null
+            }
+            is PermissionInfo -> listOf(groupInfo)
+            else -> return null
+        }
+
+        return Group(groupName, permInfos.associate { it.name to LightPermInfo(it) },
+            groupInfo.packageName == Utils.OS_PKG &&
+                !Utils.isModernPermissionGroup(groupName))
+    }
+
+    /**
+     * Get the state of the permissions of a group an app requests.
+     *
+     * @param permFlags The permission flags of the package loaded so far, shared between the
+     * groups of a package so no flags are loaded twice
+     */
+    private fun getPermissionState(
+        userContext: Context,
+        user: UserHandle,
+        pkg: LightPackageInfo,
+        group: Group,
+        permFlags: MutableMap<String, Int>
+    ): Map<String, PermState> {
+        val permissionState = mutableMapOf<String, PermState>()
+        for ((index, permName) in pkg.requestedPermissions.withIndex()) {
+            if (permName !in group.permInfos) {
+                continue
+            }
+
+            val flags = permFlags.getOrPut(permName) {
+                userContext.packageManager.getPermissionFlags(permName, pkg.packageName, user)
+            }
+            val isGrantedByPackage = pkg.requestedPermissionsFlags[index] and
+                PackageInfo.REQUESTED_PERMISSION_GRANTED != 0
+            permissionState[permName] = PermState(flags,
+                isGrantedByPackage && flags and FLAG_PERMISSION_REVOKED_COMPAT == 0)
+        }
+        return permissionState
+    }
+
+    private fun getSpecialLocationState(
+        userContext: Context,
+        pkg: LightPackageInfo,
+        group: Group
+    ): Boolean? {
+        if (LocationUtils.isLocationGroupAndProvider(userContext, group.name, pkg.packageName)) {
+            return LocationUtils.isLocationEnabled(userContext)
+        }
+        if (LocationUtils.isLocationGroupAndControllerExtraPackage(userContext, group.name,
+                pkg.packageName)) {
+            return LocationUtils.isExtraLocationControllerPackageEnabled(userContext)
+        }
+        return null
+    }
+
+    private fun isFullFilesAccessGranted(
+        userContext: Context,
+        user: UserHandle,
+        pkg: LightPackageInfo
+    ): Boolean {
+        if (MANAGE_EXTERNAL_STORAGE !in pkg.requestedPermissions) {
+            return false
+        }
+        val state = FullStoragePermissionAppsLiveData.getFullStorageStateForPackage(
+            userContext.getSystemService(AppOpsManager::class.java)!!, pkg, user)
+            ?: return false
+        return !state.isLegacy && state.isGranted
+    }
+
+    private fun startListening() {
+        app.packageManager.addOnPermissionsChangeListener(this)
+        PackageBroadcastReceiver.addAllCallback(this)
+        LocationUtils.addLocationListener(this)
+        app.getSystemService(AppOpsManager::class.java)!!
+            .startWatchingMode(OPSTR_MANAGE_EXTERNAL_STORAGE, null, this)
+    }
+
+    /**
+     * Forget all counts. Called from the listeners, hence must not call back into them.
+     */
+    private fun invalidate() {
+        synchronized(lock) {
+            generation++
+            counts.clear()
+        }
+    }
+
+    override fun onPermissionsChanged(uid: Int) {
+        invalidate()
+    }
+
+    override fun onPackageUpdate(packageName: String) {
+        invalidate()
+    }
+
+    override fun onLocationStateChange(enabled: Boolean) {
+        invalidate()
+    }
+
+    override fun onOpChanged(op: String, packageName: String) {
+        invalidate()
+    }
+}
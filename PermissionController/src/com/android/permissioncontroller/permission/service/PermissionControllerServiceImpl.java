@@ -31,7 +31,6 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Process;
@@ -71,6 +70,8 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -86,8 +87,9 @@ import kotlinx.coroutines.GlobalScope;
 /**
  * Calls from the system into the permission controller.
  *
- * All reading methods are called async, and all writing method are called on the AsyncTask single
- * thread executor so that multiple writes won't override each other concurrently.
+ * All reading methods are called async, and all writing methods are called on the
+ * {@link ServiceRequestExecutor}, so that multiple writes to the same package won't override each
+ * other concurrently.
  */
 public final class PermissionControllerServiceImpl extends PermissionControllerLifecycleService {
     private static final String LOG_TAG = PermissionControllerServiceImpl.class.getSimpleName();
@@ -107,6 +109,19 @@ public final class PermissionControllerServiceImpl extends PermissionControllerL
 
     @Override
     public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        if (ArrayUtils.contains(args, "--auto-revoke-dry-run")) {
+            try {
+                writer.println(BuildersKt.runBlocking(
+                        GlobalScope.INSTANCE.getCoroutineContext(),
+                        (coroutineScope, continuation) -> mServiceModel.onAutoRevokeDryRun(
+                                continuation)));
+            } catch (Exception e) {
+                Log.e(LOG_TAG, "Cannot run auto revoke dry run", e);
+            }
+            writer.flush();
+            return;
+        }
+
         PermissionControllerDumpProto dump;
         try {
             dump = BuildersKt.runBlocking(
@@ -179,94 +194,64 @@ public final class PermissionControllerServiceImpl extends PermissionControllerL
     }
 
     /**
-     * Given a set of permissions, find all permission groups of an app that can be revoked and that
-     * contain any of the permissions.
+     * Get the packages of the calling user that share a uid with any of some packages. As
+     * permissions are per uid, requests for these packages conflict with each other.
+     *
+     * <p>This is called on the binder thread, hence more than one package is resolved from a
+     * single list of all installed packages instead of two calls per package.
      *
-     * @param permissions The permissions to revoke
-     * @param appPerms The {@link AppPermissions} for the app that is currently investigated
+     * @param pkgs The package names
      *
-     * @return The groups to revoke
+     * @return the package names, including all packages sharing a uid with them
      */
-    private @NonNull ArrayList<AppPermissionGroup> getRevocableGroupsForPermissions(
-            @NonNull ArrayList<String> permissions, @NonNull AppPermissions appPerms) {
-        ArrayList<AppPermissionGroup> groupsToRevoke = new ArrayList<>();
-        int numGroups = appPerms.getPermissionGroups().size();
-        for (int groupNum = 0; groupNum < numGroups; groupNum++) {
-            AppPermissionGroup group = appPerms.getPermissionGroups().get(groupNum);
-
-            // Do not override fixed permissions
-            if (group.isPolicyFixed() || group.isSystemFixed()) {
-                continue;
+    private @NonNull Set<String> getPkgsSharingUid(@NonNull Collection<String> pkgs) {
+        PackageManager pm = getPackageManager();
+
+        ArraySet<String> uidPkgs = new ArraySet<>(pkgs);
+        if (pkgs.size() == 1) {
+            int uid;
+            try {
+                uid = pm.getPackageUid(pkgs.iterator().next(), 0);
+            } catch (PackageManager.NameNotFoundException e) {
+                return uidPkgs;
             }
 
-            int numPerms = permissions.size();
-            for (int permNum = 0; permNum < numPerms; permNum++) {
-                String reqPerm = permissions.get(permNum);
-
-                if (group.hasPermission(reqPerm)) {
-                    groupsToRevoke.add(group);
-
-                    // If fg permissions get revoked also revoke bg permissions as bg
-                    // permissions require fg permissions.
-                    AppPermissionGroup bgPerms = group.getBackgroundPermissions();
-                    if (bgPerms != null) {
-                        groupsToRevoke.add(bgPerms);
-                    }
-                } else {
-                    AppPermissionGroup bgPerms = group.getBackgroundPermissions();
-                    if (bgPerms != null && bgPerms.hasPermission(reqPerm)) {
-                        groupsToRevoke.add(bgPerms);
-                    }
+            String[] pkgsOfUid = pm.getPackagesForUid(uid);
+            if (pkgsOfUid != null) {
+                Collections.addAll(uidPkgs, pkgsOfUid);
+            }
+        } else if (!pkgs.isEmpty()) {
+            List<PackageInfo> installedPkgs = pm.getInstalledPackages(0);
+
+            ArraySet<Integer> uids = new ArraySet<>();
+            int numInstalledPkgs = installedPkgs.size();
+            for (int i = 0; i < numInstalledPkgs; i++) {
+                PackageInfo pkg = installedPkgs.get(i);
+                if (pkg.applicationInfo != null && pkgs.contains(pkg.packageName)) {
+                    uids.add(pkg.applicationInfo.uid);
                 }
             }
-        }
-
-        return groupsToRevoke;
-    }
 
-    /**
-     * Revoke all permissions of some groups.
-     *
-     * @param groupsToRevoke The groups
-     *
-     * @return The permissions that were revoked
-     */
-    private @NonNull ArrayList<String> revokePermissionGroups(
-            @NonNull ArrayList<AppPermissionGroup> groupsToRevoke) {
-        ArrayList<String> revokedPerms = new ArrayList<>();
-
-        int numGroupsToRevoke = groupsToRevoke.size();
-        for (int groupsToRevokeNum = 0; groupsToRevokeNum < numGroupsToRevoke;
-                groupsToRevokeNum++) {
-            AppPermissionGroup group = groupsToRevoke.get(groupsToRevokeNum);
-            ArrayList<Permission> perms = group.getPermissions();
-
-            // Mark the permissions as reviewed as we don't want to use to accidentally grant
-            // the permission during review
-            group.unsetReviewRequired();
-
-            int numPerms = perms.size();
-            for (int permNum = 0; permNum < numPerms; permNum++) {
-                Permission perm = perms.get(permNum);
-
-                // Only count individual permissions that are actually revoked
-                if (perm.isGrantedIncludingAppOp()) {
-                    revokedPerms.add(perm.getName());
+            for (int i = 0; i < numInstalledPkgs; i++) {
+                PackageInfo pkg = installedPkgs.get(i);
+                if (pkg.applicationInfo != null && uids.contains(pkg.applicationInfo.uid)) {
+                    uidPkgs.add(pkg.packageName);
                 }
             }
-
-            group.revokeRuntimePermissions(false);
         }
 
-        return revokedPerms;
+        return uidPkgs;
     }
 
     @Override
     public void onRevokeRuntimePermissions(@NonNull Map<String, List<String>> request,
             boolean doDryRun, int reason, @NonNull String callerPackageName,
             @NonNull Consumer<Map<String, List<String>>> callback) {
-        AsyncTask.execute(() -> callback.accept(onRevokeRuntimePermissions(request, doDryRun,
-                reason, callerPackageName)));
+        ServiceRequestExecutor.executeForResult("onRevokeRuntimePermissions",
+                Process.myUserHandle(), getPkgsSharingUid(request.keySet()),
+                Arrays.asList(request, doDryRun, reason, callerPackageName),
+                () -> onRevokeRuntimePermissions(request, doDryRun, reason, callerPackageName),
+                callback);
     }
 
     private @NonNull Map<String, List<String>> onRevokeRuntimePermissions(
@@ -279,89 +264,41 @@ public final class PermissionControllerServiceImpl extends PermissionControllerL
             return Collections.emptyMap();
         }
 
-        PackageManager pm = getPackageManager();
-
         PackageInfo callerPkgInfo = getPkgInfo(callerPackageName);
         if (callerPkgInfo == null) {
             return Collections.emptyMap();
         }
         int callerTargetSdk = callerPkgInfo.applicationInfo.targetSdkVersion;
 
-        Map<String, List<String>> actuallyRevokedPerms = new ArrayMap<>();
-        ArrayList<AppPermissions> appsWithRevokedPerms = new ArrayList<>();
-
+        // In rare cases the caller does not know about the permissions that have been added due
+        // to splits. Hence add them now.
+        Map<String, List<String>> expandedRequest = new ArrayMap<>();
         for (Map.Entry<String, List<String>> appRequest : request.entrySet()) {
-            PackageInfo requestedPkgInfo = getPkgInfo(appRequest.getKey());
-            if (requestedPkgInfo == null) {
-                continue;
-            }
-
-            // Permissions are per UID. Hence permissions will be removed from all apps sharing an
-            // UID.
-            String[] pkgNames = pm.getPackagesForUid(requestedPkgInfo.applicationInfo.uid);
-            if (pkgNames == null) {
-                continue;
-            }
-
-            int numPkgNames = pkgNames.length;
-            for (int pkgNum = 0; pkgNum < numPkgNames; pkgNum++) {
-                String pkgName = pkgNames[pkgNum];
-
-                PackageInfo pkgInfo = getPkgInfo(pkgName);
-                if (pkgInfo == null) {
-                    continue;
-                }
-
-                // If the revocation is because of a market policy violation only the installer can
-                // revoke the permissions.
-                if (reason == REASON_INSTALLER_POLICY_VIOLATION
-                        && !callerPackageName.equals(pm.getInstallerPackageName(pkgName))) {
-                    Log.i(LOG_TAG, "Ignoring " + pkgName + " as it is not installed by "
-                            + callerPackageName);
-                    continue;
-                }
-
-                // In rare cases the caller does not know about the permissions that have been added
-                // due to splits. Hence add them now.
-                ArrayList<String> expandedPerms = addSplitPermissions(appRequest.getValue(),
-                        callerTargetSdk);
-
-                AppPermissions appPerms = new AppPermissions(this, pkgInfo, false, true, null);
-
-                // First find the groups that should be revoked and then revoke all permissions of
-                // these groups. This is needed as soon as a single permission in the group is
-                // granted, all other permissions get auto-granted on request.
-                ArrayList<AppPermissionGroup> groupsToRevoke = getRevocableGroupsForPermissions(
-                        expandedPerms, appPerms);
-                ArrayList<String> revokedPerms = revokePermissionGroups(groupsToRevoke);
-
-                // In racy conditions the group might not have had granted permissions anymore
-                if (!revokedPerms.isEmpty()) {
-                    actuallyRevokedPerms.put(pkgName, revokedPerms);
-                    appsWithRevokedPerms.add(appPerms);
-                }
-            }
+            expandedRequest.put(appRequest.getKey(),
+                    addSplitPermissions(appRequest.getValue(), callerTargetSdk));
         }
 
-        // Persist changes after we computed everything to remove
-        // This is necessary as we would otherwise only look at the first app of a shared UID.
-        if (!doDryRun) {
-            int numChangedApps = appsWithRevokedPerms.size();
-            for (int i = 0; i < numChangedApps; i++) {
-                appsWithRevokedPerms.get(i).persistChanges(true);
-            }
-        }
+        // If the revocation is because of a market policy violation only the installer can
+        // revoke the permissions.
+        String installerPackageName = reason == REASON_INSTALLER_POLICY_VIOLATION
+                ? callerPackageName : null;
 
-        return actuallyRevokedPerms;
+        try {
+            return BuildersKt.runBlocking(
+                    GlobalScope.INSTANCE.getCoroutineContext(),
+                    (coroutineScope, continuation) -> mServiceModel.onRevokeRuntimePermissions(
+                            expandedRequest, doDryRun, installerPackageName, continuation));
+        } catch (InterruptedException e) {
+            Log.e(LOG_TAG, "Interrupted while revoking permissions", e);
+            return Collections.emptyMap();
+        }
     }
 
     @Override
     public void onGetRuntimePermissionsBackup(@NonNull UserHandle user,
             @NonNull OutputStream backup, @NonNull Runnable callback) {
-        AsyncTask.execute(() -> {
-            onGetRuntimePermissionsBackup(user, backup);
-            callback.run();
-        });
+        ServiceRequestExecutor.execute("onGetRuntimePermissionsBackup", user, null, null,
+                () -> onGetRuntimePermissionsBackup(user, backup), callback);
     }
 
     private void onGetRuntimePermissionsBackup(@NonNull UserHandle user,
@@ -382,10 +319,8 @@ public final class PermissionControllerServiceImpl extends PermissionControllerL
     @Override
     public void onStageAndApplyRuntimePermissionsBackup(@NonNull UserHandle user,
             @NonNull InputStream backup, @NonNull Runnable callback) {
-        AsyncTask.execute(() -> {
-            onRestoreRuntimePermissionsBackup(user, backup);
-            callback.run();
-        });
+        ServiceRequestExecutor.execute("onStageAndApplyRuntimePermissionsBackup", user, null,
+                null, () -> onRestoreRuntimePermissionsBackup(user, backup), callback);
     }
 
     private void onRestoreRuntimePermissionsBackup(@NonNull UserHandle user,
@@ -403,8 +338,9 @@ public final class PermissionControllerServiceImpl extends PermissionControllerL
     @Override
     public void onApplyStagedRuntimePermissionBackup(@NonNull String packageName,
             @NonNull UserHandle user, @NonNull Consumer<Boolean> callback) {
-        AsyncTask.execute(() -> callback.accept(
-                onRestoreDelayedRuntimePermissionsBackup(packageName, user)));
+        ServiceRequestExecutor.executeForResult("onApplyStagedRuntimePermissionBackup", user,
+                Collections.singleton(packageName), packageName,
+                () -> onRestoreDelayedRuntimePermissionsBackup(packageName, user), callback);
     }
 
     private boolean onRestoreDelayedRuntimePermissionsBackup(@NonNull String packageName,
@@ -443,10 +379,10 @@ public final class PermissionControllerServiceImpl extends PermissionControllerL
     @Override
     public void onRevokeRuntimePermission(@NonNull String packageName,
             @NonNull String permissionName, @NonNull Runnable callback) {
-        AsyncTask.execute(() -> {
-            onRevokeRuntimePermission(packageName, permissionName);
-            callback.run();
-        });
+        ServiceRequestExecutor.execute("onRevokeRuntimePermission", Process.myUserHandle(),
+                getPkgsSharingUid(Collections.singleton(packageName)),
+                Arrays.asList(packageName, permissionName),
+                () -> onRevokeRuntimePermission(packageName, permissionName), callback);
     }
 
     private void onRevokeRuntimePermission(@NonNull String packageName,
@@ -471,9 +407,7 @@ public final class PermissionControllerServiceImpl extends PermissionControllerL
     @Override
     public void onCountPermissionApps(@NonNull List<String> permissionNames, int flags,
             @NonNull IntConsumer callback) {
-        // There is no data processing needed, so we just directly pass the result onto the callback
-        mServiceModel.onCountPermissionAppsLiveData(permissionNames, flags,
-                callback);
+        mServiceModel.onCountPermissionApps(permissionNames, flags, callback);
     }
 
     /**
@@ -490,8 +424,11 @@ public final class PermissionControllerServiceImpl extends PermissionControllerL
     public void onSetRuntimePermissionGrantStateByDeviceAdmin(@NonNull String callerPackageName,
             @NonNull String packageName, @NonNull String unexpandedPermission, int grantState,
             @NonNull Consumer<Boolean> callback) {
-        AsyncTask.execute(() -> callback.accept(onSetRuntimePermissionGrantStateByDeviceAdmin(
-                callerPackageName, packageName, unexpandedPermission, grantState)));
+        ServiceRequestExecutor.executeForResult("onSetRuntimePermissionGrantStateByDeviceAdmin",
+                Process.myUserHandle(), getPkgsSharingUid(Collections.singleton(packageName)),
+                Arrays.asList(callerPackageName, packageName, unexpandedPermission, grantState),
+                () -> onSetRuntimePermissionGrantStateByDeviceAdmin(callerPackageName,
+                        packageName, unexpandedPermission, grantState), callback);
     }
 
     private boolean onSetRuntimePermissionGrantStateByDeviceAdmin(@NonNull String callerPackageName,
@@ -16,10 +16,9 @@
 
 package com.android.permissioncontroller.permission.service
 
-import android.content.pm.PackageManager
 import android.os.Process
-import android.permission.PermissionControllerManager.COUNT_ONLY_WHEN_GRANTED
-import android.permission.PermissionControllerManager.COUNT_WHEN_SYSTEM
+import android.os.UserHandle
+import android.util.Log
 import androidx.core.util.Consumer
 import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.LiveData
@@ -27,23 +26,37 @@ import androidx.lifecycle.Observer
 import com.android.permissioncontroller.DumpableLog
 import com.android.permissioncontroller.PermissionControllerProto.PermissionControllerDumpProto
 import com.android.permissioncontroller.permission.data.AppPermGroupUiInfoLiveData
+import com.android.permissioncontroller.permission.data.LightAppPermGroupLiveData
+import com.android.permissioncontroller.permission.data.LiveDataPrefetcher
+import com.android.permissioncontroller.permission.data.LiveDataUpdateTracer
 import com.android.permissioncontroller.permission.data.PackagePermissionsLiveData
 import com.android.permissioncontroller.permission.data.SmartUpdateMediatorLiveData
 import com.android.permissioncontroller.permission.data.UserPackageInfosLiveData
 import com.android.permissioncontroller.permission.data.get
 import com.android.permissioncontroller.permission.model.livedatatypes.AppPermGroupUiInfo
-import com.android.permissioncontroller.permission.model.livedatatypes.AppPermGroupUiInfo.PermGrantState
-import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.LightAppPermGroup
 import com.android.permissioncontroller.permission.utils.IPC
-import com.android.permissioncontroller.permission.utils.Utils
+import com.android.permissioncontroller.permission.utils.KotlinUtils
 import kotlinx.coroutines.Dispatchers.IO
 import kotlinx.coroutines.Dispatchers.Main
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 import kotlinx.coroutines.withTimeout
 import java.util.function.IntConsumer
 
+private const val LOG_TAG = "PermissionControllerServiceModel"
+
+/**
+ * How many uids [PermissionControllerServiceModel.onRevokeRuntimePermissions] revokes at the same
+ * time
+ */
+private const val BULK_REVOKE_CONCURRENCY = 4
+
 /**
  * A model for the PermissionControllerServiceImpl. Handles the data gathering for some methods of
  * ServiceImpl, and supports retrieving data from LiveDatas.
@@ -115,114 +128,21 @@ class PermissionControllerServiceModel(private val service: PermissionController
 
     /**
      * Counts the number of apps that have at least one of a provided list of permissions, subject
-     * to the options specified in flags. This data is gathered from a series of LiveData objects.
+     * to the options specified in flags. The count is computed by [PermissionAppsCounter], which
+     * memoizes it until the next permission or package change.
      *
      * @param permissionNames The list of permission names whose apps we want to count
      * @param flags Flags specifying if we want to count system apps, and count only granted apps
      * @param callback The callback our result will be returned to
      */
-    fun onCountPermissionAppsLiveData(
+    fun onCountPermissionApps(
         permissionNames: List<String>,
         flags: Int,
         callback: IntConsumer
     ) {
-        val packageInfosLiveData = UserPackageInfosLiveData[Process.myUserHandle()]
-        observeAndCheckForLifecycleState(packageInfosLiveData) { packageInfos ->
-            onPackagesLoadedForCountPermissionApps(permissionNames, flags, callback,
-                packageInfos)
-        }
-    }
-
-    /**
-     * Called upon receiving a list of packages which we want to filter by a list of permissions
-     * and flags. Observes the AppPermGroupUiInfoLiveData for every app, and, upon receiving a
-     * non-stale update, adds it to the count if it matches the permission list and flags. Will
-     * only use the first non-stale update, so if an app is updated after this update, but before
-     * execution is complete, the changes will not be reflected until the method is called again.
-     *
-     * @param permissionNames The list of permission names whose apps we want to count
-     * @param flags Flags specifying if we want to count system apps, and count only granted apps
-     * @param callback The callback our result will be returned to
-     * @param packageInfos The list of LightPackageInfos we want to filter and count
-     */
-    private fun onPackagesLoadedForCountPermissionApps(
-        permissionNames: List<String>,
-        flags: Int,
-        callback: IntConsumer,
-        packageInfos: List<LightPackageInfo>?
-    ) {
-        if (packageInfos == null) {
-            callback.accept(0)
-            return
-        }
-
-        val countSystem = flags and COUNT_WHEN_SYSTEM != 0
-        val countOnlyGranted = flags and COUNT_ONLY_WHEN_GRANTED != 0
-
-        // Store the group of all installed, runtime permissions in permissionNames
-        val permToGroup = mutableMapOf<String, String?>()
-        for (permName in permissionNames) {
-            val permInfo = try {
-                service.packageManager.getPermissionInfo(permName, 0)
-            } catch (e: PackageManager.NameNotFoundException) {
-                continue
-            }
-
-            if (Utils.isPermissionDangerousInstalledNotRemoved(permInfo)) {
-                permToGroup[permName] = Utils.getGroupOfPermission(permInfo)
-            }
-        }
-
-        val uiLiveDatasPerPackage = mutableListOf<MutableSet<AppPermGroupUiInfoLiveData>>()
-        var numLiveDatas = 0
-        for ((packageName, _, requestedPermissions) in packageInfos) {
-            val packageUiLiveDatas = mutableSetOf<AppPermGroupUiInfoLiveData>()
-            for (permName in permToGroup.keys) {
-                if (requestedPermissions.contains(permName)) {
-                    packageUiLiveDatas.add(AppPermGroupUiInfoLiveData[packageName,
-                        permToGroup[permName]!!, Process.myUserHandle()])
-                }
-            }
-            if (packageUiLiveDatas.isNotEmpty()) {
-                uiLiveDatasPerPackage.add(packageUiLiveDatas)
-                numLiveDatas += packageUiLiveDatas.size
-            }
-        }
-
-        if (numLiveDatas == 0) {
-            callback.accept(0)
-        }
-
-        var packagesWithPermission = 0
-        var numPermAppsChecked = 0
-
-        for (packageUiInfoLiveDatas in uiLiveDatasPerPackage) {
-            var packageAdded = false
-            // We don't need to check for new packages in between the updates of the ui info live
-            // datas, because this method is used primarily for UI, and there is inherent delay
-            // when calling this method, due to binder calls, so some staleness is acceptable
-            for (packageUiInfoLiveData in packageUiInfoLiveDatas) {
-                observeAndCheckForLifecycleState(packageUiInfoLiveData) { uiInfo ->
-                    numPermAppsChecked++
-
-                    if (uiInfo != null && uiInfo.shouldShow && (!uiInfo.isSystem || countSystem)) {
-                        val granted = uiInfo.permGrantState != PermGrantState.PERMS_DENIED &&
-                            uiInfo.permGrantState != PermGrantState.PERMS_ASK
-                        if (granted || !countOnlyGranted && !packageAdded) {
-                            // The permission might not be granted, but some permissions of the
-                            // group are granted. In this case the permission is granted silently
-                            // when the app asks for it.
-                            // Hence this is as-good-as-granted and we count it.
-                            packageAdded = true
-                            packagesWithPermission++
-                        }
-                    }
-
-                    if (numPermAppsChecked == numLiveDatas) {
-                        callback.accept(packagesWithPermission)
-                    }
-                }
-            }
+        GlobalScope.launch(IPC) {
+            callback.accept(PermissionAppsCounter.count(Process.myUserHandle(), permissionNames,
+                flags))
         }
     }
 
@@ -274,20 +194,156 @@ class PermissionControllerServiceModel(private val service: PermissionController
         }
     }
 
+    /**
+     * Revoke the permission groups of many packages at once. Permissions are per uid, hence
+     * permissions are revoked from all packages sharing a uid with a requested package.
+     *
+     * All packages of the user are loaded once, and the groups of each uid are then loaded and
+     * revoked in parallel with the groups of other uids. All groups of a uid are loaded before
+     * anything is revoked, so every package of a shared uid reports what it had granted before.
+     *
+     * @param request The permissions to revoke, by package name, already expanded by split
+     * permissions
+     * @param doDryRun If {@code true}, only report what would be revoked
+     * @param installerPackageName If set, only revoke permissions of packages installed by this
+     * package
+     *
+     * @return The permissions which were, or would be, revoked, by package name
+     */
+    suspend fun onRevokeRuntimePermissions(
+        request: Map<String, List<String>>,
+        doDryRun: Boolean,
+        installerPackageName: String?
+    ): Map<String, List<String>> {
+        val user = Process.myUserHandle()
+        val packageInfos = UserPackageInfosLiveData[user].getInitializedValue()
+        val uidsByPackageName = packageInfos.associate { it.packageName to it.uid }
+        val packageNamesByUid = packageInfos.groupBy({ it.uid }, { it.packageName })
+
+        val permsByUid = mutableMapOf<Int, MutableSet<String>>()
+        for ((packageName, permNames) in request) {
+            val uid = uidsByPackageName[packageName] ?: continue
+            permsByUid.getOrPut(uid) { mutableSetOf() }.addAll(permNames)
+        }
+
+        val revokeSemaphore = Semaphore(BULK_REVOKE_CONCURRENCY)
+        val revokedPerms = coroutineScope {
+            permsByUid.map { (uid, permNames) ->
+                async(IPC) {
+                    revokeSemaphore.withPermit {
+                        revokeRuntimePermissionsOfUid(packageNamesByUid[uid]!!, user, permNames,
+                            doDryRun, installerPackageName)
+                    }
+                }
+            }.awaitAll()
+        }
+        return revokedPerms.fold(mutableMapOf()) { allRevokedPerms, uidRevokedPerms ->
+            allRevokedPerms.apply { putAll(uidRevokedPerms) }
+        }
+    }
+
+    private suspend fun revokeRuntimePermissionsOfUid(
+        packageNames: List<String>,
+        user: UserHandle,
+        permNames: Set<String>,
+        doDryRun: Boolean,
+        installerPackageName: String?
+    ): Map<String, List<String>> {
+        val groupsToRevoke = mutableListOf<LightAppPermGroup>()
+        val permsToRevoke = mutableSetOf<String>()
+        val revokedPerms = mutableMapOf<String, List<String>>()
+
+        for (packageName in packageNames) {
+            if (installerPackageName != null &&
+                installerPackageName != service.packageManager
+                    .getInstallerPackageName(packageName)) {
+                Log.i(LOG_TAG, "Ignoring $packageName as it is not installed by " +
+                    installerPackageName)
+                continue
+            }
+
+            val groupPerms = PackagePermissionsLiveData[packageName, user].getInitializedValue()
+                ?: continue
+            val packageRevokedPerms = mutableListOf<String>()
+            for ((groupName, groupPermNames) in groupPerms) {
+                if (groupName == PackagePermissionsLiveData.NON_RUNTIME_NORMAL_PERMS ||
+                    groupPermNames.none { it in permNames }) {
+                    continue
+                }
+
+                val group = LightAppPermGroupLiveData[packageName, groupName, user]
+                    .getInitializedValue() ?: continue
+                // Do not override fixed permissions
+                if (group.isForegroundFixed) {
+                    continue
+                }
+
+                // If fg permissions get revoked also revoke bg permissions as bg permissions
+                // require fg permissions.
+                val groupPermsToRevoke = when {
+                    group.foregroundPermNames.any { it in permNames } -> group.permissions.keys
+                    group.backgroundPermNames.any { it in permNames } ->
+                        group.backgroundPermNames.filter { it in group.permissions }.toSet()
+                    else -> emptySet()
+                }
+                if (groupPermsToRevoke.isEmpty()) {
+                    continue
+                }
+
+                groupsToRevoke.add(group)
+                permsToRevoke.addAll(groupPermsToRevoke)
+                // Only count individual permissions that are actually revoked
+                packageRevokedPerms.addAll(groupPermsToRevoke.filter {
+                    val perm = group.permissions[it]
+                    perm != null && perm.isGrantedIncludingAppOp && !perm.isSystemFixed
+                })
+            }
+
+            // In racy conditions the group might not have had granted permissions anymore
+            if (packageRevokedPerms.isNotEmpty()) {
+                revokedPerms[packageName] = packageRevokedPerms
+            }
+        }
+
+        if (!doDryRun && revokedPerms.isNotEmpty()) {
+            // Mark the permissions as reviewed as we don't want to use to accidentally grant
+            // the permission during review
+            KotlinUtils.revokeRuntimePermissionsForUid(service.application, groupsToRevoke,
+                filterPermissions = permsToRevoke, unsetReviewRequired = true)
+        }
+        return revokedPerms
+    }
+
+    /**
+     * Walk the auto revoke pipeline without changing any state, see [dryRunAutoRevoke]
+     *
+     * @return the report of what auto revoke would do
+     */
+    suspend fun onAutoRevokeDryRun(): String {
+        return dryRunAutoRevoke(service).toString()
+    }
+
     /**
      * Dump state of the permission controller service
      *
      * @return the dump state as a proto
      */
     suspend fun onDump(): PermissionControllerDumpProto {
-        // Timeout is less than the timeout used by dumping (10 s)
+        // Timeout is less than the timeout used by dumping (10 s). The auto revoke dump stops early
+        // enough to leave time for the rest of the dump.
         return withTimeout(9000) {
-            val autoRevokeDump = GlobalScope.async(IPC) { dumpAutoRevokePermissions(service) }
+            val autoRevokeDump = GlobalScope.async(IPC) {
+                dumpAutoRevokePermissions(service, 7000)
+            }
             val dumpedLogs = GlobalScope.async(IO) { DumpableLog.get() }
 
             PermissionControllerDumpProto.newBuilder()
                     .setAutoRevoke(autoRevokeDump.await())
                     .addAllLogs(dumpedLogs.await())
+                    .addAllLiveDataUpdates(LiveDataUpdateTracer.dump())
+                    .addAllServiceRequests(ServiceRequestExecutor.getStats())
+                    .setLiveDataPrefetch(LiveDataPrefetcher.dump())
+                    .addAllUserPackageLoads(UserPackageInfosLiveData.dumpLoads())
                     .build()
         }
     }
@@ -159,7 +159,8 @@ internal object RuntimePermissionsUpgradeController {
                 Log.i("RuntimePermissions", "observing UserPackageInfoLiveData for " +
                     "${myUserHandle().identifier} in RuntimePermissionsUpgradeController")
                 addSource(pkgInfoProvider) { pkgInfos ->
-                    if (pkgInfos != null) {
+                    // Packages restored from the last process are not good enough to upgrade
+                    if (pkgInfos != null && !pkgInfoProvider.isOutOfDate) {
                         removeSource(pkgInfoProvider)
 
                         // TODO ntmyren: remove once b/154796729 is fixed
@@ -192,7 +193,8 @@ internal object RuntimePermissionsUpgradeController {
             }
 
             override fun onUpdate() {
-                if (permGroupProviders == null && pkgInfoProvider.value != null) {
+                if (permGroupProviders == null && pkgInfoProvider.value != null &&
+                        !pkgInfoProvider.isOutOfDate) {
                     // Second step: Trigger load of app-perm-groups
 
                     permGroupProviders = mutableListOf()
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.service
+
+import android.os.SystemClock
+import android.os.UserHandle
+import com.android.permissioncontroller.PermissionControllerProto.ServiceRequestStatsProto
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Consumer
+import java.util.function.Supplier
+
+/**
+ * Runs the write requests of [PermissionControllerServiceImpl].
+ *
+ * Requests for the same package run one after another, in the order they were made. Requests for
+ * unrelated packages run in parallel, so e.g. a slow backup restore does not hold up a device
+ * admin changing a grant state. A request which is identical to a request that is still waiting
+ * is not run again; it gets the result of the waiting request.
+ *
+ * How long requests wait before they run is tracked per entry point, see [getStats].
+ */
+object ServiceRequestExecutor {
+    /**
+     * How many requests run at the same time at most
+     */
+    private const val NUM_THREADS = 4
+
+    private val threadCount = AtomicInteger()
+    private val threads = Executors.newFixedThreadPool(NUM_THREADS) { runnable ->
+        Thread(runnable, "ServiceRequest-${threadCount.incrementAndGet()}")
+    }
+
+    /**
+     * A request to the service.
+     *
+     * @param entryPoint The name of the entry point of the service
+     * @param user The user the request is for
+     * @param packageNames The packages the request affects, or {@code null} if it affects all
+     * packages of the user
+     * @param coalescingKey Identifies the request among requests to the same entry point, or
+     * {@code null} if the request cannot be coalesced
+     * @param request Runs the request
+     */
+    private class Request<T>(
+        val entryPoint: String,
+        val user: UserHandle,
+        val packageNames: Set<String>?,
+        val coalescingKey: Any?,
+        val request: Supplier<T>
+    ) {
+        val enqueueTime = SystemClock.elapsedRealtime()
+        val callbacks = mutableListOf<Consumer<T>>()
+
+        fun conflictsWith(other: Request<*>): Boolean {
+            if (user != other.user) {
+                return false
+            }
+            if (packageNames == null || other.packageNames == null) {
+                return true
+            }
+            return packageNames.any { it in other.packageNames }
+        }
+
+        fun isIdenticalTo(other: Request<*>): Boolean {
+            return coalescingKey != null && entryPoint == other.entryPoint &&
+                user == other.user && packageNames == other.packageNames &&
+                coalescingKey == other.coalescingKey
+        }
+    }
+
+    private class Stats {
+        var numRequests = 0
+        var numCoalesced = 0
+        var totalQueueMillis = 0L
+        var maxQueueMillis = 0L
+    }
+
+    private val lock = Any()
+
+    /**
+     * Requests which did not start yet, in the order they were made
+     */
+    private val waiting = mutableListOf<Request<*>>()
+    private val running = mutableListOf<Request<*>>()
+    private val stats = mutableMapOf<String, Stats>()
+
+    /**
+     * Run a request which returns a result.
+     *
+     * @param entryPoint The name of the entry point of the service, used for statistics
+     * @param user The user the request is for
+     * @param packageNames The packages the request affects, or {@code null} if it affects all
+     * packages of the user
+     * @param coalescingKey Identifies the request among requests to the same entry point and
+     * packages, or {@code null} if the request cannot be coalesced. As the packages are all
+     * packages the request might affect, e.g. all packages of a shared uid, the key has to include
+     * the packages the request was made for.
+     * @param request Runs the request
+     * @param callback Called with the result, on the thread which ran the request
+     */
+    @JvmStatic
+    fun <T> executeForResult(
+        entryPoint: String,
+        user: UserHandle,
+        packageNames: Collection<String>?,
+        coalescingKey: Any?,
+        request: Supplier<T>,
+        callback: Consumer<T>
+    ) {
+        val newRequest = Request(entryPoint, user, packageNames?.toSet(), coalescingKey, request)
+
+        synchronized(lock) {
+            val stats = stats.getOrPut(entryPoint) { Stats() }
+            stats.numRequests++
+
+            // Only the most recent conflicting request can take over the new request, otherwise
+            // the new request would overtake requests in between
+            val lastConflicting = waiting.lastOrNull { it.conflictsWith(newRequest) }
+            if (lastConflicting != null && lastConflicting.isIdenticalTo(newRequest)) {
+                @Suppress("UNCHECKED_CAST")
+                (lastConflicting as Request<T>).callbacks.add(callback)
+                stats.numCoalesced++
+                return
+            }
+
+            newRequest.callbacks.add(callback)
+            waiting.add(newRequest)
+            startRequestsLocked()
+        }
+    }
+
+    /**
+     * Run a request which does not return a result.
+     *
+     * @see executeForResult
+     */
+    @JvmStatic
+    fun execute(
+        entryPoint: String,
+        user: UserHandle,
+        packageNames: Collection<String>?,
+        coalescingKey: Any?,
+        request: Runnable,
+        callback: Runnable
+    ) {
+        executeForResult(entryPoint, user, packageNames, coalescingKey, Supplier { request.run() },
+            Consumer { callback.run() })
+    }
+
+    /**
+     * Start all waiting requests which neither conflict with a running request, nor with a request
+     * which is waiting for longer.
+     */
+    private fun startRequestsLocked() {
+        val iterator = waiting.listIterator()
+        while (iterator.hasNext()) {
+            val request = iterator.next()
+            if (running.any { it.conflictsWith(request) } ||
+                waiting.subList(0, iterator.previousIndex()).any { it.conflictsWith(request) }) {
+                continue
+            }
+
+            iterator.remove()
+            running.add(request)
+
+            val queueMillis = SystemClock.elapsedRealtime() - request.enqueueTime
+            stats[request.entryPoint]!!.apply {
+                totalQueueMillis += queueMillis
+                maxQueueMillis = maxOf(maxQueueMillis, queueMillis)
+            }
+
+            threads.execute { run(request) }
+        }
+    }
+
+    private fun <T> run(request: Request<T>) {
+        try {
+            val result = request.request.get()
+
+            // No callbacks can be added anymore, as the request is not waiting. The callbacks run
+            // before any conflicting request starts, so callers see the results in order.
+            request.callbacks.forEach { it.accept(result) }
+        } finally {
+            synchronized(lock) {
+                running.remove(request)
+                startRequestsLocked()
+            }
+        }
+    }
+
+    /**
+     * @return how long the requests to each entry point waited to run, since the process started
+     */
+    fun getStats(): List<ServiceRequestStatsProto> {
+        synchronized(lock) {
+            return stats.map { (entryPoint, entryPointStats) ->
+                ServiceRequestStatsProto.newBuilder()
+                    .setEntryPoint(entryPoint)
+                    .setNumRequests(entryPointStats.numRequests)
+                    .setNumCoalesced(entryPointStats.numCoalesced)
+                    .setTotalQueueMillis(entryPointStats.totalQueueMillis)
+                    .setMaxQueueMillis(entryPointStats.maxQueueMillis)
+                    .build()
+            }
+        }
+    }
+}
@@ -75,6 +75,7 @@ public final class ManageStandardPermissionsFragment extends ManagePermissionsFr
             if (permissionGroups != null) {
                 mPermissionGroups = permissionGroups;
                 updatePermissionsUi();
+                mViewModel.prefetchPermissionApps(permissionGroups);
             } else {
                 Log.e(LOG_TAG, "ViewModel returned null data, exiting");
                 getActivity().finish();
@@ -25,11 +25,14 @@ import androidx.lifecycle.ViewModel
 import androidx.lifecycle.ViewModelProvider
 import androidx.navigation.fragment.findNavController
 import com.android.permissioncontroller.R
+import com.android.permissioncontroller.permission.data.LiveDataPrefetcher
 import com.android.permissioncontroller.permission.data.PermGroupsPackagesLiveData
 import com.android.permissioncontroller.permission.data.PermGroupsPackagesUiInfoLiveData
+import com.android.permissioncontroller.permission.data.SinglePermGroupPackagesUiInfoLiveData
 import com.android.permissioncontroller.permission.data.SmartUpdateMediatorLiveData
 import com.android.permissioncontroller.permission.data.StandardPermGroupNamesLiveData
 import com.android.permissioncontroller.permission.data.UnusedAutoRevokedPackagesLiveData
+import com.android.permissioncontroller.permission.model.livedatatypes.PermGroupPackagesUiInfo
 import com.android.permissioncontroller.permission.utils.navigateSafe
 
 /**
@@ -50,6 +53,19 @@ class ManageStandardPermissionsViewModel(
         it?.size ?: 0
     }
 
+    /**
+     * Prefetch the app lists of the permission groups the user is most likely to open next, i.e.
+     * the ones granted to the most apps.
+     *
+     * @param groups The permission groups shown, by name
+     */
+    fun prefetchPermissionApps(groups: Map<String, PermGroupPackagesUiInfo?>) {
+        LiveDataPrefetcher.prefetch(groups.values.filterNotNull()
+            .sortedByDescending { it.nonSystemGranted }
+            .take(NUM_PREFETCHED_GROUPS)
+            .map { SinglePermGroupPackagesUiInfoLiveData[it.name] })
+    }
+
     /**
      * Navigate to the Custom Permissions screen
      *
@@ -73,6 +89,13 @@ class ManageStandardPermissionsViewModel(
     fun showAutoRevoke(fragment: Fragment, args: Bundle) {
         fragment.findNavController().navigateSafe(R.id.manage_to_auto_revoke, args)
     }
+
+    companion object {
+        /**
+         * How many permission groups to prefetch the app lists of
+         */
+        private const val NUM_PREFETCHED_GROUPS = 3
+    }
 }
 
 /**
@@ -32,7 +32,10 @@ import com.android.permissioncontroller.R
 import com.android.permissioncontroller.permission.data.AllPackageInfosLiveData
 import com.android.permissioncontroller.permission.data.FullStoragePermissionAppsLiveData
 import com.android.permissioncontroller.permission.data.FullStoragePermissionAppsLiveData.FullStoragePackageState
+import com.android.permissioncontroller.permission.data.LightAppPermGroupLiveData
+import com.android.permissioncontroller.permission.data.LiveDataPrefetcher
 import com.android.permissioncontroller.permission.data.SinglePermGroupPackagesUiInfoLiveData
+import com.android.permissioncontroller.permission.data.get
 import com.android.permissioncontroller.permission.model.livedatatypes.AppPermGroupUiInfo.PermGrantState
 import com.android.permissioncontroller.permission.ui.Category
 import com.android.permissioncontroller.permission.ui.LocationProviderInterceptDialog
@@ -59,6 +62,11 @@ class PermissionAppsViewModel(
 ) : ViewModel() {
 
     companion object {
+        /**
+         * How many apps of the list to prefetch the permission state of
+         */
+        private const val NUM_PREFETCHED_APPS = 8
+
         internal const val SHOULD_SHOW_SYSTEM_KEY = "showSystem"
         internal const val HAS_SYSTEM_APPS_KEY = "hasSystem"
         internal const val SHOW_ALWAYS_ALLOWED = "showAlways"
@@ -86,6 +94,8 @@ class PermissionAppsViewModel(
         private val packagesUiInfoLiveData = SinglePermGroupPackagesUiInfoLiveData[groupName]
 
         init {
+            LiveDataPrefetcher.recordAccess(packagesUiInfoLiveData)
+
             var fullStorageLiveData: FullStoragePermissionAppsLiveData? = null
 
             // If this is the Storage group, observe a FullStoragePermissionAppsLiveData, update
@@ -173,6 +183,25 @@ class PermissionAppsViewModel(
             }
             showAllowAlwaysStringLiveData.value = showAlwaysAllowedString
             value = categoryMap
+
+            prefetchAppPermissions(categoryMap)
+        }
+
+        /**
+         * Prefetch the data of the AppPermissionFragments the user is most likely to open next,
+         * i.e. the first apps of the list, allowed apps first.
+         *
+         * @param categoryMap The apps of the list, by category
+         */
+        private fun prefetchAppPermissions(
+            categoryMap: Map<Category, List<Pair<String, UserHandle>>>
+        ) {
+            val packages = listOf(Category.ALLOWED, Category.ALLOWED_FOREGROUND, Category.ASK,
+                Category.DENIED).flatMap { categoryMap[it] ?: emptyList() }
+            LiveDataPrefetcher.prefetch(packages.take(NUM_PREFETCHED_APPS)
+                .map { (packageName, user) ->
+                    LightAppPermGroupLiveData[packageName, groupName, user]
+                })
         }
     }
 
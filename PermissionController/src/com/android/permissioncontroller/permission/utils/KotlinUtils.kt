@@ -682,6 +682,168 @@ object KotlinUtils {
             perm.foregroundPerms) to shouldKill
     }
 
+    /**
+     * Revoke the runtime permissions, foreground and background, of several LightAppPermGroups of
+     * the same uid at once.
+     *
+     * <p>Unlike revoking the foreground and the background permissions of each group one after
+     * another, this computes the final grant state, flags and app op modes of all permissions
+     * first, and then applies them: every permission's flags are updated at most once, every app
+     * op is set at most once, and the uid is killed at most once.
+     *
+     * @param app The current application
+     * @param groups The groups whose permissions should be revoked, all of the same uid
+     * @param userFixed If the user requested that they do not want to be asked again
+     * @param oneTime If the permissions should be mark as one-time
+     * @param autoRevoked If the permissions are revoked because the app is unused. If so, they are
+     *                    marked as auto revoked, and not as set by the user.
+     * @param filterPermissions If not specified, all permissions of the groups will be revoked.
+     *                          Otherwise only permissions in {@code filterPermissions} will be
+     *                          revoked.
+     * @param unsetReviewRequired If the revoked permissions should no longer require a review, so
+     *                            they cannot be granted accidentally during the review
+     *
+     * @return LightAppPermGroups representing the new state, in the order of {@code groups}
+     */
+    @JvmOverloads
+    fun revokeRuntimePermissionsForUid(
+        app: Application,
+        groups: List<LightAppPermGroup>,
+        userFixed: Boolean = false,
+        oneTime: Boolean = false,
+        autoRevoked: Boolean = false,
+        filterPermissions: Collection<String>? = null,
+        unsetReviewRequired: Boolean = false
+    ): List<LightAppPermGroup> {
+        if (groups.isEmpty()) {
+            return emptyList()
+        }
+        val uid = groups[0].packageInfo.uid
+        require(groups.all { it.packageInfo.uid == uid }) {
+            "All groups have to belong to uid $uid"
+        }
+
+        var shouldKill = false
+        val newGroups = groups.map { group ->
+            val packageName = group.packageInfo.packageName
+            val user = UserHandle.getUserHandleForUid(uid)
+            val supportsRuntime = group.packageInfo.targetSdkVersion >= Build.VERSION_CODES.M
+
+            // Compute the new state of all permissions, and revoke the runtime permissions
+            val newPerms = group.permissions.toMutableMap()
+            val revokedAppOpPerms = mutableListOf<LightPermission>()
+            for ((permName, perm) in group.permissions) {
+                // Do not touch permissions fixed by the system.
+                if ((filterPermissions != null && permName !in filterPermissions) ||
+                    perm.isSystemFixed) {
+                    continue
+                }
+
+                var newFlags = perm.flags
+                var isGranted = perm.isGrantedIncludingAppOp
+                val affectsAppOp = permissionToOp(permName) != null || perm.isBackgroundPermission
+
+                if (perm.isGrantedIncludingAppOp) {
+                    if (supportsRuntime) {
+                        app.packageManager.revokeRuntimePermission(packageName, permName, user)
+                        isGranted = false
+                    } else if (affectsAppOp) {
+                        // See revokeRuntimePermission
+                        shouldKill = true
+                        newFlags = newFlags.setFlag(PackageManager.FLAG_PERMISSION_REVOKED_COMPAT)
+                        isGranted = false
+                    }
+
+                    if (affectsAppOp) {
+                        revokedAppOpPerms.add(perm)
+                    }
+                }
+
+                newFlags = if (userFixed) {
+                    newFlags.setFlag(PackageManager.FLAG_PERMISSION_USER_FIXED)
+                } else {
+                    newFlags.clearFlag(PackageManager.FLAG_PERMISSION_USER_FIXED)
+                }
+                newFlags = if (oneTime || autoRevoked) {
+                    newFlags.clearFlag(PackageManager.FLAG_PERMISSION_USER_SET)
+                } else {
+                    newFlags.setFlag(PackageManager.FLAG_PERMISSION_USER_SET)
+                }
+                newFlags = if (oneTime) {
+                    newFlags.setFlag(PackageManager.FLAG_PERMISSION_ONE_TIME)
+                } else {
+                    newFlags.clearFlag(PackageManager.FLAG_PERMISSION_ONE_TIME)
+                }
+                newFlags = if (autoRevoked) {
+                    newFlags.setFlag(PackageManager.FLAG_PERMISSION_AUTO_REVOKED)
+                } else {
+                    newFlags.clearFlag(PackageManager.FLAG_PERMISSION_AUTO_REVOKED)
+                }
+                if (unsetReviewRequired) {
+                    newFlags = newFlags.clearFlag(PackageManager.FLAG_PERMISSION_REVIEW_REQUIRED)
+                }
+
+                if (perm.flags != newFlags) {
+                    app.packageManager.updatePermissionFlags(permName, packageName,
+                        PERMISSION_CONTROLLER_CHANGED_FLAG_MASK, newFlags, user)
+                }
+
+                newPerms[permName] = LightPermission(perm.pkgInfo, perm.permInfo,
+                    PermState(newFlags, isGranted), perm.foregroundPerms)
+            }
+            val newGroup = LightAppPermGroup(group.packageInfo, group.permGroupInfo, newPerms,
+                group.hasInstallToRuntimeSplit, group.specialLocationGrant)
+
+            // Set each affected app op once, to the mode matching the new state
+            val appOpsManager = app.getSystemService(AppOpsManager::class.java) as AppOpsManager
+            val foregroundPermNames = revokedAppOpPerms.flatMap { perm ->
+                if (perm.isBackgroundPermission && perm.foregroundPerms != null) {
+                    // Only the foreground permissions still granted are downgraded
+                    perm.foregroundPerms.filter {
+                        group.permissions[it]?.isGrantedIncludingAppOp == true
+                    }
+                } else {
+                    listOf(perm.name)
+                }
+            }.distinct()
+            for (foregroundPermName in foregroundPermNames) {
+                val appOpName = permissionToOp(foregroundPermName) ?: continue
+                setOpMode(appOpName, uid, packageName,
+                    getAppOpMode(newGroup, foregroundPermName), appOpsManager)
+            }
+
+            newGroup
+        }
+
+        if (shouldKill) {
+            (app.getSystemService(ActivityManager::class.java) as ActivityManager).killUid(
+                uid, KILL_REASON_APP_OP_CHANGE)
+        }
+        return newGroups
+    }
+
+    /**
+     * Get the mode the app op of a foreground permission should have in a LightAppPermGroup, see
+     * {@link #allowAppOp} and {@link #disallowAppOp}.
+     *
+     * @param group The LightAppPermGroup with the state of the permissions
+     * @param foregroundPermName The foreground permission whose app op mode is computed
+     *
+     * @return the app op mode
+     */
+    private fun getAppOpMode(group: LightAppPermGroup, foregroundPermName: String): Int {
+        val perm = group.permissions[foregroundPermName]
+        if (perm == null || !perm.isGrantedIncludingAppOp) {
+            return MODE_IGNORED
+        }
+        if (perm.backgroundPermission == null) {
+            return MODE_ALLOWED
+        }
+        val bgPerm = group.permissions[perm.backgroundPermission]
+        return if (bgPerm != null && bgPerm.isGrantedIncludingAppOp) MODE_ALLOWED
+        else MODE_FOREGROUND
+    }
+
     private fun Int.setFlag(flagToSet: Int): Int {
         return this or flagToSet
     }
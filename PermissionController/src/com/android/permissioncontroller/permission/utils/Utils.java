@@ -128,6 +128,14 @@ public final class Utils {
     private static final String PROPERTY_LOCATION_ACCESS_CHECK_ENABLED =
             "location_access_check_enabled";
 
+    /** Whether to persist the installed packages of each user for warm starts. */
+    private static final String PROPERTY_PACKAGE_INFOS_SNAPSHOT_ENABLED =
+            "package_infos_snapshot_enabled";
+
+    /** Whether to record the updates of the LiveDatas of the data layer for the dump. */
+    private static final String PROPERTY_LIVE_DATA_UPDATE_TRACING_ENABLED =
+            "live_data_update_tracing_enabled";
+
     /** All permission whitelists. */
     public static final int FLAGS_PERMISSION_WHITELIST_ALL =
             PackageManager.FLAG_PERMISSION_WHITELIST_SYSTEM
@@ -875,6 +883,28 @@ public final class Utils {
                 PROPERTY_LOCATION_ACCESS_CHECK_ENABLED, true);
     }
 
+    /**
+     * Whether the installed packages of each user should be persisted, so they can be shown
+     * before they are loaded from the system after the process restarts.
+     *
+     * @return {@code true} iff the package infos snapshot is enabled.
+     */
+    public static boolean isPackageInfosSnapshotEnabled() {
+        return DeviceConfig.getBoolean(DeviceConfig.NAMESPACE_PERMISSIONS,
+                PROPERTY_PACKAGE_INFOS_SNAPSHOT_ENABLED, false);
+    }
+
+    /**
+     * Whether the updates of the LiveDatas of the data layer should be recorded, so they can be
+     * dumped.
+     *
+     * @return {@code true} iff LiveData update tracing is enabled.
+     */
+    public static boolean isLiveDataUpdateTracingEnabled() {
+        return DeviceConfig.getBoolean(DeviceConfig.NAMESPACE_PERMISSIONS,
+                PROPERTY_LIVE_DATA_UPDATE_TRACING_ENABLED, false);
+    }
+
     /**
      * Get a device protected storage based shared preferences. Avoid storing sensitive data in it.
      *
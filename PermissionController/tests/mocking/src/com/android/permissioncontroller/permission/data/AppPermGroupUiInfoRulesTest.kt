@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.Manifest.permission.ACCESS_BACKGROUND_LOCATION
+import android.Manifest.permission.ACCESS_FINE_LOCATION
+import android.Manifest.permission.CAMERA
+import android.Manifest.permission.READ_EXTERNAL_STORAGE
+import android.Manifest.permission_group
+import android.content.pm.PackageInfo.REQUESTED_PERMISSION_GRANTED
+import android.content.pm.PackageManager.FLAG_PERMISSION_ONE_TIME
+import android.content.pm.PackageManager.FLAG_PERMISSION_REVOKED_COMPAT
+import android.content.pm.PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_DENIED
+import android.content.pm.PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED
+import android.content.pm.PermissionInfo.PROTECTION_DANGEROUS
+import android.os.Build.VERSION_CODES.R
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession
+import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.model.livedatatypes.AppPermGroupUiInfo.PermGrantState
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPermInfo
+import com.android.permissioncontroller.permission.model.livedatatypes.PermState
+import com.google.common.truth.Truth.assertThat
+import com.google.common.truth.Truth.assertWithMessage
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.MockitoSession
+import org.mockito.quality.Strictness.LENIENT
+import org.mockito.Mockito.`when` as whenever
+
+/**
+ * Checks that [AppPermGroupUiInfoLiveData.isCounted], which counts apps without a LiveData per
+ * app, decides like the UI info of the [AppPermGroupUiInfoLiveData] did when apps were counted
+ * from it.
+ */
+@RunWith(AndroidJUnit4::class)
+class AppPermGroupUiInfoRulesTest {
+    private val USER_SENSITIVE =
+        FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED or FLAG_PERMISSION_USER_SENSITIVE_WHEN_DENIED
+
+    private val ALL_FLAGS = listOf(0, USER_SENSITIVE, USER_SENSITIVE or FLAG_PERMISSION_ONE_TIME,
+        USER_SENSITIVE or FLAG_PERMISSION_REVOKED_COMPAT, FLAG_PERMISSION_ONE_TIME)
+
+    private var mockitoSession: MockitoSession? = null
+
+    /**
+     * A permission group, with the permissions an app requests from it
+     */
+    private data class Group(
+        val name: String,
+        val permInfos: Map<String, LightPermInfo>,
+        val isLegacyPlatform: Boolean = false
+    )
+
+    private val cameraGroup = Group(permission_group.CAMERA, permInfos(CAMERA to null))
+    private val locationGroup = Group(permission_group.LOCATION, permInfos(
+        ACCESS_FINE_LOCATION to ACCESS_BACKGROUND_LOCATION, ACCESS_BACKGROUND_LOCATION to null))
+    private val storageGroup =
+        Group(permission_group.STORAGE, permInfos(READ_EXTERNAL_STORAGE to null))
+    private val legacyGroup = cameraGroup.copy(isLegacyPlatform = true)
+
+    /**
+     * One way an app can be set up
+     *
+     * @param group The group the app requests all permissions of
+     * @param granted The permissions which are granted to the package
+     * @param flags The flags of all permissions of the group
+     * @param specialLocationState The state of the location provider or extra location
+     * controller package, or null if the app is neither
+     * @param isFullFilesAccessGranted Whether the app has full file access
+     * @param enabled Whether the app is enabled
+     */
+    private data class Case(
+        val group: Group,
+        val granted: Set<String>,
+        val flags: Int,
+        val specialLocationState: Boolean? = null,
+        val isFullFilesAccessGranted: Boolean = false,
+        val enabled: Boolean = true
+    )
+
+    @Before
+    fun mockApplication() {
+        mockitoSession = mockitoSession().mockStatic(PermissionControllerApplication::class.java)
+            .strictness(LENIENT).startMocking()
+
+        whenever(PermissionControllerApplication.get()).thenReturn(mockApplication)
+    }
+
+    @After
+    fun finishMocking() {
+        mockitoSession?.finishMocking()
+    }
+
+    private fun permInfos(vararg perms: Pair<String, String?>): Map<String, LightPermInfo> {
+        return perms.associate { (name, backgroundPermission) ->
+            name to LightPermInfo(name, "android", null, backgroundPermission,
+                PROTECTION_DANGEROUS, 0, 0)
+        }
+    }
+
+    private fun Case.packageInfo(): LightPackageInfo {
+        val requested = group.permInfos.keys.toList()
+        return LightPackageInfo("com.android.permissioncontroller.test", emptyList(), requested,
+            requested.map { if (it in granted) REQUESTED_PERMISSION_GRANTED else 0 }, 10001, R,
+            false, enabled, 0, 0)
+    }
+
+    /**
+     * The state of the permissions, as PermStateLiveData and the counter compute it
+     */
+    private fun Case.permissionState(): Map<String, PermState> {
+        return group.permInfos.keys.associateWith { permName ->
+            PermState(flags, permName in granted && flags and FLAG_PERMISSION_REVOKED_COMPAT == 0)
+        }
+    }
+
+    /**
+     * Whether the app was counted from its [AppPermGroupUiInfoLiveData]
+     */
+    private fun Case.isCountedFromUiInfo(countSystem: Boolean, countOnlyGranted: Boolean): Boolean {
+        val uiInfo = AppPermGroupUiInfoLiveData.getAppPermGroupUiInfo(packageInfo(), group.name,
+            group.isLegacyPlatform, group.permInfos, permissionState(), specialLocationState,
+            { isFullFilesAccessGranted }, { false })
+        val isGranted = uiInfo.permGrantState != PermGrantState.PERMS_DENIED &&
+            uiInfo.permGrantState != PermGrantState.PERMS_ASK
+
+        return uiInfo.shouldShow && (!uiInfo.isSystem || countSystem) &&
+            (isGranted || !countOnlyGranted)
+    }
+
+    private fun Case.isCounted(countSystem: Boolean, countOnlyGranted: Boolean): Boolean {
+        return AppPermGroupUiInfoLiveData.isCounted(packageInfo(), group.name,
+            group.isLegacyPlatform, group.permInfos, countSystem, countOnlyGranted,
+            { specialLocationState }, { permissionState() }, { isFullFilesAccessGranted })
+    }
+
+    private fun assertCounted(
+        case: Case,
+        countSystem: Boolean,
+        countOnlyGranted: Boolean,
+        expected: Boolean
+    ) {
+        assertWithMessage("$case, countSystem=$countSystem, countOnlyGranted=$countOnlyGranted")
+            .that(case.isCountedFromUiInfo(countSystem, countOnlyGranted)).isEqualTo(expected)
+        assertWithMessage("$case, countSystem=$countSystem, countOnlyGranted=$countOnlyGranted")
+            .that(case.isCounted(countSystem, countOnlyGranted)).isEqualTo(expected)
+    }
+
+    @Test
+    fun systemAppOnlyCountedWhenCountingSystemApps() {
+        val case = Case(cameraGroup, setOf(CAMERA), 0)
+
+        assertCounted(case, countSystem = false, countOnlyGranted = false, expected = false)
+        assertCounted(case, countSystem = true, countOnlyGranted = false, expected = true)
+        assertCounted(case, countSystem = true, countOnlyGranted = true, expected = true)
+    }
+
+    @Test
+    fun deniedAppOnlyCountedWhenCountingAllApps() {
+        val case = Case(cameraGroup, emptySet(), USER_SENSITIVE)
+
+        assertCounted(case, countSystem = false, countOnlyGranted = false, expected = true)
+        assertCounted(case, countSystem = false, countOnlyGranted = true, expected = false)
+    }
+
+    @Test
+    fun oneTimeGrantNotCountedAsGranted() {
+        val case = Case(cameraGroup, setOf(CAMERA), USER_SENSITIVE or FLAG_PERMISSION_ONE_TIME)
+
+        assertCounted(case, countSystem = false, countOnlyGranted = false, expected = true)
+        assertCounted(case, countSystem = false, countOnlyGranted = true, expected = false)
+    }
+
+    @Test
+    fun backgroundGrantCountedAsGranted() {
+        assertCounted(Case(locationGroup, setOf(ACCESS_FINE_LOCATION, ACCESS_BACKGROUND_LOCATION),
+            USER_SENSITIVE), countSystem = false, countOnlyGranted = true, expected = true)
+        assertCounted(Case(locationGroup, setOf(ACCESS_BACKGROUND_LOCATION), USER_SENSITIVE),
+            countSystem = false, countOnlyGranted = true, expected = true)
+    }
+
+    @Test
+    fun specialLocationPackageFollowsLocationState() {
+        assertCounted(Case(locationGroup, emptySet(), USER_SENSITIVE, specialLocationState = true),
+            countSystem = false, countOnlyGranted = true, expected = true)
+        assertCounted(Case(locationGroup, setOf(ACCESS_FINE_LOCATION, ACCESS_BACKGROUND_LOCATION),
+            USER_SENSITIVE, specialLocationState = false), countSystem = false,
+            countOnlyGranted = true, expected = false)
+    }
+
+    @Test
+    fun fullFilesAccessCountedAsGranted() {
+        assertCounted(Case(storageGroup, emptySet(), USER_SENSITIVE,
+            isFullFilesAccessGranted = true), countSystem = false, countOnlyGranted = true,
+            expected = true)
+    }
+
+    @Test
+    fun hiddenAppsNeverCounted() {
+        for (case in listOf(Case(legacyGroup, setOf(CAMERA), USER_SENSITIVE),
+                Case(cameraGroup, setOf(CAMERA), USER_SENSITIVE, enabled = false))) {
+            assertCounted(case, countSystem = true, countOnlyGranted = false, expected = false)
+        }
+    }
+
+    @Test
+    fun permissionStateNotLoadedWhenCountingAllApps() {
+        val case = Case(cameraGroup, setOf(CAMERA), USER_SENSITIVE)
+
+        assertThat(AppPermGroupUiInfoLiveData.isCounted(case.packageInfo(), case.group.name,
+            false, case.group.permInfos, countSystem = true, countOnlyGranted = false,
+            getSpecialLocationState = { throw AssertionError() },
+            getPermissionState = { throw AssertionError() },
+            isFullFilesAccessGranted = { throw AssertionError() })).isTrue()
+    }
+
+    @Test
+    fun isCountedMatchesUiInfoForAllCombinations() {
+        val cases = mutableListOf<Case>()
+        for (group in listOf(cameraGroup, locationGroup, storageGroup, legacyGroup)) {
+            val permNames = group.permInfos.keys.toList()
+            val grantedSets = (0 until (1 shl permNames.size)).map { mask ->
+                permNames.filterIndexed { index, _ -> mask and (1 shl index) != 0 }.toSet()
+            }
+            for (granted in grantedSets) {
+                for (flags in ALL_FLAGS) {
+                    for (specialLocationState in listOf(null, true, false)) {
+                        for (isFullFilesAccessGranted in listOf(false, true)) {
+                            cases.add(Case(group, granted, flags, specialLocationState,
+                                isFullFilesAccessGranted))
+                        }
+                    }
+                }
+            }
+        }
+
+        for (case in cases) {
+            for (countSystem in listOf(false, true)) {
+                for (countOnlyGranted in listOf(false, true)) {
+                    assertCounted(case, countSystem, countOnlyGranted,
+                        case.isCountedFromUiInfo(countSystem, countOnlyGranted))
+                }
+            }
+        }
+    }
+}
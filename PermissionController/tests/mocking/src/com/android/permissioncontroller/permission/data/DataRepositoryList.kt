@@ -17,9 +17,31 @@
 package com.android.permissioncontroller.permission.data
 
 import android.content.ComponentCallbacks2
+import com.android.permissioncontroller.PermissionControllerApplication
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.`when` as whenever
 
 /**
  * Data repositories companion objects, hence they will not get re-registered for each test. Hence
  * keep a global list which can be reused by later tests.
  */
 val dataRepositories = mutableListOf<ComponentCallbacks2>()
+
+/**
+ * Application mock shared by all tests. Singletons of the data layer keep the application they
+ * were created with, hence all tests have to use the same one.
+ */
+val mockApplication: PermissionControllerApplication =
+    mock(PermissionControllerApplication::class.java).also { application ->
+        whenever(application.applicationContext).thenReturn(application)
+        whenever(application.createPackageContextAsUser(any(), anyInt(), any())).thenReturn(
+            application)
+
+        whenever(application.registerComponentCallbacks(any())).thenAnswer {
+            val dataRepository = it.arguments[0] as ComponentCallbacks2
+
+            dataRepositories.add(dataRepository)
+        }
+    }
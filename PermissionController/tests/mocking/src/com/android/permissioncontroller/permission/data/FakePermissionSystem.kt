@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.app.ActivityManager
+import android.app.AppOpsManager
+import android.app.AppOpsManager.MODE_ALLOWED
+import android.app.usage.UsageStatsManager
+import android.content.Intent
+import android.content.pm.ApplicationInfo
+import android.content.pm.PackageInfo
+import android.content.pm.PackageInfo.REQUESTED_PERMISSION_GRANTED
+import android.content.pm.PackageManager
+import android.net.Uri
+import android.os.Build.VERSION_CODES.R
+import android.os.Process.FIRST_APPLICATION_UID
+import android.os.UserHandle
+import android.os.UserManager
+import android.permission.PermissionManager
+import androidx.annotation.MainThread
+import androidx.test.platform.app.InstrumentationRegistry
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.ArgumentMatchers.nullable
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.`when` as whenever
+
+/**
+ * A simulated system for the permission data layer: a set of users which all have the same
+ * packages installed, served by mocks of the system services the data layer uses. Every call into
+ * a simulated system service is counted as an IPC.
+ *
+ * Permission definitions are forwarded to the real system, hence only platform permissions should
+ * be requested.
+ *
+ * @param numUsers The number of users
+ * @param numPackages The number of packages installed for each user
+ * @param requestedPermissions The permissions every package requests
+ */
+class FakePermissionSystem(
+    val numUsers: Int,
+    val numPackages: Int,
+    val requestedPermissions: List<String>
+) {
+    val packageManager: PackageManager = mock(PackageManager::class.java)
+    val appOpsManager: AppOpsManager = mock(AppOpsManager::class.java)
+    val usageStatsManager: UsageStatsManager = mock(UsageStatsManager::class.java)
+    val permissionManager: PermissionManager = mock(PermissionManager::class.java)
+    val userManager: UserManager = mock(UserManager::class.java)
+    val activityManager: ActivityManager = mock(ActivityManager::class.java)
+
+    val users = List(numUsers) { UserHandle.of(it * 10) }
+
+    /**
+     * Permissions which are granted, by uid
+     */
+    private val grantedPermissions = ConcurrentHashMap<Int, MutableSet<String>>()
+
+    /**
+     * The index of the package whose uid a package shares, by index of the package
+     */
+    private val sharedUidOwners = ConcurrentHashMap<Int, Int>()
+
+    /**
+     * The flags of single permissions, by package name and permission name
+     */
+    private val singlePermissionFlags = ConcurrentHashMap<Pair<String, String>, Int>()
+
+    /**
+     * The indexes of the packages which are currently not installed in any user
+     */
+    val uninstalledPackages: MutableSet<Int> = ConcurrentHashMap.newKeySet()
+
+    private val ipcCounts = ConcurrentHashMap<String, AtomicInteger>()
+
+    /**
+     * The packages any IPC was made about since the counts were last reset
+     */
+    val touchedPackages: MutableSet<String> = ConcurrentHashMap.newKeySet()
+
+    /**
+     * The flags of every requested permission of every package, unless set for a single
+     * permission, see [setPermissionFlags]
+     */
+    @Volatile
+    var permissionFlags = 0
+
+    private val ipcsInFlight = AtomicInteger()
+
+    /**
+     * The number of IPCs which were started, but did not return yet
+     */
+    val numIpcsInFlight: Int
+        get() = ipcsInFlight.get()
+
+    /**
+     * Called on every IPC, from the thread making it
+     */
+    @Volatile
+    var onIpc: (() -> Unit)? = null
+
+    /**
+     * The total number of IPCs since the counts were last reset
+     */
+    val numIpcs: Int
+        get() = ipcCounts.values.sumBy { it.get() }
+
+    init {
+        // Every other package has the first permission granted
+        for (user in users) {
+            for (index in 0 until numPackages step 2) {
+                setGranted(user, index, requestedPermissions[0], true)
+            }
+        }
+    }
+
+    fun getPackageName(index: Int) = "$PACKAGE_NAME_PREFIX$index"
+
+    fun getUid(user: UserHandle, index: Int) = UserHandle.getUid(user.identifier,
+        FIRST_APPLICATION_UID + (sharedUidOwners[index] ?: index))
+
+    /**
+     * Let a package share the uid, and hence the granted permissions, of another package. Has to
+     * be called before the packages are loaded.
+     */
+    fun shareUid(index: Int, ownerIndex: Int) {
+        sharedUidOwners[index] = ownerIndex
+    }
+
+    /**
+     * Set the flags of a single permission of a package in all users. Has to be called before
+     * the permissions are loaded.
+     */
+    fun setPermissionFlags(index: Int, permissionName: String, flags: Int) {
+        singlePermissionFlags[getPackageName(index) to permissionName] = flags
+    }
+
+    /**
+     * Grant or revoke a permission. Listeners are not notified, see
+     * [notifyPermissionsChanged].
+     */
+    fun setGranted(user: UserHandle, index: Int, permissionName: String, granted: Boolean) {
+        val permissions = grantedPermissions.getOrPut(getUid(user, index)) {
+            ConcurrentHashMap.newKeySet()
+        }
+        if (granted) {
+            permissions.add(permissionName)
+        } else {
+            permissions.remove(permissionName)
+        }
+    }
+
+    /**
+     * Get the number of IPCs, by method, since the counts were last reset
+     */
+    fun getIpcCounts(): Map<String, Int> = ipcCounts.mapValues { it.value.get() }
+
+    fun resetIpcCounts() {
+        ipcCounts.clear()
+        touchedPackages.clear()
+    }
+
+    /**
+     * Notify the data layer of a permission change, as the package manager would.
+     *
+     * @param uid The uid whose permissions changed
+     */
+    @MainThread
+    fun notifyPermissionsChanged(uid: Int) {
+        PermissionListenerMultiplexer.onPermissionsChanged(uid)
+    }
+
+    /**
+     * Send a package broadcast to the data layer, as the system would.
+     *
+     * @param index The index of the changed package
+     * @param action The action of the broadcast
+     */
+    @MainThread
+    fun notifyPackageChanged(index: Int, action: String = Intent.ACTION_PACKAGE_CHANGED) {
+        PackageBroadcastReceiver.onReceive(mockApplication,
+            Intent(action, Uri.fromParts("package", getPackageName(index), null)))
+    }
+
+    /**
+     * Point the [mockApplication] to the simulated system services. Has to be called while
+     * [com.android.permissioncontroller.PermissionControllerApplication.get] is mocked.
+     */
+    fun install() {
+        val application = mockApplication
+        val targetContext = InstrumentationRegistry.getInstrumentation().targetContext
+
+        whenever(application.packageManager).thenReturn(packageManager)
+        whenever(application.getSystemService(AppOpsManager::class.java)).thenReturn(appOpsManager)
+        whenever(application.getSystemService(UsageStatsManager::class.java)).thenReturn(
+            usageStatsManager)
+        whenever(application.getSystemService(PermissionManager::class.java)).thenReturn(
+            permissionManager)
+        whenever(application.getSystemService(UserManager::class.java)).thenReturn(userManager)
+        whenever(application.getSystemService(ActivityManager::class.java)).thenReturn(
+            activityManager)
+        whenever(application.contentResolver).thenReturn(targetContext.contentResolver)
+        whenever(application.filesDir).thenReturn(targetContext.cacheDir)
+        whenever(application.cacheDir).thenReturn(targetContext.cacheDir)
+
+        whenever(userManager.userProfiles).thenAnswer { ipc("getUserProfiles") { users } }
+
+        whenever(packageManager.getInstalledPackagesAsUser(anyInt(), anyInt())).thenAnswer {
+            val userId = it.arguments[1] as Int
+            ipc("getInstalledPackagesAsUser") {
+                (0 until numPackages).filter { index -> index !in uninstalledPackages }
+                    .map { index -> createPackageInfo(UserHandle.of(userId), index) }
+            }
+        }
+        // User contexts are not simulated, single packages are always those of the first user
+        whenever(packageManager.getPackageInfo(anyString(), anyInt())).thenAnswer {
+            val packageName = it.arguments[0] as String
+            ipc("getPackageInfo", packageName) {
+                createPackageInfo(users[0], getIndex(packageName))
+            }
+        }
+        whenever(packageManager.getPermissionFlags(any(), any(), any())).thenAnswer {
+            val permissionName = it.arguments[0] as String
+            val packageName = it.arguments[1] as String
+            ipc("getPermissionFlags", packageName) {
+                singlePermissionFlags[packageName to permissionName] ?: permissionFlags
+            }
+        }
+        whenever(packageManager.getChangedPackages(anyInt())).thenAnswer {
+            ipc("getChangedPackages") { null }
+        }
+        whenever(packageManager.getPermissionInfo(any(), anyInt())).thenAnswer {
+            val permissionName = it.arguments[0] as String
+            ipc("getPermissionInfo") {
+                targetContext.packageManager.getPermissionInfo(permissionName, 0)
+            }
+        }
+        whenever(packageManager.getPermissionGroupInfo(any(), anyInt())).thenAnswer {
+            val groupName = it.arguments[0] as String
+            ipc("getPermissionGroupInfo") {
+                targetContext.packageManager.getPermissionGroupInfo(groupName, 0)
+            }
+        }
+        whenever(packageManager.queryPermissionsByGroup(any(), anyInt())).thenAnswer {
+            val groupName = it.arguments[0] as String?
+            ipc("queryPermissionsByGroup") {
+                targetContext.packageManager.queryPermissionsByGroup(groupName, 0)
+            }
+        }
+
+        whenever(appOpsManager.unsafeCheckOpRaw(anyString(), anyInt(), nullable(
+            String::class.java))).thenAnswer {
+            ipc("unsafeCheckOpRaw", it.arguments[2] as String?) { MODE_ALLOWED }
+        }
+
+        whenever(usageStatsManager.queryAndAggregateUsageStats(anyLong(), anyLong())).thenAnswer {
+            ipc("queryAndAggregateUsageStats") { emptyMap<String, Any>() }
+        }
+
+        whenever(permissionManager.splitPermissions).thenAnswer {
+            ipc("getSplitPermissions") { emptyList<Any>() }
+        }
+    }
+
+    private fun getIndex(packageName: String): Int {
+        return packageName.removePrefix(PACKAGE_NAME_PREFIX).toIntOrNull()
+            ?.takeIf { it < numPackages && it !in uninstalledPackages }
+            ?: throw PackageManager.NameNotFoundException()
+    }
+
+    private fun createPackageInfo(user: UserHandle, index: Int): PackageInfo {
+        val uid = getUid(user, index)
+        val granted = grantedPermissions[uid] ?: emptySet<String>()
+
+        return PackageInfo().apply {
+            packageName = getPackageName(index)
+            requestedPermissions = this@FakePermissionSystem.requestedPermissions.toTypedArray()
+            requestedPermissionsFlags = this@FakePermissionSystem.requestedPermissions.map {
+                if (it in granted) REQUESTED_PERMISSION_GRANTED else 0
+            }.toIntArray()
+            applicationInfo = ApplicationInfo().apply {
+                packageName = getPackageName(index)
+                this.uid = uid
+                targetSdkVersion = R
+                enabled = true
+            }
+        }
+    }
+
+    private fun <T> ipc(method: String, packageName: String? = null, call: () -> T): T {
+        ipcCounts.getOrPut(method) { AtomicInteger() }.incrementAndGet()
+        if (packageName != null) {
+            touchedPackages.add(packageName)
+        }
+        onIpc?.invoke()
+        ipcsInFlight.incrementAndGet()
+        try {
+            return call()
+        } finally {
+            ipcsInFlight.decrementAndGet()
+        }
+    }
+
+    companion object {
+        private const val PACKAGE_NAME_PREFIX = "com.android.permissioncontroller.simulated"
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.os.Looper
+import android.os.SystemClock
+import android.util.Log
+import androidx.lifecycle.LiveData
+import androidx.lifecycle.Observer
+import androidx.test.platform.app.InstrumentationRegistry
+import com.android.permissioncontroller.permission.utils.IPC
+import com.android.permissioncontroller.permission.utils.IPC_THREAD_POOL_COUNT
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Drives the real LiveData graph of the data layer on top of a [FakePermissionSystem], and
+ * measures how it behaves.
+ *
+ * All interaction with the graph happens on the main thread. After every step the simulation
+ * waits until the graph has settled, i.e. until the main looper is idle, no job is queued on or
+ * running in the [IPC] pool, and no IPC is in flight.
+ *
+ * @param system The simulated system
+ */
+class PermissionDataSimulation(private val system: FakePermissionSystem) {
+    private val instrumentation = InstrumentationRegistry.getInstrumentation()
+
+    private val observed = mutableListOf<Pair<LiveData<*>, Observer<Any?>>>()
+
+    private val numUpdates = AtomicInteger()
+
+    private val ipcExecutor = IPC.executor as ThreadPoolExecutor
+
+    /**
+     * When the last IPC or update happened
+     */
+    @Volatile
+    private var lastActivityTime = 0L
+
+    init {
+        system.onIpc = { recordActivity() }
+    }
+
+    private fun recordActivity() {
+        lastActivityTime = SystemClock.elapsedRealtime()
+    }
+
+    /**
+     * Run code on the main thread, and wait for it to finish.
+     */
+    fun <T> onMain(block: () -> T): T {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            return block()
+        }
+
+        var result: T? = null
+        instrumentation.runOnMainSync { result = block() }
+        @Suppress("UNCHECKED_CAST")
+        return result as T
+    }
+
+    /**
+     * Observe a LiveData, counting every value it delivers as an update, until [reset].
+     *
+     * @param liveData The LiveData to observe
+     */
+    fun observe(liveData: LiveData<*>) {
+        val observer = Observer<Any?> {
+            numUpdates.incrementAndGet()
+            recordActivity()
+        }
+        onMain {
+            @Suppress("UNCHECKED_CAST")
+            (liveData as LiveData<Any?>).observeForever(observer)
+        }
+        observed.add(liveData to observer)
+    }
+
+    /**
+     * Wait until the graph has settled.
+     *
+     * @param timeoutMs How long to wait at most
+     */
+    fun awaitSettled(timeoutMs: Long = SETTLE_TIMEOUT_MS) {
+        val deadline = SystemClock.elapsedRealtime() + timeoutMs
+        while (true) {
+            instrumentation.waitForIdleSync()
+            val isSettled = whileIpcPaused(deadline) {
+                // Run what the finished jobs posted to the main thread. Jobs it starts can only
+                // be queued while the pool is paused.
+                instrumentation.waitForIdleSync()
+                ipcExecutor.queue.isEmpty() && system.numIpcsInFlight == 0 &&
+                    Looper.getMainLooper().queue.isIdle
+            }
+            if (isSettled) {
+                return
+            }
+            check(SystemClock.elapsedRealtime() < deadline) {
+                "Data layer did not settle within ${timeoutMs}ms"
+            }
+        }
+    }
+
+    /**
+     * Occupy every thread of the [IPC] pool, and run a block while they are occupied. As the pool
+     * runs its jobs in order, every job queued before has finished by then, and no other job can
+     * run until the block returns.
+     *
+     * @param deadline Until when, in elapsed realtime, the jobs queued before have to finish
+     * @param block The block to run
+     *
+     * @return The result of the block
+     */
+    private fun <T> whileIpcPaused(deadline: Long, block: () -> T): T {
+        val paused = CountDownLatch(IPC_THREAD_POOL_COUNT)
+        val resumed = CountDownLatch(1)
+        repeat(IPC_THREAD_POOL_COUNT) {
+            ipcExecutor.execute {
+                paused.countDown()
+                resumed.await()
+            }
+        }
+
+        try {
+            check(paused.await(deadline - SystemClock.elapsedRealtime(), MILLISECONDS)) {
+                "IPC jobs did not finish in time"
+            }
+            return block()
+        } finally {
+            resumed.countDown()
+        }
+    }
+
+    /**
+     * Run a scenario: perform a step on the main thread, and measure the work it caused until the
+     * graph settled.
+     *
+     * @param name The name of the scenario, used in the log
+     * @param step The step to perform
+     *
+     * @return What the step caused
+     */
+    fun runScenario(name: String, step: () -> Unit): ScenarioReport {
+        awaitSettled()
+        system.resetIpcCounts()
+        numUpdates.set(0)
+
+        val start = SystemClock.elapsedRealtime()
+        lastActivityTime = start
+        onMain(step)
+        awaitSettled()
+
+        val report = ScenarioReport(name, lastActivityTime - start, numUpdates.get(),
+            system.getIpcCounts())
+        Log.i(LOG_TAG, report.toString())
+        return report
+    }
+
+    /**
+     * Stop observing all LiveDatas, and drop all cached LiveDatas, so the next simulation starts
+     * cold.
+     */
+    fun reset() {
+        onMain {
+            for ((liveData, observer) in observed) {
+                @Suppress("UNCHECKED_CAST")
+                (liveData as LiveData<Any?>).removeObserver(observer)
+            }
+        }
+        observed.clear()
+        awaitSettled()
+        system.onIpc = null
+
+        // Send low memory notifications for all data repositories which will clear cached data
+        dataRepositories.forEach { it.onLowMemory() }
+    }
+
+    /**
+     * The work caused by a step of a scenario.
+     *
+     * @param name The name of the scenario
+     * @param wallTimeMs The time from the step until the last IPC or update it caused
+     * @param numUpdates The number of values delivered to the observed LiveDatas
+     * @param ipcCounts The number of IPCs, by method
+     */
+    data class ScenarioReport(
+        val name: String,
+        val wallTimeMs: Long,
+        val numUpdates: Int,
+        val ipcCounts: Map<String, Int>
+    ) {
+        val numIpcs: Int
+            get() = ipcCounts.values.sum()
+
+        override fun toString(): String {
+            return "$name: ${wallTimeMs}ms, $numUpdates updates, $numIpcs IPCs $ipcCounts"
+        }
+    }
+
+    companion object {
+        private val LOG_TAG = PermissionDataSimulation::class.java.simpleName
+
+        private const val SETTLE_TIMEOUT_MS = 60_000L
+    }
+}
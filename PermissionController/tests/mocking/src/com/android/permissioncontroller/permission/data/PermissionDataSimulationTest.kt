@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.Manifest.permission.ACCESS_FINE_LOCATION
+import android.Manifest.permission.CAMERA
+import android.Manifest.permission.INTERNET
+import android.Manifest.permission.READ_CONTACTS
+import android.Manifest.permission.RECORD_AUDIO
+import android.content.Intent
+import android.net.Uri
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.android.dx.mockito.inline.extended.ExtendedMockito.doReturn
+import com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession
+import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.utils.Utils
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.MockitoSession
+import org.mockito.quality.Strictness.LENIENT
+import org.mockito.Mockito.`when` as whenever
+
+/**
+ * Scenarios for the [PermissionDataSimulation], on a device with many users and packages. Each
+ * scenario logs how many updates and IPCs a step caused, and how long it took.
+ */
+@RunWith(AndroidJUnit4::class)
+class PermissionDataSimulationTest {
+    private val NUM_USERS = 5
+    private val NUM_PACKAGES = 5000
+    private val REQUESTED_PERMS = listOf(CAMERA, RECORD_AUDIO, ACCESS_FINE_LOCATION,
+        READ_CONTACTS, INTERNET)
+    private val NUM_REQUESTED_RUNTIME_PERMS = 4
+
+    private var mockitoSession: MockitoSession? = null
+
+    private val system = FakePermissionSystem(NUM_USERS, NUM_PACKAGES, REQUESTED_PERMS)
+    private val simulation = PermissionDataSimulation(system)
+
+    @Before
+    fun initSystem() {
+        mockitoSession = mockitoSession().mockStatic(PermissionControllerApplication::class.java)
+            .spyStatic(Utils::class.java).strictness(LENIENT).startMocking()
+
+        whenever(PermissionControllerApplication.get()).thenReturn(mockApplication)
+        // Always load cold
+        doReturn(false).`when` { Utils.isPackageInfosSnapshotEnabled() }
+
+        system.install()
+    }
+
+    @After
+    fun resetSystem() {
+        simulation.reset()
+
+        mockitoSession?.finishMocking()
+    }
+
+    @Test
+    fun allPackageInfosLoadEveryUserOnce() {
+        val report = simulation.runScenario("cold load of all package infos") {
+            simulation.observe(AllPackageInfosLiveData)
+        }
+
+        val value = simulation.onMain { AllPackageInfosLiveData.value }!!
+        assertThat(value).hasSize(NUM_USERS)
+        assertThat(value.values.map { it.size }.distinct()).containsExactly(NUM_PACKAGES)
+        assertThat(report.ipcCounts["getInstalledPackagesAsUser"]).isEqualTo(NUM_USERS)
+    }
+
+    @Test
+    fun packageChangeReloadsEveryUserOnce() {
+        simulation.observe(AllPackageInfosLiveData)
+
+        val report = simulation.runScenario("package change with all package infos observed") {
+            system.notifyPackageChanged(0)
+        }
+
+        assertThat(report.ipcCounts["getInstalledPackagesAsUser"]).isEqualTo(NUM_USERS)
+    }
+
+    @Test
+    fun permissionChangeOnlyReloadsChangedPackage() {
+        val numObservedPackages = 100
+        val user = system.users[0]
+        for (index in 0 until numObservedPackages) {
+            simulation.observe(PackagePermStatesLiveData[system.getPackageName(index), user])
+        }
+        simulation.awaitSettled()
+
+        val report = simulation.runScenario("permission change of one of " +
+            "$numObservedPackages observed packages") {
+            system.setGranted(user, 0, CAMERA, false)
+            system.notifyPermissionsChanged(system.getUid(user, 0))
+        }
+
+        // The states are loaded once for the permission change, and once for the changed package
+        assertThat(system.touchedPackages).containsExactly(system.getPackageName(0))
+        assertThat(report.ipcCounts["getPermissionFlags"])
+            .isEqualTo(2 * NUM_REQUESTED_RUNTIME_PERMS)
+        assertThat(simulation.onMain {
+            PackagePermStatesLiveData[system.getPackageName(0), user].value
+        }!!.permStates[CAMERA]!!.granted).isFalse()
+    }
+
+    @Test
+    fun permissionDefinitionsReloadOnlyWhenDefiningPackageChanges() {
+        val user = system.users[0]
+        simulation.observe(PackagePermissionsLiveData[system.getPackageName(0), user])
+
+        val unrelatedReport = simulation.runScenario("change of a package defining nothing") {
+            system.notifyPackageChanged(1)
+        }
+        assertThat(unrelatedReport.ipcCounts["getPermissionInfo"] ?: 0).isEqualTo(0)
+
+        // All requested permissions are platform permissions
+        val definingReport = simulation.runScenario("change of the package defining the " +
+            "requested permissions") {
+            PackageBroadcastReceiver.onReceive(mockApplication,
+                Intent(Intent.ACTION_PACKAGE_CHANGED, Uri.fromParts("package", "android", null)))
+        }
+        assertThat(definingReport.ipcCounts["getPermissionInfo"]).isEqualTo(REQUESTED_PERMS.size)
+    }
+}
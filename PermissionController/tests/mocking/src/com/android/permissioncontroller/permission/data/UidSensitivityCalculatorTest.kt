@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.data
+
+import android.Manifest.permission.ACCESS_FINE_LOCATION
+import android.Manifest.permission.CAMERA
+import android.Manifest.permission.INTERNET
+import android.Manifest.permission.RECORD_AUDIO
+import android.content.pm.ApplicationInfo.FLAG_SYSTEM
+import android.content.pm.PackageManager.FLAG_PERMISSION_GRANTED_BY_DEFAULT
+import android.os.Build
+import android.os.Process.FIRST_APPLICATION_UID
+import android.util.Log
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.android.permissioncontroller.permission.model.livedatatypes.LightPackageInfo
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+
+@RunWith(AndroidJUnit4::class)
+class UidSensitivityCalculatorTest {
+    private val LOG_TAG = UidSensitivityCalculatorTest::class.java.simpleName
+    private val NUM_PACKAGES = 3000
+    private val REQUESTED_PERMS = listOf(CAMERA, RECORD_AUDIO, ACCESS_FINE_LOCATION, INTERNET)
+    private val NUM_REQUESTED_RUNTIME_PERMS = 3
+
+    private var numFlagQueries = 0
+
+    private val getPermissionFlags = { perm: String, _: String ->
+        numFlagQueries++
+        if (perm == CAMERA) FLAG_PERMISSION_GRANTED_BY_DEFAULT else 0
+    }
+
+    private fun createPackage(index: Int, targetSdk: Int = Build.VERSION_CODES.R) =
+        LightPackageInfo("pkg$index", emptyList(), REQUESTED_PERMS,
+            REQUESTED_PERMS.map { 0 }, FIRST_APPLICATION_UID + index, targetSdk, false, true,
+            FLAG_SYSTEM, 0)
+
+    @Test
+    fun unchangedUidsAreNotRecalculated() {
+        val calculator = UidSensitivityCalculator(getPermissionFlags)
+        val pkgs = (0 until NUM_PACKAGES).map { createPackage(it) }
+
+        val fullStart = System.nanoTime()
+        calculator.calculate(pkgs, { false })
+        val fullNanos = System.nanoTime() - fullStart
+
+        assertThat(calculator.numRecalculatedUids).isEqualTo(NUM_PACKAGES)
+        assertThat(numFlagQueries).isEqualTo(NUM_PACKAGES * NUM_REQUESTED_RUNTIME_PERMS)
+
+        numFlagQueries = 0
+        val changedPkgs = pkgs.toMutableList()
+        changedPkgs[0] = createPackage(0, Build.VERSION_CODES.Q)
+
+        val incrementalStart = System.nanoTime()
+        val result = calculator.calculate(changedPkgs, { false })
+        val incrementalNanos = System.nanoTime() - incrementalStart
+
+        Log.i(LOG_TAG, "$NUM_PACKAGES packages: full calculation ${fullNanos / 1000}us, " +
+            "incremental calculation ${incrementalNanos / 1000}us")
+
+        assertThat(calculator.numRecalculatedUids).isEqualTo(1)
+        assertThat(numFlagQueries).isEqualTo(NUM_REQUESTED_RUNTIME_PERMS)
+        assertThat(result).isEqualTo(
+            UidSensitivityCalculator(getPermissionFlags).calculate(changedPkgs, { false }))
+    }
+
+    @Test
+    fun launcherChangeRecalculatesUid() {
+        val calculator = UidSensitivityCalculator(getPermissionFlags)
+        val pkgs = (0 until NUM_PACKAGES).map { createPackage(it) }
+        calculator.calculate(pkgs, { false })
+
+        val result = calculator.calculate(pkgs, { it.packageName == "pkg1" })!!
+
+        assertThat(calculator.numRecalculatedUids).isEqualTo(1)
+        assertThat(result[FIRST_APPLICATION_UID + 1]!!.permStates[CAMERA])
+            .isNotEqualTo(result[FIRST_APPLICATION_UID + 2]!!.permStates[CAMERA])
+    }
+
+    @Test
+    fun removedUidsAreDropped() {
+        val calculator = UidSensitivityCalculator(getPermissionFlags)
+        val pkgs = (0 until NUM_PACKAGES).map { createPackage(it) }
+        calculator.calculate(pkgs, { false })
+
+        val result = calculator.calculate(pkgs.drop(1), { false })!!
+
+        assertThat(calculator.numRecalculatedUids).isEqualTo(0)
+        assertThat(result).doesNotContainKey(FIRST_APPLICATION_UID)
+        assertThat(result).hasSize(NUM_PACKAGES - 1)
+    }
+
+    @Test
+    fun invalidatedUidPicksUpChangedFlags() {
+        var defaultGrantedPerm = CAMERA
+        val calculator = UidSensitivityCalculator { perm, _ ->
+            if (perm == defaultGrantedPerm) FLAG_PERMISSION_GRANTED_BY_DEFAULT else 0
+        }
+        val pkgs = (0 until NUM_PACKAGES).map { createPackage(it) }
+        calculator.calculate(pkgs, { false })
+
+        defaultGrantedPerm = RECORD_AUDIO
+        calculator.invalidateUid(FIRST_APPLICATION_UID + 1)
+        val result = calculator.calculate(pkgs, { false })!!
+
+        assertThat(calculator.numRecalculatedUids).isEqualTo(1)
+        assertThat(result[FIRST_APPLICATION_UID + 1]!!.permStates[CAMERA]).isNotEqualTo(0)
+        assertThat(result[FIRST_APPLICATION_UID + 1]!!.permStates[RECORD_AUDIO]).isEqualTo(0)
+        assertThat(result[FIRST_APPLICATION_UID + 2]!!.permStates[CAMERA]).isEqualTo(0)
+
+        calculator.invalidateAll()
+        calculator.calculate(pkgs, { false })
+
+        assertThat(calculator.numRecalculatedUids).isEqualTo(NUM_PACKAGES)
+    }
+}
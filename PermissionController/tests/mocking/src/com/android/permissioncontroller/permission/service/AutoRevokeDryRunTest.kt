@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.service
+
+import android.Manifest.permission.CAMERA
+import android.Manifest.permission.RECORD_AUDIO
+import android.Manifest.permission_group
+import android.app.ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND
+import android.app.ActivityManager.RunningAppProcessInfo.IMPORTANCE_GONE
+import android.app.AppOpsManager.MODE_IGNORED
+import android.app.AppOpsManager.OPSTR_AUTO_REVOKE_PERMISSIONS_IF_UNUSED
+import android.content.Context.MODE_PRIVATE
+import android.content.pm.PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_DENIED
+import android.content.pm.PackageManager.FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED
+import android.content.pm.PackageManager.PERMISSION_DENIED
+import android.os.UserHandle
+import android.provider.DeviceConfig
+import android.telephony.TelephonyManager
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.android.dx.mockito.inline.extended.ExtendedMockito.doReturn
+import com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession
+import com.android.permissioncontroller.Constants.AUTO_REVOKE_CHECKPOINTS_FILE_PREFIX
+import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.data.FakePermissionSystem
+import com.android.permissioncontroller.permission.data.dataRepositories
+import com.android.permissioncontroller.permission.data.mockApplication
+import com.android.permissioncontroller.permission.service.AutoRevokeReport.PackageResult
+import com.android.permissioncontroller.permission.utils.Utils
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyLong
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.ArgumentMatchers.eq
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.never
+import org.mockito.Mockito.verify
+import org.mockito.MockitoSession
+import org.mockito.quality.Strictness.LENIENT
+import java.io.File
+import java.util.concurrent.TimeUnit.DAYS
+import org.mockito.Mockito.`when` as whenever
+
+/**
+ * Runs [dryRunAutoRevoke] on a [FakePermissionSystem] in which no package was used since the
+ * first boot, long ago.
+ */
+@RunWith(AndroidJUnit4::class)
+class AutoRevokeDryRunTest {
+    private val targetContext = InstrumentationRegistry.getInstrumentation().targetContext
+
+    private val NUM_PACKAGES = 6
+    private val RUNNING_PACKAGE = 0
+    private val EXEMPT_PACKAGE = 2
+    private val REVOCABLE_PACKAGE = 4
+
+    private var mockitoSession: MockitoSession? = null
+
+    /** Every even package has CAMERA granted, every odd package has nothing granted */
+    private val system = FakePermissionSystem(1, NUM_PACKAGES, listOf(CAMERA, RECORD_AUDIO))
+    private val user = system.users[0]
+
+    private val checkpointsFile =
+        File(targetContext.cacheDir, AUTO_REVOKE_CHECKPOINTS_FILE_PREFIX + user.identifier)
+
+    @Before
+    fun initSystem() {
+        mockitoSession = mockitoSession().mockStatic(PermissionControllerApplication::class.java)
+            .spyStatic(Utils::class.java).spyStatic(DeviceConfig::class.java)
+            .strictness(LENIENT).startMocking()
+
+        whenever(PermissionControllerApplication.get()).thenReturn(mockApplication)
+        doReturn(false).`when` { Utils.isPackageInfosSnapshotEnabled() }
+        doReturn(false).`when` { Utils.isUserDisabledOrWorkProfile(any()) }
+        // Unused threshold and check frequency
+        doReturn(DAYS.toMillis(90)).`when` {
+            DeviceConfig.getLong(eq(DeviceConfig.NAMESPACE_PERMISSIONS), anyString(), anyLong())
+        }
+
+        system.install()
+        system.permissionFlags = FLAG_PERMISSION_USER_SENSITIVE_WHEN_GRANTED or
+            FLAG_PERMISSION_USER_SENSITIVE_WHEN_DENIED
+
+        whenever(mockApplication.getSystemService(TelephonyManager::class.java)).thenReturn(
+            mock(TelephonyManager::class.java))
+        val preferences = targetContext.getSharedPreferences(javaClass.simpleName, MODE_PRIVATE)
+        preferences.edit().clear().putLong("first_boot_time", 1).commit()
+        whenever(mockApplication.getSharedPreferences(anyString(), anyInt())).thenReturn(
+            preferences)
+
+        whenever(system.userManager.isUserUnlocked(any(UserHandle::class.java))).thenReturn(true)
+        whenever(system.packageManager.checkPermission(anyString(), anyString())).thenReturn(
+            PERMISSION_DENIED)
+        whenever(system.appOpsManager.unsafeCheckOpNoThrow(
+            eq(OPSTR_AUTO_REVOKE_PERMISSIONS_IF_UNUSED), anyInt(),
+            eq(system.getPackageName(EXEMPT_PACKAGE)))).thenReturn(MODE_IGNORED)
+        whenever(system.activityManager.getPackageImportance(anyString())).thenAnswer {
+            if (it.arguments[0] == system.getPackageName(RUNNING_PACKAGE)) {
+                IMPORTANCE_FOREGROUND
+            } else {
+                IMPORTANCE_GONE
+            }
+        }
+
+        checkpointsFile.delete()
+    }
+
+    @After
+    fun resetSystem() {
+        // Send low memory notifications for all data repositories which will clear cached data
+        dataRepositories.forEach { it.onLowMemory() }
+
+        mockitoSession?.finishMocking()
+    }
+
+    @Test
+    fun dryRunRecordsDecisions() {
+        val report = runBlocking { dryRunAutoRevoke(mockApplication) }
+
+        assertThat(report.isDryRun).isTrue()
+        assertThat(report.numPackagesExamined).isEqualTo(NUM_PACKAGES)
+        assertThat(report.revoked).containsExactly(PackageResult(
+            system.getPackageName(REVOCABLE_PACKAGE), user, listOf(permission_group.CAMERA)))
+        assertThat(report.skipped.map { it.packageName to it.reason }).containsExactly(
+            system.getPackageName(RUNNING_PACKAGE) to
+                "running with importance $IMPORTANCE_FOREGROUND",
+            system.getPackageName(EXEMPT_PACKAGE) to "exempted by user or installer",
+            system.getPackageName(1) to "no granted permissions",
+            system.getPackageName(3) to "no granted permissions",
+            system.getPackageName(5) to "no granted permissions")
+    }
+
+    @Test
+    fun dryRunChangesNoState() {
+        val runsBefore = AutoRevokeRunHistory.get()
+
+        runBlocking { dryRunAutoRevoke(mockApplication) }
+
+        verify(system.packageManager, never()).revokeRuntimePermission(anyString(), anyString(),
+            any(UserHandle::class.java))
+        verify(system.packageManager, never()).updatePermissionFlags(anyString(), anyString(),
+            anyInt(), anyInt(), any(UserHandle::class.java))
+        verify(system.appOpsManager, never()).setUidMode(anyString(), anyInt(), anyInt())
+        assertThat(checkpointsFile.exists()).isFalse()
+        assertThat(AutoRevokeRunHistory.get()).isEqualTo(runsBefore)
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.service
+
+import android.Manifest.permission.ACCESS_BACKGROUND_LOCATION
+import android.Manifest.permission.ACCESS_FINE_LOCATION
+import android.Manifest.permission.CAMERA
+import android.Manifest.permission.RECORD_AUDIO
+import android.app.ActivityManager
+import android.app.AppOpsManager
+import android.content.Context
+import android.content.pm.PackageManager.FLAG_PERMISSION_SYSTEM_FIXED
+import android.content.pm.PackageManager.FLAG_PERMISSION_USER_FIXED
+import android.content.pm.PackageManager.FLAG_PERMISSION_USER_SET
+import android.os.Build.VERSION_CODES.Q
+import android.os.Build.VERSION_CODES.R
+import android.os.UserHandle
+import android.permission.PermissionManager
+import android.util.Xml
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import androidx.test.platform.app.InstrumentationRegistry
+import com.android.dx.mockito.inline.extended.ExtendedMockito.doReturn
+import com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession
+import com.android.permissioncontroller.Constants.DELAYED_RESTORE_PERMISSIONS_DIR
+import com.android.permissioncontroller.Constants.DELAYED_RESTORE_PERMISSIONS_FILE
+import com.android.permissioncontroller.permission.data.FakePermissionSystem
+import com.android.permissioncontroller.permission.utils.LocationUtils
+import com.google.common.truth.Truth.assertThat
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.ArgumentMatchers.eq
+import org.mockito.Mockito.never
+import org.mockito.Mockito.spy
+import org.mockito.Mockito.verify
+import org.mockito.MockitoSession
+import org.mockito.quality.Strictness.LENIENT
+import org.xmlpull.v1.XmlPullParser
+import org.xmlpull.v1.XmlPullParser.END_TAG
+import org.xmlpull.v1.XmlPullParser.START_TAG
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.StringReader
+import java.nio.charset.StandardCharsets.UTF_8
+import org.mockito.Mockito.`when` as whenever
+
+/**
+ * Checks what the [BackupHelper] writes for, and restores to, the packages of a
+ * [FakePermissionSystem].
+ */
+@RunWith(AndroidJUnit4::class)
+class BackupHelperTest {
+    private val NUM_PACKAGES = 8
+    private val USER_FIXED_PACKAGE = 1
+    private val USER_SET_PACKAGE = 3
+    private val LOCATION_PACKAGE = 4
+    private val SYSTEM_FIXED_PACKAGE = 6
+
+    private var mockitoSession: MockitoSession? = null
+
+    /** Every even package has CAMERA granted, every odd package has nothing granted */
+    private val system = FakePermissionSystem(1, NUM_PACKAGES,
+        listOf(CAMERA, RECORD_AUDIO, ACCESS_FINE_LOCATION, ACCESS_BACKGROUND_LOCATION))
+    private val user = system.users[0]
+
+    private val targetContext = InstrumentationRegistry.getInstrumentation().targetContext
+
+    /**
+     * A context of the test, which uses the simulated system services for all users
+     */
+    private val context: Context = spy(targetContext)
+
+    private val filesDir = File(targetContext.cacheDir, javaClass.simpleName)
+    private val legacyDelayedRestoreFile = File(filesDir, DELAYED_RESTORE_PERMISSIONS_FILE)
+    private val delayedRestoreDir = File(filesDir, DELAYED_RESTORE_PERMISSIONS_DIR)
+
+    @Before
+    fun initSystem() {
+        mockitoSession = mockitoSession().spyStatic(LocationUtils::class.java)
+            .strictness(LENIENT).startMocking()
+
+        doReturn(false).`when` { LocationUtils.isLocationGroupAndProvider(any(), any(), any()) }
+        doReturn(false).`when` {
+            LocationUtils.isLocationGroupAndControllerExtraPackage(any(), any(), any())
+        }
+
+        system.setGranted(user, LOCATION_PACKAGE, ACCESS_FINE_LOCATION, true)
+        system.setGranted(user, LOCATION_PACKAGE, ACCESS_BACKGROUND_LOCATION, true)
+        system.setPermissionFlags(USER_FIXED_PACKAGE, CAMERA,
+            FLAG_PERMISSION_USER_SET or FLAG_PERMISSION_USER_FIXED)
+        system.setPermissionFlags(USER_SET_PACKAGE, RECORD_AUDIO, FLAG_PERMISSION_USER_SET)
+        system.setPermissionFlags(SYSTEM_FIXED_PACKAGE, CAMERA, FLAG_PERMISSION_SYSTEM_FIXED)
+        system.install()
+
+        whenever(system.packageManager.getInstalledPackages(anyInt())).thenAnswer {
+            system.packageManager.getInstalledPackagesAsUser(it.arguments[0] as Int,
+                user.identifier)
+        }
+
+        doReturn(context).`when`(context).createPackageContextAsUser(anyString(), anyInt(),
+            any(UserHandle::class.java))
+        doReturn(system.packageManager).`when`(context).packageManager
+        doReturn(system.appOpsManager).`when`(context).getSystemService(AppOpsManager::class.java)
+        doReturn(system.permissionManager).`when`(context)
+            .getSystemService(PermissionManager::class.java)
+        doReturn(system.activityManager).`when`(context)
+            .getSystemService(ActivityManager::class.java)
+
+        filesDir.deleteRecursively()
+        filesDir.mkdirs()
+        doReturn(filesDir).`when`(context).filesDir
+    }
+
+    @After
+    fun finishMocking() {
+        filesDir.deleteRecursively()
+
+        mockitoSession?.finishMocking()
+    }
+
+    /**
+     * Get a backup, as written by [BackupHelper.writeState], which grants CAMERA to packages.
+     *
+     * @param indexes The indexes of the packages
+     *
+     * @return The backup
+     */
+    private fun getBackup(vararg indexes: Int): String {
+        return "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>" +
+            "<perm-grant-backup version=\"$R\"><rt-grants>" +
+            indexes.joinToString("") { index ->
+                "<grant pkg=\"${system.getPackageName(index)}\">" +
+                    "<perm name=\"$CAMERA\" g=\"true\" set=\"true\" /></grant>"
+            } +
+            "</rt-grants></perm-grant-backup>"
+    }
+
+    private fun restoreBackup(backup: String) {
+        val parser = Xml.newPullParser()
+        parser.setInput(StringReader(backup))
+        BackupHelper(context, user).restoreState(parser)
+    }
+
+    private fun getDelayedRestoreFile(index: Int) =
+        File(delayedRestoreDir, "${system.getPackageName(index)}.xml")
+
+    /**
+     * A xml element of a backup
+     */
+    private data class Element(
+        val name: String,
+        val attributes: Map<String, String>,
+        val children: List<Element>
+    )
+
+    /**
+     * Parse a backup. The permissions of a package are sorted by name, as their order depends on
+     * how the groups of the package are loaded.
+     *
+     * @param backup The backup
+     *
+     * @return The root element of the backup
+     */
+    private fun parseBackup(backup: String): Element {
+        val parser = Xml.newPullParser()
+        parser.setInput(StringReader(backup))
+        parser.nextTag()
+
+        return parseElement(parser)
+    }
+
+    private fun parseElement(parser: XmlPullParser): Element {
+        val name = parser.name
+        val attributes = (0 until parser.attributeCount).associate {
+            parser.getAttributeName(it) to parser.getAttributeValue(it)
+        }
+
+        val children = mutableListOf<Element>()
+        while (parser.next() != END_TAG) {
+            if (parser.eventType == START_TAG) {
+                children.add(parseElement(parser))
+            }
+        }
+
+        return Element(name, attributes,
+            if (name == "grant") children.sortedBy { it.attributes["name"] } else children)
+    }
+
+    @Test
+    fun streamedStateMatchesExpectedBackup() {
+        val backup = ByteArrayOutputStream()
+        val serializer = Xml.newSerializer()
+        serializer.setOutput(backup, UTF_8.name())
+        BackupHelper(context, user).writeState(serializer)
+        serializer.flush()
+
+        fun grant(index: Int, vararg perms: String) =
+            "<grant pkg=\"${system.getPackageName(index)}\">${perms.joinToString("")}</grant>"
+
+        // Packages without state to back up, e.g. the one with system fixed permissions, are left
+        // out
+        val expectedBackup = "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>" +
+            "<perm-grant-backup version=\"$Q\"><rt-grants>" +
+            grant(0, "<perm name=\"$CAMERA\" g=\"true\" />") +
+            grant(USER_FIXED_PACKAGE, "<perm name=\"$CAMERA\" set=\"true\" fixed=\"true\" />") +
+            grant(2, "<perm name=\"$CAMERA\" g=\"true\" />") +
+            grant(USER_SET_PACKAGE, "<perm name=\"$RECORD_AUDIO\" set=\"true\" />") +
+            grant(LOCATION_PACKAGE, "<perm name=\"$CAMERA\" g=\"true\" />",
+                "<perm name=\"$ACCESS_FINE_LOCATION\" g=\"true\" />",
+                "<perm name=\"$ACCESS_BACKGROUND_LOCATION\" g=\"true\" />") +
+            "</rt-grants></perm-grant-backup>"
+
+        assertThat(parseBackup(backup.toString(UTF_8.name())))
+            .isEqualTo(parseBackup(expectedBackup))
+    }
+
+    @Test
+    fun delayedStateIsRestoredOnePackageAtATime() {
+        system.uninstalledPackages.addAll(listOf(1, 3))
+        restoreBackup(getBackup(1, 3))
+
+        assertThat(getDelayedRestoreFile(1).exists()).isTrue()
+        assertThat(getDelayedRestoreFile(3).exists()).isTrue()
+
+        system.uninstalledPackages.remove(1)
+        assertThat(BackupHelper(context, user).restoreDelayedState(system.getPackageName(1)))
+            .isTrue()
+
+        verify(system.packageManager).grantRuntimePermission(system.getPackageName(1), CAMERA,
+            user)
+        verify(system.packageManager, never()).grantRuntimePermission(
+            eq(system.getPackageName(3)), anyString(), any(UserHandle::class.java))
+        assertThat(getDelayedRestoreFile(1).exists()).isFalse()
+        assertThat(getDelayedRestoreFile(3).exists()).isTrue()
+
+        system.uninstalledPackages.remove(3)
+        assertThat(BackupHelper(context, user).restoreDelayedState(system.getPackageName(3)))
+            .isFalse()
+
+        verify(system.packageManager).grantRuntimePermission(system.getPackageName(3), CAMERA,
+            user)
+        assertThat(delayedRestoreDir.list()).isEmpty()
+    }
+
+    @Test
+    fun interruptedWriteStillCountsAsDelayedState() {
+        system.uninstalledPackages.addAll(listOf(1, 3))
+        restoreBackup(getBackup(1, 3))
+
+        // What AtomicFile leaves behind if writing the file is interrupted
+        val file = getDelayedRestoreFile(3)
+        assertThat(file.renameTo(File(file.path + ".bak"))).isTrue()
+
+        system.uninstalledPackages.remove(1)
+        assertThat(BackupHelper(context, user).restoreDelayedState(system.getPackageName(1)))
+            .isTrue()
+
+        system.uninstalledPackages.remove(3)
+        assertThat(BackupHelper(context, user).restoreDelayedState(system.getPackageName(3)))
+            .isFalse()
+        verify(system.packageManager).grantRuntimePermission(system.getPackageName(3), CAMERA,
+            user)
+    }
+
+    @Test
+    fun legacyFileIsMigrated() {
+        system.uninstalledPackages.addAll(listOf(1, 3))
+        legacyDelayedRestoreFile.writeText(getBackup(1, 3))
+
+        assertThat(BackupHelper(context, user).restoreDelayedState(system.getPackageName(0)))
+            .isTrue()
+
+        assertThat(legacyDelayedRestoreFile.exists()).isFalse()
+        assertThat(getDelayedRestoreFile(1).exists()).isTrue()
+        assertThat(getDelayedRestoreFile(3).exists()).isTrue()
+        verify(system.packageManager, never()).grantRuntimePermission(anyString(), anyString(),
+            any(UserHandle::class.java))
+    }
+
+    @Test
+    fun legacyFileIsKeptUntilMigrated() {
+        system.uninstalledPackages.addAll(listOf(1, 3))
+        legacyDelayedRestoreFile.writeText(getBackup(1, 3))
+        // Packages cannot be stored while there is a file instead of the directory
+        delayedRestoreDir.writeText("")
+
+        BackupHelper(context, user).restoreDelayedState(system.getPackageName(0))
+
+        assertThat(legacyDelayedRestoreFile.exists()).isTrue()
+
+        delayedRestoreDir.delete()
+        assertThat(BackupHelper(context, user).restoreDelayedState(system.getPackageName(0)))
+            .isTrue()
+
+        assertThat(legacyDelayedRestoreFile.exists()).isFalse()
+        assertThat(getDelayedRestoreFile(1).exists()).isTrue()
+        assertThat(getDelayedRestoreFile(3).exists()).isTrue()
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.service
+
+import android.Manifest.permission.ACCESS_BACKGROUND_LOCATION
+import android.Manifest.permission.ACCESS_FINE_LOCATION
+import android.Manifest.permission.CAMERA
+import android.content.pm.PackageManager.FLAG_PERMISSION_POLICY_FIXED
+import android.content.pm.PackageManager.FLAG_PERMISSION_SYSTEM_FIXED
+import android.os.UserHandle
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.android.dx.mockito.inline.extended.ExtendedMockito.doReturn
+import com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession
+import com.android.permissioncontroller.PermissionControllerApplication
+import com.android.permissioncontroller.permission.data.FakePermissionSystem
+import com.android.permissioncontroller.permission.data.dataRepositories
+import com.android.permissioncontroller.permission.data.mockApplication
+import com.android.permissioncontroller.permission.utils.LocationUtils
+import com.android.permissioncontroller.permission.utils.Utils
+import com.google.common.truth.Truth.assertThat
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.ArgumentMatchers.any
+import org.mockito.ArgumentMatchers.anyInt
+import org.mockito.ArgumentMatchers.anyString
+import org.mockito.Mockito.mock
+import org.mockito.Mockito.never
+import org.mockito.Mockito.verify
+import org.mockito.MockitoSession
+import org.mockito.quality.Strictness.LENIENT
+import org.mockito.Mockito.`when` as whenever
+
+/**
+ * Checks that a dry run of [PermissionControllerServiceModel.onRevokeRuntimePermissions] reports
+ * what revoking through [com.android.permissioncontroller.permission.model.AppPermissions]
+ * reported before the permissions of all packages were revoked in bulk.
+ */
+@RunWith(AndroidJUnit4::class)
+class BulkRevokeDryRunTest {
+    private val NUM_PACKAGES = 8
+    private val POLICY_FIXED_PACKAGE = 2
+    private val SHARED_UID_OWNER_PACKAGE = 4
+    private val SHARED_UID_PACKAGE = 5
+    private val SYSTEM_FIXED_PACKAGE = 6
+
+    private val INSTALLER = "com.android.permissioncontroller.test.installer"
+    private val OTHER_INSTALLER = "com.android.permissioncontroller.test.otherinstaller"
+
+    private var mockitoSession: MockitoSession? = null
+
+    /**
+     * Every even package has all permissions granted, every odd package has nothing granted,
+     * apart from the package sharing the uid of an even package.
+     */
+    private val system = FakePermissionSystem(1, NUM_PACKAGES,
+        listOf(ACCESS_FINE_LOCATION, ACCESS_BACKGROUND_LOCATION, CAMERA))
+    private val user = system.users[0]
+
+    private val service = mock(PermissionControllerServiceImpl::class.java)
+    private val model = PermissionControllerServiceModel(service)
+
+    @Before
+    fun initSystem() {
+        mockitoSession = mockitoSession().mockStatic(PermissionControllerApplication::class.java)
+            .spyStatic(Utils::class.java).spyStatic(LocationUtils::class.java)
+            .strictness(LENIENT).startMocking()
+
+        whenever(PermissionControllerApplication.get()).thenReturn(mockApplication)
+        doReturn(false).`when` { Utils.isPackageInfosSnapshotEnabled() }
+        doReturn(mockApplication).`when` {
+            Utils.getUserContext(any(), any(UserHandle::class.java))
+        }
+        doReturn(false).`when` { LocationUtils.isLocationGroupAndProvider(any(), any(), any()) }
+        doReturn(false).`when` {
+            LocationUtils.isLocationGroupAndControllerExtraPackage(any(), any(), any())
+        }
+
+        for (index in 0 until NUM_PACKAGES step 2) {
+            system.setGranted(user, index, ACCESS_BACKGROUND_LOCATION, true)
+            system.setGranted(user, index, CAMERA, true)
+        }
+        system.shareUid(SHARED_UID_PACKAGE, SHARED_UID_OWNER_PACKAGE)
+        system.setPermissionFlags(POLICY_FIXED_PACKAGE, ACCESS_FINE_LOCATION,
+            FLAG_PERMISSION_POLICY_FIXED)
+        system.setPermissionFlags(SYSTEM_FIXED_PACKAGE, ACCESS_FINE_LOCATION,
+            FLAG_PERMISSION_SYSTEM_FIXED)
+        system.install()
+
+        whenever(service.packageManager).thenReturn(system.packageManager)
+        whenever(system.packageManager.getInstallerPackageName(anyString())).thenAnswer {
+            if (it.arguments[0] == system.getPackageName(SHARED_UID_PACKAGE)) {
+                OTHER_INSTALLER
+            } else {
+                INSTALLER
+            }
+        }
+    }
+
+    @After
+    fun resetSystem() {
+        // Send low memory notifications for all data repositories which will clear cached data
+        dataRepositories.forEach { it.onLowMemory() }
+
+        mockitoSession?.finishMocking()
+    }
+
+    /**
+     * Dry run a revocation and check that nothing was changed.
+     *
+     * @param request The permissions to revoke, by package index
+     * @param installerPackageName If set, only revoke permissions of packages installed by this
+     * package
+     *
+     * @return The permissions which would be revoked, by package index
+     */
+    private fun dryRun(
+        request: Map<Int, List<String>>,
+        installerPackageName: String? = null
+    ): Map<Int, List<String>> {
+        val revokedPerms = runBlocking {
+            model.onRevokeRuntimePermissions(
+                request.mapKeys { (index, _) -> system.getPackageName(index) },
+                doDryRun = true, installerPackageName = installerPackageName)
+        }
+
+        verify(system.packageManager, never()).revokeRuntimePermission(anyString(), anyString(),
+            any(UserHandle::class.java))
+        verify(system.packageManager, never()).updatePermissionFlags(anyString(), anyString(),
+            anyInt(), anyInt(), any(UserHandle::class.java))
+
+        return revokedPerms.mapKeys { (packageName, _) ->
+            (0 until NUM_PACKAGES).first { system.getPackageName(it) == packageName }
+        }
+    }
+
+    @Test
+    fun foregroundRequestRevokesWholeGroup() {
+        val revokedPerms = dryRun(mapOf(0 to listOf(ACCESS_FINE_LOCATION)))
+
+        assertThat(revokedPerms.keys).containsExactly(0)
+        assertThat(revokedPerms[0]).containsExactly(ACCESS_FINE_LOCATION,
+            ACCESS_BACKGROUND_LOCATION)
+    }
+
+    @Test
+    fun backgroundOnlyRequestRevokesOnlyBackground() {
+        assertThat(dryRun(mapOf(0 to listOf(ACCESS_BACKGROUND_LOCATION)))).containsExactly(
+            0, listOf(ACCESS_BACKGROUND_LOCATION))
+    }
+
+    @Test
+    fun onlyGrantedPermissionsAreReported() {
+        assertThat(dryRun(mapOf(1 to listOf(ACCESS_FINE_LOCATION, CAMERA)))).isEmpty()
+    }
+
+    @Test
+    fun fixedGroupsAreSkipped() {
+        assertThat(dryRun(mapOf(
+            POLICY_FIXED_PACKAGE to listOf(ACCESS_BACKGROUND_LOCATION, CAMERA),
+            SYSTEM_FIXED_PACKAGE to listOf(ACCESS_FINE_LOCATION)))).containsExactly(
+            POLICY_FIXED_PACKAGE, listOf(CAMERA))
+    }
+
+    @Test
+    fun sharedUidRevokesFromAllPackages() {
+        assertThat(dryRun(mapOf(SHARED_UID_OWNER_PACKAGE to listOf(CAMERA)))).containsExactly(
+            SHARED_UID_OWNER_PACKAGE, listOf(CAMERA), SHARED_UID_PACKAGE, listOf(CAMERA))
+    }
+
+    @Test
+    fun packagesOfOtherInstallersAreSkipped() {
+        assertThat(dryRun(mapOf(0 to listOf(CAMERA), SHARED_UID_OWNER_PACKAGE to listOf(CAMERA)),
+            INSTALLER)).containsExactly(0, listOf(CAMERA), SHARED_UID_OWNER_PACKAGE,
+            listOf(CAMERA))
+    }
+}
@@ -25,7 +25,6 @@ import android.Manifest.permission.SEND_SMS
 import android.app.ActivityManager
 import android.app.AppOpsManager
 import android.app.job.JobScheduler
-import android.content.ComponentCallbacks2
 import android.content.pm.ApplicationInfo
 import android.content.pm.PackageInfo
 import android.content.pm.PackageInfo.REQUESTED_PERMISSION_GRANTED
@@ -44,6 +43,7 @@ import androidx.test.platform.app.InstrumentationRegistry
 import com.android.dx.mockito.inline.extended.ExtendedMockito.mockitoSession
 import com.android.permissioncontroller.PermissionControllerApplication
 import com.android.permissioncontroller.permission.data.dataRepositories
+import com.android.permissioncontroller.permission.data.mockApplication
 import org.junit.After
 import org.junit.Before
 import org.junit.Test
@@ -53,7 +53,6 @@ import org.mockito.ArgumentMatchers.anyInt
 import org.mockito.ArgumentMatchers.eq
 import org.mockito.Mock
 import org.mockito.Mockito.anyString
-import org.mockito.Mockito.mock
 import org.mockito.Mockito.never
 import org.mockito.Mockito.timeout
 import org.mockito.Mockito.verify
@@ -67,19 +66,7 @@ import org.mockito.Mockito.`when` as whenever
 class RuntimePermissionsUpgradeControllerTest {
     companion object {
         /** Reuse application mock as we otherwise end up with multiple applications */
-        val application = mock(PermissionControllerApplication::class.java)
-
-        init {
-            whenever(application.applicationContext).thenReturn(application)
-            whenever(application.createPackageContextAsUser(any(), anyInt(), any())).thenReturn(
-                    application)
-
-            whenever(application.registerComponentCallbacks(any())).thenAnswer {
-                val dataRepository = it.arguments[0] as ComponentCallbacks2
-
-                dataRepositories.add(dataRepository)
-            }
-        }
+        val application = mockApplication
     }
 
     /** Latest permission database version known in this test */
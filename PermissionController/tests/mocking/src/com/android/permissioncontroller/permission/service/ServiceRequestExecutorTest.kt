@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.permissioncontroller.permission.service
+
+import android.os.UserHandle
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit.SECONDS
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Consumer
+import java.util.function.Supplier
+
+/**
+ * Checks the order in which the [ServiceRequestExecutor] runs requests.
+ *
+ * Every test uses its own user, so requests of different tests never conflict.
+ */
+@RunWith(AndroidJUnit4::class)
+class ServiceRequestExecutorTest {
+    private val TIMEOUT_SECONDS = 10L
+
+    private val user = UserHandle.of(nextUserId.getAndIncrement())
+
+    /**
+     * What happened, in the order it happened
+     */
+    private val events = Collections.synchronizedList(mutableListOf<String>())
+
+    /**
+     * Counted down once for every callback
+     */
+    private lateinit var done: CountDownLatch
+
+    /**
+     * Enqueue a request which records when it runs and when its callback is called.
+     *
+     * @param name The name of the request in the [events]
+     * @param packageNames The packages of the request, null for all packages of the user
+     * @param coalescingKey The coalescing key of the request
+     * @param block Runs as part of the request
+     */
+    private fun enqueue(
+        name: String,
+        packageNames: List<String>?,
+        coalescingKey: Any? = null,
+        block: () -> Unit = {}
+    ) {
+        ServiceRequestExecutor.executeForResult("test", user, packageNames, coalescingKey,
+            Supplier {
+                events.add("run $name")
+                block()
+                name
+            },
+            Consumer { result ->
+                events.add("callback $name <- $result")
+                done.countDown()
+            })
+    }
+
+    private fun awaitDone() {
+        assertThat(done.await(TIMEOUT_SECONDS, SECONDS)).isTrue()
+    }
+
+    @Test
+    fun samePackageRunsInOrder() {
+        done = CountDownLatch(3)
+        val release = CountDownLatch(1)
+
+        enqueue("a", listOf(PKG_A)) { release.await(TIMEOUT_SECONDS, SECONDS) }
+        enqueue("b", listOf(PKG_A))
+        enqueue("c", listOf(PKG_A, PKG_B))
+        release.countDown()
+        awaitDone()
+
+        assertThat(events).containsExactly("run a", "callback a <- a", "run b", "callback b <- b",
+            "run c", "callback c <- c").inOrder()
+    }
+
+    @Test
+    fun unrelatedPackagesRunInParallel() {
+        done = CountDownLatch(2)
+        val bStarted = CountDownLatch(1)
+
+        // Only completes if b runs while a is still running
+        enqueue("a", listOf(PKG_A)) {
+            assertThat(bStarted.await(TIMEOUT_SECONDS, SECONDS)).isTrue()
+        }
+        enqueue("b", listOf(PKG_B)) { bStarted.countDown() }
+        awaitDone()
+
+        assertThat(events.indexOf("run b")).isLessThan(events.indexOf("callback a <- a"))
+    }
+
+    @Test
+    fun userWideRequestIsBarrier() {
+        done = CountDownLatch(3)
+        val release = CountDownLatch(1)
+
+        enqueue("a", listOf(PKG_A)) { release.await(TIMEOUT_SECONDS, SECONDS) }
+        enqueue("all", null)
+        // Does not conflict with a, but must not overtake the waiting user wide request
+        enqueue("b", listOf(PKG_B))
+        release.countDown()
+        awaitDone()
+
+        assertThat(events).containsExactly("run a", "callback a <- a", "run all",
+            "callback all <- all", "run b", "callback b <- b").inOrder()
+    }
+
+    @Test
+    fun identicalWaitingRequestsAreCoalesced() {
+        done = CountDownLatch(3)
+        val release = CountDownLatch(1)
+
+        enqueue("a", listOf(PKG_A)) { release.await(TIMEOUT_SECONDS, SECONDS) }
+        enqueue("x", listOf(PKG_A), coalescingKey = "x")
+        enqueue("x'", listOf(PKG_A), coalescingKey = "x")
+        release.countDown()
+        awaitDone()
+
+        assertThat(events).containsExactly("run a", "callback a <- a", "run x", "callback x <- x",
+            "callback x' <- x").inOrder()
+    }
+
+    @Test
+    fun coalescingNeverOvertakesOtherRequests() {
+        done = CountDownLatch(4)
+        val release = CountDownLatch(1)
+
+        enqueue("a", listOf(PKG_A)) { release.await(TIMEOUT_SECONDS, SECONDS) }
+        enqueue("x", listOf(PKG_A), coalescingKey = "x")
+        enqueue("y", listOf(PKG_A))
+        // Identical to x, but y is waiting in between
+        enqueue("x'", listOf(PKG_A), coalescingKey = "x")
+        release.countDown()
+        awaitDone()
+
+        assertThat(events).containsExactly("run a", "callback a <- a", "run x", "callback x <- x",
+            "run y", "callback y <- y", "run x'", "callback x' <- x'").inOrder()
+    }
+
+    companion object {
+        private const val PKG_A = "com.android.permissioncontroller.test.a"
+        private const val PKG_B = "com.android.permissioncontroller.test.b"
+
+        private val nextUserId = AtomicInteger(100)
+    }
+}
@@ -1090,4 +1090,99 @@ class GrantRevokeTests {
         val expectedState = mutableMapOf(FG_PERM_NAME to (false to newFlags))
         assertGroupPermState(newGroup, expectedState)
     }
+
+    /**
+     * Test auto revoking a group with a foreground and a background permission at once. Both
+     * permissions should be revoked and marked as auto revoked, and the shared app op should be
+     * set only once.
+     */
+    @Test
+    fun autoRevokeBgAndFgPermTest() {
+        val pkg = createMockPackage(mapOf(FG_PERM_NAME to true, BG_PERM_NAME to true))
+        val oldFlags = FLAG_PERMISSION_USER_SET
+        val perms = mutableMapOf<String, LightPermission>()
+        perms[FG_PERM_NAME] = createMockPerm(pkg, FG_PERM_NAME, BG_PERM_NAME, flags = oldFlags)
+        perms[BG_PERM_NAME] = createMockPerm(pkg, BG_PERM_NAME, null, listOf(FG_PERM_NAME),
+            oldFlags)
+        val group = createMockGroup(pkg, perms)
+        resetMockAppState()
+
+        val newGroups = KotlinUtils.revokeRuntimePermissionsForUid(app, listOf(group),
+            autoRevoked = true)
+
+        val newFlags = FLAG_PERMISSION_AUTO_REVOKED
+        verifyPermissionState(permName = FG_PERM_NAME, expectPermChange = true,
+            expectPermGranted = false, expectedFlags = newFlags, originalFlags = oldFlags)
+        verifyPermissionState(permName = BG_PERM_NAME, expectPermChange = true,
+            expectPermGranted = false, expectedFlags = newFlags, originalFlags = oldFlags)
+        verifyAppOpState(appOpName = OP_NAME, expectAppOpSet = true, expectedMode = MODE_IGNORED)
+        verifyAppKillState(shouldBeKilled = false)
+
+        val expectedState = mutableMapOf(FG_PERM_NAME to (false to newFlags),
+            BG_PERM_NAME to (false to newFlags))
+        assertThat(newGroups).hasSize(1)
+        assertGroupPermState(newGroups[0], expectedState)
+    }
+
+    /**
+     * Test revoking only the background permission of a group which requires a review. The
+     * background permission should be revoked and no longer require a review, the foreground
+     * permission should be untouched, and the app op should be downgraded to foreground.
+     */
+    @Test
+    fun revokeBgPermUnsetReviewRequiredTest() {
+        val pkg = createMockPackage(mapOf(FG_PERM_NAME to true, BG_PERM_NAME to true))
+        val oldFlags = FLAG_PERMISSION_REVIEW_REQUIRED
+        val perms = mutableMapOf<String, LightPermission>()
+        perms[FG_PERM_NAME] = createMockPerm(pkg, FG_PERM_NAME, BG_PERM_NAME, flags = oldFlags)
+        perms[BG_PERM_NAME] = createMockPerm(pkg, BG_PERM_NAME, null, listOf(FG_PERM_NAME),
+            oldFlags)
+        val group = createMockGroup(pkg, perms)
+        resetMockAppState()
+
+        val newGroups = KotlinUtils.revokeRuntimePermissionsForUid(app, listOf(group),
+            filterPermissions = listOf(BG_PERM_NAME), unsetReviewRequired = true)
+
+        val newFlags = FLAG_PERMISSION_USER_SET
+        verifyPermissionState(permName = FG_PERM_NAME, expectPermChange = false,
+            expectedFlags = oldFlags, originalFlags = oldFlags)
+        verifyPermissionState(permName = BG_PERM_NAME, expectPermChange = true,
+            expectPermGranted = false, expectedFlags = newFlags, originalFlags = oldFlags)
+        verifyAppOpState(appOpName = OP_NAME, expectAppOpSet = true,
+            expectedMode = MODE_FOREGROUND)
+        verifyAppKillState(shouldBeKilled = false)
+
+        val expectedState = mutableMapOf(FG_PERM_NAME to (true to oldFlags),
+            BG_PERM_NAME to (false to newFlags))
+        assertThat(newGroups).hasSize(1)
+        assertGroupPermState(newGroups[0], expectedState)
+    }
+
+    /**
+     * Test revoking several groups of a pre M app at once. All app ops should be revoked, and the
+     * app should be killed only once.
+     */
+    @Test
+    fun revokeSeveralGroupsPreMAppTest() {
+        val pkg = createMockPackage(mapOf(FG_PERM_NAME to true, FG_PERM_2_NAME to true),
+            isPreMApp = true)
+        val group = createMockGroup(pkg, mapOf(FG_PERM_NAME to createMockPerm(pkg, FG_PERM_NAME)))
+        val group2 = createMockGroup(pkg,
+            mapOf(FG_PERM_2_NAME to createMockPerm(pkg, FG_PERM_2_NAME)))
+        resetMockAppState()
+
+        val newGroups = KotlinUtils.revokeRuntimePermissionsForUid(app, listOf(group, group2))
+
+        val newFlags = FLAG_PERMISSION_USER_SET or FLAG_PERMISSION_REVOKED_COMPAT
+        verifyPermissionState(permName = FG_PERM_NAME, expectPermChange = false,
+            expectedFlags = newFlags)
+        verifyPermissionState(permName = FG_PERM_2_NAME, expectPermChange = false,
+            expectedFlags = newFlags)
+        verifyAppOpState(appOpName = OP_NAME, expectAppOpSet = true, expectedMode = MODE_IGNORED)
+        verifyAppOpState(appOpName = OP_2_NAME, expectAppOpSet = true, expectedMode = MODE_IGNORED)
+        verifyAppKillState(shouldBeKilled = true)
+
+        assertGroupPermState(newGroups[0], mapOf(FG_PERM_NAME to (false to newFlags)))
+        assertGroupPermState(newGroups[1], mapOf(FG_PERM_2_NAME to (false to newFlags)))
+    }
 }
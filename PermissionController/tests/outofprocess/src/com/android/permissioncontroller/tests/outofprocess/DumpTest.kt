@@ -54,6 +54,8 @@ class DumpTest {
 
         // Sometimes the dump takes to long to get generated, esp. on low end devices
         assumeTrue(dump.autoRevoke.usersList.isNotEmpty())
+        assumeTrue(dump.autoRevoke.usersList.firstOrNull { it.userId == myUserId() }
+                ?.isTruncated != true)
 
         assertThat(dump.autoRevoke.usersList.map { it.userId }).contains(myUserId())
     }
@@ -64,8 +66,9 @@ class DumpTest {
 
         // Sometimes the dump takes to long to get generated, esp. on low end devices
         assumeTrue(dump.autoRevoke.usersList.isNotEmpty())
+        val user = dump.autoRevoke.usersList.first { it.userId == myUserId() }
+        assumeTrue(!user.isTruncated)
 
-        assertThat(dump.autoRevoke.usersList[myUserId()].packagesList.map { it.packageName })
-                .contains(OS_PKG)
+        assertThat(user.packagesList.map { it.packageName }).contains(OS_PKG)
     }
 }